@@ -0,0 +1,25 @@
+#! /bin/bash
+# Starts a streaming replica of the database started by startPostgreSQL.sh.
+# Run it after createPostgreDB.sh, with PGPORT still set to the primary port.
+folder=/tmp/$USER
+export REPLICADATA=$folder/myReplica/data
+export REPLICASOCKETS=$folder/myReplica/sockets
+REPLICAPORT=${REPLICAPORT:-9999}
+
+echo $folder
+
+#Clear folder
+rm -rf $folder/myReplica
+
+#Initialize folders
+mkdir $folder/myReplica
+mkdir $folder/myReplica/sockets
+sleep 1
+
+#Copy the primary and write the standby settings (-R)
+pg_basebackup -h localhost -p $PGPORT -D $REPLICADATA -R -X stream
+chmod 700 $REPLICADATA
+
+sleep 1
+#Start folder
+pg_ctl -o "-c unix_socket_directories=$REPLICASOCKETS -p $REPLICAPORT" -D $REPLICADATA -l $folder/replica_logfile start
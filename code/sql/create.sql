@@ -4,6 +4,13 @@ DROP TABLE IF EXISTS Car CASCADE;--OK
 DROP TABLE IF EXISTS Owns CASCADE;--OK
 DROP TABLE IF EXISTS Service_Request CASCADE;--OK
 DROP TABLE IF EXISTS Closed_Request CASCADE;--OK
+DROP TABLE IF EXISTS Request_Rid CASCADE;--OK
+DROP TABLE IF EXISTS Closed_Wid CASCADE;--OK
+DROP SEQUENCE IF EXISTS closed_request_wid_seq;--OK
+DROP TABLE IF EXISTS Intake_Journal_Checkpoint CASCADE;--OK
+DROP TABLE IF EXISTS Open_Ticket CASCADE;--OK
+DROP TABLE IF EXISTS Customer_Car_Count CASCADE;--OK
+DROP TABLE IF EXISTS Car_Mileage_Stats CASCADE;--OK
 
 
 -------------
@@ -69,10 +76,10 @@ CREATE TABLE Service_Request
 	date DATE NOT NULL,
 	odometer _PINTEGER NOT NULL,
 	complain TEXT,
-	PRIMARY KEY (rid),
+	PRIMARY KEY (rid, date),
 	FOREIGN KEY (customer_id) REFERENCES Customer(id),
 	FOREIGN KEY (car_vin) REFERENCES Car(vin)
-);
+) PARTITION BY RANGE (date);
 
 CREATE TABLE Closed_Request
 (
@@ -82,11 +89,160 @@ CREATE TABLE Closed_Request
 	date DATE NOT NULL,
 	comment TEXT,
 	bill _PINTEGER NOT NULL,
-	PRIMARY KEY (wid),
-	FOREIGN KEY (rid) REFERENCES Service_Request(rid),
+	PRIMARY KEY (wid, date),
+	-- rid alone is not unique across Service_Request partitions; the reference
+	-- to Request_Rid(rid) is added at the end of this file, once it is filled
 	FOREIGN KEY (mid) REFERENCES Mechanic(id)
+) PARTITION BY RANGE (date);
+
+-- Every rid in Service_Request, kept by the trigger at the end of this file.
+-- A partitioned table's key has to include the partition key, so this is
+-- what keeps a rid from being used on two dates.
+CREATE TABLE Request_Rid
+(
+	rid INTEGER NOT NULL,
+	PRIMARY KEY (rid)
+);
+
+-- Every wid in Closed_Request, kept the same way as Request_Rid so a wid is
+-- not used in two months.
+CREATE TABLE Closed_Wid
+(
+	wid INTEGER NOT NULL,
+	PRIMARY KEY (wid)
+);
+
+-- Last journal entry of each write-behind intake journal that reached
+-- Service_Request, advanced in the same transaction as the rows themselves.
+CREATE TABLE Intake_Journal_Checkpoint
+(
+	journal_id TEXT NOT NULL,
+	last_seq BIGINT NOT NULL,
+	PRIMARY KEY (journal_id)
+);
+
+-- Service requests with no Closed_Request yet, kept by the triggers at the
+-- end of this file. Mechanics claim them with WorkQueue.claimNext.
+CREATE TABLE Open_Ticket
+(
+	rid INTEGER NOT NULL,
+	customer_id INTEGER NOT NULL,
+	car_vin VARCHAR(16) NOT NULL,
+	date DATE NOT NULL,
+	claimed_by INTEGER,
+	claimed_at TIMESTAMP,
+	PRIMARY KEY (rid),
+	FOREIGN KEY (claimed_by) REFERENCES Mechanic(id)
 );
 
+-- Cars owned per customer, kept by the Owns triggers at the end of this
+-- file and checked against Owns by reconcile_car_counts.
+CREATE TABLE Customer_Car_Count
+(
+	customer_id INTEGER NOT NULL,
+	cars _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (customer_id),
+	FOREIGN KEY (customer_id) REFERENCES Customer(id)
+);
+
+-- Odometer history per car, kept by the Service_Request trigger at the end
+-- of this file. A rollback is a reading lower than the latest one before
+-- it (or higher than the earliest one after it, for a back-dated request).
+CREATE TABLE Car_Mileage_Stats
+(
+	car_vin VARCHAR(16) NOT NULL,
+	visits _PINTEGER NOT NULL,
+	first_date DATE NOT NULL,
+	first_odometer _PINTEGER NOT NULL,
+	last_date DATE NOT NULL,
+	last_odometer _PINTEGER NOT NULL,
+	min_odometer _PINTEGER NOT NULL,
+	rollbacks _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (car_vin),
+	FOREIGN KEY (car_vin) REFERENCES Car(vin)
+);
+
+----------------
+---PARTITIONS---
+----------------
+-- Service_Request and Closed_Request are split into one partition per month.
+-- ensure_request_partition creates the partition holding a given day,
+-- create_request_partitions covers a whole range (used below for the loaded
+-- history and a few months ahead), and detach_request_partitions detaches
+-- every month ending on or before a cutoff and moves it to the archive schema.
+CREATE SCHEMA IF NOT EXISTS archive;
+
+CREATE OR REPLACE FUNCTION ensure_request_partition(parent TEXT, day DATE) RETURNS TEXT AS $$
+DECLARE
+	lo DATE := date_trunc('month', day)::DATE;
+	hi DATE := (date_trunc('month', day) + INTERVAL '1 month')::DATE;
+	part TEXT := lower(parent) || '_' || to_char(lo, 'YYYY_MM');
+BEGIN
+	IF to_regclass(part) IS NULL THEN
+		EXECUTE format('CREATE TABLE %I PARTITION OF %I FOR VALUES FROM (%L) TO (%L)', part, lower(parent), lo, hi);
+	END IF;
+	RETURN part;
+EXCEPTION WHEN duplicate_table THEN
+	-- another session created it first
+	RETURN part;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION create_request_partitions(first_day DATE, last_day DATE) RETURNS INTEGER AS $$
+DECLARE
+	month DATE := date_trunc('month', first_day)::DATE;
+	n INTEGER := 0;
+BEGIN
+	WHILE month <= last_day LOOP
+		PERFORM ensure_request_partition('Service_Request', month);
+		PERFORM ensure_request_partition('Closed_Request', month);
+		month := (month + INTERVAL '1 month')::DATE;
+		n := n + 1;
+	END LOOP;
+	RETURN n;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION detach_request_partitions(parent TEXT, cutoff DATE) RETURNS SETOF TEXT AS $$
+DECLARE
+	part TEXT;
+BEGIN
+	FOR part IN
+		SELECT c.relname
+		FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid
+		WHERE i.inhparent = lower(parent)::regclass
+		AND (to_date(right(c.relname, 7), 'YYYY_MM') + INTERVAL '1 month')::DATE <= cutoff
+		ORDER BY c.relname
+	LOOP
+		-- the open tickets of a detached month could never be closed
+		IF lower(parent) = 'service_request' THEN
+			EXECUTE format('DELETE FROM Open_Ticket o USING %I p WHERE o.rid = p.rid', part);
+		END IF;
+		EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', lower(parent), part);
+		EXECUTE format('ALTER TABLE %I SET SCHEMA archive', part);
+		RETURN NEXT 'archive.' || part;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-------------
+---INDEXES---
+-------------
+-- Sort keys of the paginated reports, so each page is one index range scan.
+CREATE INDEX closed_request_bill_wid ON Closed_Request (bill, wid);
+CREATE INDEX service_request_car_vin_rid ON Service_Request (car_vin, rid);
+CREATE INDEX owns_customer_id ON Owns (customer_id);
+-- Per-customer ranges of the parallel reports 7 and 10.
+CREATE INDEX service_request_customer_id ON Service_Request (customer_id);
+CREATE INDEX closed_request_rid ON Closed_Request (rid);
+-- Dispatch order of the unclaimed tickets; claimed ones drop out of it.
+CREATE INDEX open_ticket_unclaimed ON Open_Ticket (date, rid) WHERE claimed_by IS NULL;
+-- Customers with more than N cars are one range scan, most cars first.
+CREATE INDEX customer_car_count_cars ON Customer_Car_Count (cars, customer_id);
+
+SELECT create_request_partitions('2016-01-01', '2017-12-31');
+SELECT create_request_partitions(CURRENT_DATE, CURRENT_DATE + 90);
+
 ----------------------------
 -- INSERT DATA STATEMENTS --
 ----------------------------
@@ -147,4 +303,237 @@ COPY Closed_Request (
 	bill
 )
 FROM 'closed_request.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+--------------------
+---CHANGE NOTICES---
+--------------------
+-- Every write to these tables publishes '<table>:<key>' on the
+-- mechanicshop_changes channel so each MechanicShop process can drop what it
+-- cached. Customer, Car and Mechanic are keyed by their own key; Owns,
+-- Service_Request and Closed_Request by the customer they belong to. New and
+-- deleted service requests are also published as 'request:<rid>' for the
+-- in-process key checks (KnownKeys). Postgres folds identical
+-- notices sent by one transaction into one. The triggers are created after
+-- the load above so the initial COPY does not publish anything.
+CREATE OR REPLACE FUNCTION notify_change() RETURNS TRIGGER AS $$
+DECLARE
+	keys TEXT[] := '{}';
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		keys := keys || (to_jsonb(OLD) ->> TG_ARGV[1]);
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		keys := keys || (to_jsonb(NEW) ->> TG_ARGV[1]);
+	END IF;
+	IF TG_ARGV[0] = 'closed_request' THEN
+		SELECT array_agg(DISTINCT customer_id::TEXT) INTO keys FROM Service_Request WHERE rid = ANY (keys::INTEGER[]);
+	END IF;
+	PERFORM pg_notify('mechanicshop_changes', TG_ARGV[0] || ':' || k) FROM unnest(keys) AS k WHERE k IS NOT NULL;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER customer_changed AFTER INSERT OR UPDATE OR DELETE ON Customer
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('customer', 'id');
+CREATE TRIGGER car_changed AFTER INSERT OR UPDATE OR DELETE ON Car
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('car', 'vin');
+CREATE TRIGGER mechanic_changed AFTER INSERT OR UPDATE OR DELETE ON Mechanic
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('mechanic', 'id');
+CREATE TRIGGER owns_changed AFTER INSERT OR UPDATE OR DELETE ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('owns', 'customer_id');
+CREATE TRIGGER service_request_changed AFTER INSERT OR UPDATE OR DELETE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('service_request', 'customer_id');
+CREATE TRIGGER request_changed AFTER INSERT OR DELETE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('request', 'rid');
+CREATE TRIGGER closed_request_changed AFTER INSERT OR UPDATE OR DELETE ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE notify_change('closed_request', 'rid');
+
+------------------
+---OPEN TICKETS---
+------------------
+-- A new service request opens a ticket and closing it removes the ticket,
+-- whoever had claimed it. Requests loaded above are opened here in one go.
+CREATE OR REPLACE FUNCTION open_ticket() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP = 'INSERT' THEN
+		INSERT INTO Open_Ticket(rid, customer_id, car_vin, date) VALUES (NEW.rid, NEW.customer_id, NEW.car_vin, NEW.date)
+		ON CONFLICT (rid) DO NOTHING;
+	ELSE
+		DELETE FROM Open_Ticket WHERE rid = OLD.rid;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION close_ticket() RETURNS TRIGGER AS $$
+BEGIN
+	DELETE FROM Open_Ticket WHERE rid = NEW.rid;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER service_request_opened AFTER INSERT OR DELETE ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE open_ticket();
+CREATE TRIGGER closed_request_closed AFTER INSERT ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE close_ticket();
+
+INSERT INTO Open_Ticket(rid, customer_id, car_vin, date)
+SELECT DISTINCT ON (sr.rid) sr.rid, sr.customer_id, sr.car_vin, sr.date
+FROM Service_Request sr
+WHERE NOT EXISTS (SELECT 1 FROM Closed_Request cr WHERE cr.rid = sr.rid)
+ORDER BY sr.rid, sr.date;
+
+----------------
+---CAR COUNTS---
+----------------
+-- Every change to Owns moves the count of the customers involved, and a
+-- truncate empties the counts. reconcile_car_counts rewrites the counts
+-- that differ from Owns and returns how many did; Owns is locked against
+-- writes meanwhile so the two are compared at one instant.
+CREATE OR REPLACE FUNCTION count_cars() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP = 'TRUNCATE' THEN
+		DELETE FROM Customer_Car_Count;
+		RETURN NULL;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO Customer_Car_Count(customer_id, cars) VALUES (NEW.customer_id, 1)
+		ON CONFLICT (customer_id) DO UPDATE SET cars = Customer_Car_Count.cars + 1;
+	END IF;
+	IF TG_OP <> 'INSERT' THEN
+		UPDATE Customer_Car_Count SET cars = cars - 1 WHERE customer_id = OLD.customer_id;
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER owns_counted AFTER INSERT OR DELETE OR UPDATE OF customer_id ON Owns
+	FOR EACH ROW EXECUTE PROCEDURE count_cars();
+CREATE TRIGGER owns_truncated AFTER TRUNCATE ON Owns
+	FOR EACH STATEMENT EXECUTE PROCEDURE count_cars();
+
+CREATE OR REPLACE FUNCTION reconcile_car_counts() RETURNS INTEGER AS $$
+DECLARE
+	fixed INTEGER;
+BEGIN
+	LOCK TABLE Owns IN SHARE MODE;
+	WITH actual AS (
+		SELECT c.id AS customer_id, count(o.ownership_id)::INTEGER AS cars
+		FROM Customer c LEFT JOIN Owns o ON o.customer_id = c.id
+		GROUP BY c.id
+	), wrong AS (
+		SELECT a.customer_id, a.cars FROM actual a
+		LEFT JOIN Customer_Car_Count n ON n.customer_id = a.customer_id
+		WHERE n.cars IS DISTINCT FROM a.cars AND NOT (n.cars IS NULL AND a.cars = 0)
+	), written AS (
+		INSERT INTO Customer_Car_Count(customer_id, cars) SELECT customer_id, cars FROM wrong
+		ON CONFLICT (customer_id) DO UPDATE SET cars = EXCLUDED.cars
+		RETURNING 1
+	)
+	SELECT count(*) INTO fixed FROM written;
+	RETURN fixed;
+END;
+$$ LANGUAGE plpgsql;
+
+INSERT INTO Customer_Car_Count(customer_id, cars)
+SELECT customer_id, count(*) FROM Owns GROUP BY customer_id;
+
+-------------------
+---MILEAGE STATS---
+-------------------
+-- Every new service request folds its reading into the car's statistics;
+-- the SET expressions all see the row as it was before this request. A
+-- request inserted between the first and latest date only counts as a
+-- visit. Deleted or archived requests are not taken back out.
+CREATE OR REPLACE FUNCTION track_mileage() RETURNS TRIGGER AS $$
+BEGIN
+	INSERT INTO Car_Mileage_Stats AS s (car_vin, visits, first_date, first_odometer, last_date, last_odometer, min_odometer, rollbacks)
+	VALUES (NEW.car_vin, 1, NEW.date, NEW.odometer, NEW.date, NEW.odometer, NEW.odometer, 0)
+	ON CONFLICT (car_vin) DO UPDATE SET
+		visits = s.visits + 1,
+		rollbacks = s.rollbacks + CASE
+			WHEN NEW.date >= s.last_date AND NEW.odometer < s.last_odometer THEN 1
+			WHEN NEW.date < s.first_date AND NEW.odometer > s.first_odometer THEN 1
+			ELSE 0 END,
+		first_date = LEAST(s.first_date, NEW.date),
+		first_odometer = CASE WHEN NEW.date < s.first_date THEN NEW.odometer ELSE s.first_odometer END,
+		last_date = GREATEST(s.last_date, NEW.date),
+		last_odometer = CASE WHEN NEW.date >= s.last_date THEN NEW.odometer ELSE s.last_odometer END,
+		min_odometer = LEAST(s.min_odometer, NEW.odometer);
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER service_request_mileage AFTER INSERT ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE track_mileage();
+
+INSERT INTO Car_Mileage_Stats(car_vin, visits, first_date, first_odometer, last_date, last_odometer, min_odometer, rollbacks)
+SELECT car_vin, count(*),
+	min(date), (array_agg(odometer ORDER BY date, rid))[1],
+	max(date), (array_agg(odometer ORDER BY date DESC, rid DESC))[1],
+	min(odometer), count(*) FILTER (WHERE odometer < previous)
+FROM (
+	SELECT car_vin, date, rid, odometer, lag(odometer) OVER (PARTITION BY car_vin ORDER BY date, rid) AS previous
+	FROM Service_Request
+) AS readings
+GROUP BY car_vin;
+
+-----------------
+---REQUEST IDS---
+-----------------
+-- A new service request registers its rid and fails with a unique_violation
+-- when another request holds it. Deleting a request gives its rid back; the
+-- rids of detached partitions stay taken. An UPDATE that moves a request to
+-- another month's partition runs as a DELETE and an INSERT, so its rid is
+-- given back and taken again.
+CREATE OR REPLACE FUNCTION register_rid() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		DELETE FROM Request_Rid WHERE rid = OLD.rid;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO Request_Rid(rid) VALUES (NEW.rid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER service_request_rid AFTER INSERT OR DELETE OR UPDATE OF rid ON Service_Request
+	FOR EACH ROW EXECUTE PROCEDURE register_rid();
+
+INSERT INTO Request_Rid(rid)
+SELECT rid FROM Service_Request;
+
+-- A closing has to name a registered rid. Closings are deleted before their
+-- requests (see TicketArchive), and the rids of detached partitions stay in
+-- Request_Rid, so a detached closing still has its request. The check is left
+-- to the commit so an UPDATE moving a closed request to another month, which
+-- gives its rid back and takes it again, is not refused halfway.
+ALTER TABLE Closed_Request ADD FOREIGN KEY (rid) REFERENCES Request_Rid(rid)
+	DEFERRABLE INITIALLY DEFERRED;
+
+-- The same for wids: a closing registers its wid, deleting it gives the wid
+-- back and the wids of detached partitions stay taken.
+CREATE OR REPLACE FUNCTION register_wid() RETURNS TRIGGER AS $$
+BEGIN
+	IF TG_OP <> 'INSERT' THEN
+		DELETE FROM Closed_Wid WHERE wid = OLD.wid;
+	END IF;
+	IF TG_OP <> 'DELETE' THEN
+		INSERT INTO Closed_Wid(wid) VALUES (NEW.wid);
+	END IF;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER closed_request_wid AFTER INSERT OR DELETE OR UPDATE OF wid ON Closed_Request
+	FOR EACH ROW EXECUTE PROCEDURE register_wid();
+
+INSERT INTO Closed_Wid(wid)
+SELECT wid FROM Closed_Request;
+
+-- New wids are drawn from here by CloseServiceRequest, so one given back by
+-- an archived or detached closing is not handed out again.
+CREATE SEQUENCE closed_request_wid_seq;
+SELECT setval('closed_request_wid_seq', coalesce(max(wid), 0) + 1, false) FROM Closed_Request;
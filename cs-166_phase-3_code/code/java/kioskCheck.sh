@@ -0,0 +1,74 @@
+#! /bin/bash
+# Checks kiosk mode across a database outage:
+#  1. stops the database and starts the shop, which has to come up offline;
+#  2. adds a customer, which has to be kept in the local store;
+#  3. quits and starts the shop again, still offline, over the same store;
+#  4. starts the database and waits for the customer to be shipped to it.
+# Run it from this folder after compile.sh, with PGDATA, PGSOCKETS and
+# PGPORT set as by startPostgreSQL.sh.
+#
+# Example: ./kioskCheck.sh flightDB 9998 user
+DBNAME=$1
+PORT=$2
+USER=$3
+folder=/tmp/$USER
+KIOSK=$folder/kiosk-check
+OUT=$folder/kiosk-check.out
+WAIT=${WAIT:-60}
+
+fail() {
+	echo "FAIL: $1"
+	echo "--- shop output ($OUT) ---"
+	cat $OUT
+	exit 1
+}
+
+sql() {
+	psql -h localhost -p $PORT -d $DBNAME -U $USER -tAc "$1"
+}
+
+startdb() {
+	pg_ctl -o "-c unix_socket_directories=$PGSOCKETS -p $PGPORT" -D $PGDATA -l $folder/logfile -w start
+}
+
+stopdb() {
+	pg_ctl -D $PGDATA -m fast -w stop
+}
+
+# runs the shop over the kiosk store with the given menu input
+shop() {
+	printf "$1" | java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER --kiosk=$KIOSK >> $OUT 2>&1
+}
+
+rm -rf $KIOSK $OUT
+ID=$(sql "SELECT coalesce(max(id), 0) + 1 FROM Customer") || { echo "FAIL: the database has to be running at the start"; exit 1; }
+
+stopdb || fail "could not stop the database"
+shop "1\n$ID\nKiosk\nCheck\n5550100\n1 Offline Way\n11\n"
+grep -q "started offline" $OUT || fail "the shop did not start offline"
+grep -q "Customer $ID saved offline" $OUT || fail "customer $ID was not kept locally"
+
+# the change log has to survive a restart while still offline
+shop "11\n"
+[ $(grep -c "started offline" $OUT) -eq 2 ] || fail "the shop did not start offline a second time"
+
+startdb || fail "could not start the database"
+# a shop in kiosk mode ships what an earlier run left; keep one running until the row shows up
+mkfifo $KIOSK.in
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER --kiosk=$KIOSK < $KIOSK.in >> $OUT 2>&1 &
+exec 3> $KIOSK.in
+found=0
+for i in $(seq $WAIT); do
+	if [ "$(sql "SELECT count(*) FROM Customer WHERE id = $ID AND trim(fname) = 'Kiosk'")" = "1" ]; then
+		found=1
+		break
+	fi
+	sleep 1
+done
+printf "11\n" >&3
+exec 3>&-
+wait
+rm -f $KIOSK.in
+[ $found -eq 1 ] || fail "customer $ID did not reach the database within $WAIT s"
+[ -s $KIOSK/conflicts ] && fail "the change was listed as a conflict"
+echo "PASS: customer $ID was taken offline, kept across a restart and shipped"
@@ -2,6 +2,8 @@
 DBNAME=$1
 PORT=$2
 USER=$3
+shift 3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER
+# Example: source ./run.sh flightDB 9998 user --replica=localhost:9999
+java -cp lib/*:bin/ MechanicShop $DBNAME $PORT $USER "$@"
@@ -0,0 +1,241 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class runs statements without blocking the caller. Every method
+ * returns a CompletableFuture at once; the work runs on threads of its own
+ * over pooled connections, so a caller can keep many operations in flight
+ * and only wait where it needs a result.
+ *
+ * Updates waiting in the queue are pipelined: a worker takes up to
+ * MAX_PIPELINE of them and sends them as one JDBC batch, which the driver
+ * writes to the connection without waiting for each reply, and commits
+ * them together. When the batch fails it is rolled back and its updates
+ * are run one at a time, so one bad update fails only its own future.
+ * Updates submitted without waiting on each other may therefore run in any
+ * order; chain them with thenCompose when the order matters.
+ *
+ */
+public class AsyncExecutor{
+	private static final int MAX_PIPELINE = 64;
+
+	//an update and the future its caller holds
+	private static class Pending {
+		final String sql;
+		final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		Pending(String sql) {
+			this.sql = sql;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final int _threads;
+	private final ExecutorService _executor;
+	private final Queue<Pending> _updates = new ConcurrentLinkedQueue<Pending>();
+	//workers draining _updates, at most _threads
+	private final AtomicInteger _draining = new AtomicInteger();
+
+	/**
+	 * @param pool connections to run on
+	 * @param threads operations that run at the same time, at most the size
+	 *        of the pool to be useful
+	 */
+	public AsyncExecutor(ConnectionPool pool, int threads) {
+		_pool = pool;
+		_threads = threads;
+		_executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "async-sql");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Method to run an update (INSERT, UPDATE, DELETE, ...).
+	 *
+	 * @return the number of rows it changed, or Statement.SUCCESS_NO_INFO
+	 *         when it ran in a batch the driver gave no count for
+	 */
+	public CompletableFuture<Integer> executeUpdateAsync(String sql) {
+		Pending pending = new Pending(sql);
+		_updates.add(pending);
+		schedule();
+		return pending.future;
+	}
+
+	/**
+	 * Method to run a query.
+	 *
+	 * @return the rows as strings, like executeQueryAndReturnResult
+	 */
+	public CompletableFuture<List<List<String>>> queryAsync(final String query) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				Connection connection = _pool.borrow();
+				try {
+					return ReportCache.load(connection, query).rows;
+				}finally{
+					_pool.release(connection);
+				}
+			}catch(SQLException e){
+				throw new CompletionException(e);
+			}
+		}, _executor);
+	}
+
+	/**
+	 * Method to stop the worker threads. Updates still queued fail; the pool
+	 * is left open.
+	 */
+	public void shutdown() {
+		_executor.shutdownNow();
+		fail(new SQLException("asynchronous executor is shut down", "08003"));
+	}
+
+	//starts another worker on the queue unless every thread already drains it
+	private void schedule() {
+		while (true) {
+			int draining = _draining.get();
+			if (draining >= _threads) return;
+			if (_draining.compareAndSet(draining, draining + 1)) break;
+		}
+		try {
+			_executor.execute(this::drain);
+		}catch(RuntimeException e){
+			// shut down
+			_draining.decrementAndGet();
+			fail(new SQLException("asynchronous executor is shut down", "08003"));
+		}
+	}
+
+	private void drain() {
+		try {
+			Connection connection;
+			try {
+				connection = _pool.borrow();
+			}catch(SQLException e){
+				fail(e);
+				return;
+			}
+			try {
+				List<Pending> batch;
+				while (!(batch = next()).isEmpty()) runPipeline(connection, batch);
+			}finally{
+				_pool.release(connection);
+			}
+		}finally{
+			_draining.decrementAndGet();
+			// an update queued after the last poll found every worker busy
+			if (!_updates.isEmpty()) schedule();
+		}
+	}
+
+	private void fail(SQLException e) {
+		Pending pending;
+		while ((pending = _updates.poll()) != null) pending.future.completeExceptionally(e);
+	}
+
+	private List<Pending> next() {
+		List<Pending> batch = new ArrayList<Pending>();
+		Pending pending;
+		while (batch.size() < MAX_PIPELINE && (pending = _updates.poll()) != null) batch.add(pending);
+		return batch;
+	}
+
+	private static void runPipeline(Connection connection, List<Pending> batch) {
+		if (batch.size() > 1) {
+			try {
+				int[] counts;
+				connection.setAutoCommit(false);
+				try {
+					Statement stmt = connection.createStatement();
+					try {
+						for (Pending pending : batch) stmt.addBatch(pending.sql);
+						counts = stmt.executeBatch();
+					}finally{
+						stmt.close();
+					}
+					connection.commit();
+				}catch(SQLException e){
+					connection.rollback();
+					throw e;
+				}finally{
+					connection.setAutoCommit(true);
+				}
+				for (int i = 0; i < batch.size(); i++) batch.get(i).future.complete(counts[i]);
+				return;
+			}catch(SQLException e){
+				// rolled back as a whole; find the update that failed
+			}
+		}
+		for (Pending pending : batch) {
+			try {
+				Statement stmt = connection.createStatement();
+				try {
+					pending.future.complete(stmt.executeUpdate(pending.sql));
+				}finally{
+					stmt.close();
+				}
+			}catch(SQLException e){
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Benchmark of many small updates: one at a time on one connection
+	 * against all of them in flight at once, in a scratch table that is
+	 * dropped afterwards.
+	 *
+	 * @param args <dbname> <port> <user> [updates] [threads]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] AsyncExecutor <dbname> <port> <user> [updates] [threads]");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		String user = args[2];
+		String passwd = "#BlackpinkLisa1";
+		int updates = args.length > 3 ? Integer.parseInt(args[3]) : 10000;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+		Class.forName("org.postgresql.Driver");
+
+		Connection single = DriverManager.getConnection(url, user, passwd);
+		Statement stmt = single.createStatement();
+		stmt.execute("CREATE TABLE async_bench (id INTEGER PRIMARY KEY, note TEXT)");
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < updates; i++) stmt.executeUpdate("INSERT INTO async_bench VALUES (" + i + ", 'blocking')");
+			long blocking = (System.nanoTime() - start) / 1000000;
+			stmt.execute("TRUNCATE async_bench");
+
+			ConnectionPool pool = new ConnectionPool(url, user, passwd, threads);
+			AsyncExecutor async = new AsyncExecutor(pool, threads);
+			start = System.nanoTime();
+			List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+			for (int i = 0; i < updates; i++) futures.add(async.executeUpdateAsync("INSERT INTO async_bench VALUES (" + i + ", 'async')"));
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+			long pipelined = (System.nanoTime() - start) / 1000000;
+			async.shutdown();
+			pool.close();
+			System.out.println(updates + " updates: blocking " + blocking + " ms, async with " + threads + " connection(s) " + pipelined + " ms, speedup "
+				+ String.format("%.2f", (double) blocking / Math.max(1, pipelined)));
+		}finally{
+			stmt.execute("DROP TABLE async_bench");
+			single.close();
+		}
+	}
+}
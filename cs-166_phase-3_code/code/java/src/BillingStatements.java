@@ -0,0 +1,236 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is the batch job that writes a billing statement for every
+ * customer, one file each. All closed tickets are read through one cursor
+ * ordered by customer, so the job makes a single query and holds one
+ * customer's tickets at a time while the rows stream in fetchSize at a
+ * time. Finished statements are written by a few threads in parallel
+ * behind a short bounded queue.
+ *
+ * A checkpoint file holds the highest customer id below which every
+ * statement is written. A restarted job resumes after it; statements
+ * written past it before the stop are simply written again. A run that
+ * finishes removes the checkpoint, so the next run bills from the start.
+ *
+ */
+public class BillingStatements{
+	static final String QUERY = "SELECT c.id, trim(c.fname), trim(c.lname), trim(c.address), cr.date, sr.rid, sr.car_vin, car.make, car.model, car.year, cr.comment, cr.bill "
+		+ "FROM Customer c, Service_Request sr, Closed_Request cr, Car car "
+		+ "WHERE sr.customer_id = c.id AND cr.rid = sr.rid AND car.vin = sr.car_vin AND c.id > ?%s "
+		+ "ORDER BY c.id, cr.date, cr.wid";
+	//rows per round trip of the cursor
+	static final int FETCH_SIZE = 1000;
+	//statements between two checkpoint writes
+	static final int CHECKPOINT_EVERY = 500;
+
+	/**
+	 * One customer's statement, built while the cursor is on their rows.
+	 */
+	static class Statement {
+		final int customerId;
+		final String name;
+		final String address;
+		final List<String> lines = new ArrayList<String>();
+		long total = 0;
+
+		Statement(ResultSet rs) throws SQLException {
+			customerId = rs.getInt(1);
+			name = rs.getString(2) + " " + rs.getString(3);
+			address = rs.getString(4);
+		}
+
+		void add(ResultSet rs) throws SQLException {
+			lines.add(rs.getString(5) + "\t#" + rs.getInt(6) + "\t" + rs.getString(7) + " " + rs.getString(8).trim() + " " + rs.getString(9).trim() + " " + rs.getInt(10)
+				+ "\t" + rs.getString(11) + "\t" + rs.getInt(12));
+			total += rs.getInt(12);
+		}
+
+		void write(File dir) throws IOException {
+			File file = new File(dir, "customer_" + customerId + ".txt");
+			File tmp = new File(dir, file.getName() + ".tmp");
+			PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8));
+			try {
+				out.println("Statement for customer " + customerId);
+				out.println(name);
+				out.println(address);
+				out.println();
+				out.println("closed\tticket\tcar\tcomment\tbill");
+				for (String line : lines) out.println(line);
+				out.println();
+				out.println("Total\t" + total);
+			}finally{
+				out.close();
+			}
+			if (out.checkError()) throw new IOException("could not write " + tmp);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private final File _dir;
+	private final String _month;
+	private final int _writers;
+	private final File _checkpoint;
+	//customers submitted to the writers and not yet written
+	private final ConcurrentSkipListSet<Integer> _inFlight = new ConcurrentSkipListSet<Integer>();
+	private final AtomicLong _written = new AtomicLong();
+	private final AtomicReference<Exception> _failure = new AtomicReference<Exception>();
+
+	/**
+	 * @param dir where the statements and the checkpoint go
+	 * @param month yyyy-mm to bill only tickets closed that month, or null
+	 *        for every ticket
+	 * @param writers threads writing statement files
+	 */
+	public BillingStatements(File dir, String month, int writers) {
+		_dir = dir;
+		_month = month;
+		_writers = writers;
+		_checkpoint = new File(dir, "checkpoint");
+	}
+
+	/**
+	 * Method to write every statement not written by an earlier run.
+	 *
+	 * @param connection where to read the tickets; its auto-commit is
+	 *        turned off while the cursor is open
+	 * @return the number of statements written by this run
+	 * @throws java.lang.Exception when reading or writing failed; the
+	 *         checkpoint then still tells where to resume
+	 */
+	public long run(Connection connection) throws Exception {
+		if (!_dir.isDirectory() && !_dir.mkdirs()) throw new IOException("cannot create " + _dir);
+		int resumeAfter = readCheckpoint();
+		if (resumeAfter != Integer.MIN_VALUE) System.out.println("resuming after customer " + resumeAfter);
+		String period = "";
+		if (_month != null) {
+			// the upper bound on sr.date is implied, but lets Postgres prune its partitions too
+			String first = java.sql.Date.valueOf(_month + "-01").toString();
+			period = " AND cr.date >= DATE '" + first + "' AND cr.date < DATE '" + first + "' + INTERVAL '1 month'"
+				+ " AND sr.date < DATE '" + first + "' + INTERVAL '1 month'";
+		}
+		ThreadPoolExecutor writers = new ThreadPoolExecutor(_writers, _writers, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(_writers * 4), r -> {
+				Thread thread = new Thread(r, "statement-writer");
+				thread.setDaemon(true);
+				return thread;
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		long start = System.nanoTime();
+		int lastSubmitted = resumeAfter;
+		boolean autoCommit = connection.getAutoCommit();
+		// the driver only streams with fetchSize inside a transaction
+		connection.setAutoCommit(false);
+		PreparedStatement stmt = connection.prepareStatement(String.format(QUERY, period));
+		try {
+			stmt.setFetchSize(FETCH_SIZE);
+			stmt.setInt(1, resumeAfter);
+			ResultSet rs = stmt.executeQuery();
+			Statement current = null;
+			while (rs.next() && _failure.get() == null) {
+				if (current == null || current.customerId != rs.getInt(1)) {
+					if (current != null) lastSubmitted = submit(writers, current);
+					current = new Statement(rs);
+				}
+				current.add(rs);
+			}
+			if (current != null && _failure.get() == null) lastSubmitted = submit(writers, current);
+		}finally{
+			stmt.close();
+			connection.commit();
+			connection.setAutoCommit(autoCommit);
+			writers.shutdown();
+			writers.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			writeCheckpoint(_inFlight.isEmpty() ? lastSubmitted : _inFlight.first() - 1);
+		}
+		if (_failure.get() != null) throw _failure.get();
+		// every statement is written; nothing left to resume
+		Files.deleteIfExists(_checkpoint.toPath());
+		long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+		System.out.println(_written.get() + " statements in " + millis + " ms, " + String.format("%.0f", _written.get() * 1000.0 / millis) + " statements/s");
+		return _written.get();
+	}
+
+	private int submit(ThreadPoolExecutor writers, final Statement statement) {
+		_inFlight.add(statement.customerId);
+		writers.execute(() -> {
+			try {
+				statement.write(_dir);
+				_inFlight.remove(statement.customerId);
+				long written = _written.incrementAndGet();
+				if (written % CHECKPOINT_EVERY == 0) checkpoint();
+			}catch(Exception e){
+				// stays in flight, so the checkpoint never passes it
+				_failure.compareAndSet(null, e);
+			}
+		});
+		return statement.customerId;
+	}
+
+	/*
+	 * Every customer below the lowest one still in flight is written, since
+	 * customers are submitted in id order.
+	 */
+	private synchronized void checkpoint() throws IOException {
+		if (_inFlight.isEmpty()) return;
+		writeCheckpoint(_inFlight.first() - 1);
+	}
+
+	private synchronized void writeCheckpoint(int customerId) throws IOException {
+		if (customerId == Integer.MIN_VALUE) return;
+		File tmp = new File(_dir, "checkpoint.tmp");
+		FileWriter out = new FileWriter(tmp);
+		try {
+			out.write((_month == null ? "all" : _month) + " " + customerId + "\n");
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), _checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//the customer to resume after, or MIN_VALUE when starting over
+	private int readCheckpoint() throws IOException {
+		if (!_checkpoint.exists()) return Integer.MIN_VALUE;
+		String[] fields = new String(Files.readAllBytes(_checkpoint.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		if (fields.length != 2 || !fields[0].equals(_month == null ? "all" : _month)) return Integer.MIN_VALUE;
+		return Integer.parseInt(fields[1]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: java [-classpath <classpath>] BillingStatements <dbname> <port> <user> <output dir> [yyyy-mm] [writers]");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		String user = args[2];
+		String passwd = "#BlackpinkLisa1";
+		String month = args.length > 4 && !args[4].equals("all") ? args[4] : null;
+		int writers = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+		Class.forName("org.postgresql.Driver");
+		Connection connection = DriverManager.getConnection(url, user, passwd);
+		try {
+			File dir = new File(args[3], month == null ? "all" : month);
+			new BillingStatements(dir, month, writers).run(connection);
+		}finally{
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * This class is a Bloom filter over string keys: it answers "certainly not
+ * present" or "maybe present" from a fixed bit array, with false positives
+ * at about the rate it was sized for and no false negatives. Each key sets
+ * k bits picked by double hashing of one 64-bit FNV-1a hash.
+ *
+ */
+public class BloomFilter{
+	private final long[] _bits;
+	private final long _numBits;
+	private final int _numHashes;
+
+	/**
+	 * @param expectedKeys keys the filter will hold
+	 * @param falsePositiveRate wanted rate of "maybe" for absent keys
+	 */
+	public BloomFilter(long expectedKeys, double falsePositiveRate) {
+		long n = Math.max(1, expectedKeys);
+		long m = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		m = Math.max(64, m);
+		_bits = new long[(int) ((m + 63) / 64)];
+		_numBits = _bits.length * 64L;
+		_numHashes = Math.max(1, (int) Math.round((double) _numBits / n * Math.log(2)));
+	}
+
+	public synchronized void add(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= _numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % _numBits;
+			_bits[(int) (bit >>> 6)] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @return false when the key was certainly never added
+	 */
+	public synchronized boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= _numHashes; i++) {
+			long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % _numBits;
+			if ((_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	public long sizeInBytes() {
+		return _bits.length * 8L;
+	}
+
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		// FNV mixes the low bits poorly for short keys such as small ids
+		return mix(h);
+	}
+
+	//the murmur3 finalizer, which spreads every input bit over the result
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * This class answers "customers with more than N cars" in-process. The
+ * per-customer counts of Customer_Car_Count are held as an int array
+ * sorted by count, with the customer ids and names in parallel arrays, so
+ * a report is a binary search for the first count above N and a copy of
+ * the rest. It is reloaded as a whole after the InvalidationBus reports a
+ * change to Owns or Customer.
+ *
+ */
+public class CarCountIndex implements InvalidationBus.Listener{
+	static final String LOAD = "SELECT n.cars, n.customer_id, trim(c.fname), trim(c.lname) FROM Customer_Car_Count n, Customer c "
+		+ "WHERE c.id = n.customer_id AND n.cars > 0 ORDER BY n.cars, n.customer_id";
+	//customers whose count differs from Owns, as reconcile_car_counts would find them
+	static final String MISMATCHES = "SELECT a.customer_id, a.cars AS owns, n.cars AS counted FROM "
+		+ "(SELECT c.id AS customer_id, count(o.ownership_id) AS cars FROM Customer c LEFT JOIN Owns o ON o.customer_id = c.id GROUP BY c.id) AS a "
+		+ "LEFT JOIN Customer_Car_Count n ON n.customer_id = a.customer_id "
+		+ "WHERE n.cars IS DISTINCT FROM a.cars AND NOT (n.cars IS NULL AND a.cars = 0) ORDER BY a.customer_id";
+
+	private int[] _cars = new int[0];
+	private int[] _customers = new int[0];
+	private String[] _fnames = new String[0];
+	private String[] _lnames = new String[0];
+	private volatile boolean _stale = true;
+
+	public boolean isStale() {
+		return _stale;
+	}
+
+	/**
+	 * Method to read every count into fresh arrays.
+	 *
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	public void load(Connection connection) throws SQLException {
+		// cleared first, so a change during the load marks it stale again
+		_stale = false;
+		int[] cars = new int[64];
+		int[] customers = new int[64];
+		List<String> fnames = new ArrayList<String>();
+		List<String> lnames = new ArrayList<String>();
+		int n = 0;
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(LOAD);
+			while (rs.next()) {
+				if (n == cars.length) {
+					cars = Arrays.copyOf(cars, n * 2);
+					customers = Arrays.copyOf(customers, n * 2);
+				}
+				cars[n] = rs.getInt(1);
+				customers[n] = rs.getInt(2);
+				fnames.add(StringDictionary.SHARED.intern(rs.getString(3)));
+				lnames.add(StringDictionary.SHARED.intern(rs.getString(4)));
+				n++;
+			}
+		}catch(SQLException e){
+			_stale = true;
+			throw e;
+		}finally{
+			stmt.close();
+		}
+		synchronized (this) {
+			_cars = Arrays.copyOf(cars, n);
+			_customers = Arrays.copyOf(customers, n);
+			_fnames = fnames.toArray(new String[n]);
+			_lnames = lnames.toArray(new String[n]);
+		}
+	}
+
+	/**
+	 * Method to list the customers owning more than a number of cars.
+	 *
+	 * @param cars the number to exceed
+	 * @return fname, lname and numcars, most cars first and then by
+	 *         customer id, as QUERY_CUSTOMERS_WITH_MORE_THAN_N_CARS orders them
+	 */
+	public synchronized ReportCache.Result moreThan(int cars) {
+		// first index whose count is above cars
+		int lo = 0;
+		int hi = _cars.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_cars[mid] <= cars) lo = mid + 1;
+			else hi = mid;
+		}
+		List<List<String>> rows = new ArrayList<List<String>>(_cars.length - lo);
+		// counts from the highest down, each count's customers in id order
+		int end = _cars.length;
+		while (end > lo) {
+			int start = end - 1;
+			while (start > lo && _cars[start - 1] == _cars[end - 1]) start--;
+			for (int i = start; i < end; i++) {
+				rows.add(Arrays.asList(_fnames[i], _lnames[i], Integer.toString(_cars[i])));
+			}
+			end = start;
+		}
+		return new ReportCache.Result(Arrays.asList("fname", "lname", "numcars"), rows, null);
+	}
+
+	public void invalidate(String table, Set<String> keys) {
+		if (table.equals("owns") || table.equals("customer")) _stale = true;
+	}
+}
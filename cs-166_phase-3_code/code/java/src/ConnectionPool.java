@@ -0,0 +1,115 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class hands out up to a fixed number of connections to the primary
+ * for work that runs on several connections at once. Connections are opened
+ * the first time they are needed and reused afterwards; one that comes back
+ * broken is closed and replaced on the next borrow.
+ *
+ */
+public class ConnectionPool{
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _size;
+	private final BlockingQueue<Connection> _idle = new LinkedBlockingQueue<Connection>();
+	private final List<Connection> _all = new ArrayList<Connection>();
+	private int _open = 0;
+	private boolean _closed = false;
+
+	public ConnectionPool(String url, String user, String passwd, int size) {
+		_url = url;
+		_user = user;
+		_passwd = passwd;
+		_size = size;
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Method to take a connection, waiting when all of them are in use.
+	 *
+	 * @return a connection in autocommit mode
+	 * @throws java.sql.SQLException when a new connection could not be opened
+	 */
+	public Connection borrow() throws SQLException {
+		while (true) {
+			Connection connection = _idle.poll();
+			if (connection != null) return connection;
+			synchronized (this) {
+				if (_closed) throw new SQLException("connection pool is closed", "08003");
+				if (_open < _size) {
+					_open++;
+					try {
+						connection = DriverManager.getConnection(_url, _user, _passwd);
+					}catch(SQLException e){
+						_open--;
+						throw e;
+					}
+					_all.add(connection);
+					return connection;
+				}
+			}
+			try {
+				// wake up now and then in case a broken connection freed a slot
+				connection = _idle.poll(100, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("interrupted while waiting for a connection", "57014");
+			}
+			if (connection != null) return connection;
+		}
+	}
+
+	/**
+	 * Method to give a connection back. An open transaction is rolled back
+	 * and the connection returned to autocommit.
+	 *
+	 * @param connection a connection obtained from borrow()
+	 */
+	public void release(Connection connection) {
+		try {
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			_idle.add(connection);
+		}catch(SQLException e){
+			try {
+				connection.close();
+			}catch(SQLException ignored){
+				// ignored.
+			}
+			synchronized (this) {
+				_all.remove(connection);
+				_open--;
+			}
+		}
+	}
+
+	/**
+	 * Method to close every connection of the pool.
+	 */
+	public synchronized void close() {
+		_closed = true;
+		for (Connection connection : _all) {
+			try {
+				connection.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		_all.clear();
+		_idle.clear();
+	}
+}
@@ -0,0 +1,156 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * This class counts how often each key was added, approximately, in a
+ * fixed depth x width table of counters, and keeps the keys with the
+ * highest counts as heavy-hitter candidates. An estimate is never below
+ * the true count, and exceeds it by more than e / width of all additions
+ * with probability at most e^-depth: with the default 4 x 1024 (16 KB)
+ * that is 0.27% of the total, failing for at most 1.8% of keys. A key
+ * whose true share is above that bound is among the candidates as long
+ * as fewer than the candidate limit are.
+ *
+ * Sketches of the same dimensions merge into the sketch of both streams.
+ *
+ */
+public class CountMinSketch{
+	public static final int DEFAULT_DEPTH = 4;
+	public static final int DEFAULT_WIDTH = 1024;
+	public static final int DEFAULT_CANDIDATES = 32;
+
+	private final int _depth;
+	private final int _width;
+	private final int[] _counts;
+	private final int _maxCandidates;
+	//heavy-hitter candidates with their estimate when last counted
+	private final Map<String, Integer> _candidates = new HashMap<String, Integer>();
+	private long _total = 0;
+
+	public CountMinSketch(int depth, int width, int maxCandidates) {
+		_depth = depth;
+		_width = width;
+		_counts = new int[depth * width];
+		_maxCandidates = maxCandidates;
+	}
+
+	public CountMinSketch() {
+		this(DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_CANDIDATES);
+	}
+
+	public synchronized void add(String key) {
+		long hash = BloomFilter.hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < _depth; row++) {
+			int cell = row * _width + (int) (((h1 + (long) (row + 1) * h2) & Long.MAX_VALUE) % _width);
+			estimate = Math.min(estimate, ++_counts[cell]);
+		}
+		_total++;
+		offer(key, estimate);
+	}
+
+	public synchronized int estimate(String key) {
+		long hash = BloomFilter.hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < _depth; row++) {
+			int cell = row * _width + (int) (((h1 + (long) (row + 1) * h2) & Long.MAX_VALUE) % _width);
+			estimate = Math.min(estimate, _counts[cell]);
+		}
+		return estimate;
+	}
+
+	public synchronized long total() {
+		return _total;
+	}
+
+	/**
+	 * @return the most an estimate overcounts, with probability 1 - e^-depth
+	 */
+	public synchronized long errorBound() {
+		return (long) Math.ceil(Math.E / _width * _total);
+	}
+
+	/**
+	 * Method to list the keys with the highest estimates.
+	 *
+	 * @param k keys to list, at most the candidate limit
+	 * @return key and estimate pairs, highest first
+	 */
+	public synchronized List<Map.Entry<String, Integer>> top(int k) {
+		List<Map.Entry<String, Integer>> top = new ArrayList<Map.Entry<String, Integer>>();
+		for (String key : _candidates.keySet()) {
+			top.add(new java.util.AbstractMap.SimpleEntry<String, Integer>(key, estimate(key)));
+		}
+		top.sort((a, b) -> {
+			int c = Integer.compare(b.getValue(), a.getValue());
+			return c != 0 ? c : a.getKey().compareTo(b.getKey());
+		});
+		return top.size() > k ? new ArrayList<Map.Entry<String, Integer>>(top.subList(0, k)) : top;
+	}
+
+	/**
+	 * Method to add the counts and candidates of another sketch to this one.
+	 */
+	public synchronized void merge(CountMinSketch other) {
+		if (other._depth != _depth || other._width != _width) throw new IllegalArgumentException("cannot merge sketches of different dimensions");
+		List<String> keys;
+		synchronized (other) {
+			for (int i = 0; i < _counts.length; i++) _counts[i] += other._counts[i];
+			_total += other._total;
+			keys = new ArrayList<String>(other._candidates.keySet());
+		}
+		keys.addAll(new ArrayList<String>(_candidates.keySet()));
+		for (String key : keys) offer(key, estimate(key));
+	}
+
+	//keeps key as a candidate when there is room or it beats the weakest one
+	private void offer(String key, int estimate) {
+		if (_candidates.containsKey(key) || _candidates.size() < _maxCandidates) {
+			_candidates.put(key, estimate);
+			return;
+		}
+		String weakest = null;
+		int lowest = Integer.MAX_VALUE;
+		for (Map.Entry<String, Integer> candidate : _candidates.entrySet()) {
+			if (candidate.getValue() < lowest) {
+				lowest = candidate.getValue();
+				weakest = candidate.getKey();
+			}
+		}
+		if (estimate > lowest) {
+			_candidates.remove(weakest);
+			_candidates.put(key, estimate);
+		}
+	}
+
+	public synchronized void write(DataOutputStream out) throws IOException {
+		out.writeInt(_depth);
+		out.writeInt(_width);
+		out.writeInt(_maxCandidates);
+		out.writeLong(_total);
+		for (int count : _counts) out.writeInt(count);
+		out.writeInt(_candidates.size());
+		for (Map.Entry<String, Integer> candidate : _candidates.entrySet()) {
+			out.writeUTF(candidate.getKey());
+			out.writeInt(candidate.getValue());
+		}
+	}
+
+	public static CountMinSketch read(DataInputStream in) throws IOException {
+		CountMinSketch sketch = new CountMinSketch(in.readInt(), in.readInt(), in.readInt());
+		sketch._total = in.readLong();
+		for (int i = 0; i < sketch._counts.length; i++) sketch._counts[i] = in.readInt();
+		int candidates = in.readInt();
+		for (int i = 0; i < candidates; i++) sketch._candidates.put(in.readUTF(), in.readInt());
+		return sketch;
+	}
+}
@@ -0,0 +1,380 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class finds customers entered more than once under different ids.
+ * Names are reduced to lower-case letters, phones to their digits and
+ * addresses to lower-case words with the usual street abbreviations, and
+ * every customer is filed under a few hashed blocking keys: the phone
+ * digits, a sound-alike key of the last name with the first initial (in
+ * both name orders, for swapped entries), and the house number with the
+ * last initial. Only customers sharing a block are ever compared, so
+ * finding every duplicate costs the sum of the squared block sizes rather
+ * than n squared, and checking one new customer costs a few map lookups
+ * and a few comparisons.
+ *
+ * A pair is scored from 0 to 1 by the Jaro-Winkler similarity of the names,
+ * the phones (equal, or one digit off) and the overlap of the address
+ * words. The customers are kept in memory, read on first use; after that
+ * the InvalidationBus notices on Customer reread only the changed ids.
+ *
+ */
+public class CustomerDedup implements InvalidationBus.Listener{
+	public static final double THRESHOLD = 0.85;
+	//keys such as a shared switchboard number are not worth comparing within
+	private static final int MAX_BLOCK = 500;
+	private static final String LOAD = "SELECT id, trim(fname), trim(lname), trim(phone), trim(address) FROM Customer";
+	private static final String[][] ABBREVIATIONS = {
+		{ "street", "st" }, { "avenue", "ave" }, { "road", "rd" }, { "drive", "dr" }, { "lane", "ln" },
+		{ "boulevard", "blvd" }, { "court", "ct" }, { "place", "pl" }, { "north", "n" }, { "south", "s" },
+		{ "east", "e" }, { "west", "w" },
+	};
+
+	/**
+	 * A customer as entered and as compared.
+	 */
+	public static class Customer {
+		public final int id;
+		public final String fname;
+		public final String lname;
+		public final String phone;
+		public final String address;
+		final String normalFname;
+		final String normalLname;
+		final String digits;
+		final Set<String> words;
+
+		public Customer(int id, String fname, String lname, String phone, String address) {
+			this.id = id;
+			this.fname = fname.trim();
+			this.lname = lname.trim();
+			this.phone = phone.trim();
+			this.address = address.trim();
+			this.normalFname = letters(fname);
+			this.normalLname = letters(lname);
+			this.digits = digits(phone);
+			this.words = words(address);
+		}
+	}
+
+	/**
+	 * Two customers that look like the same person.
+	 */
+	public static class Match {
+		public final Customer a;
+		public final Customer b;
+		public final double score;
+
+		Match(Customer a, Customer b, double score) {
+			this.a = a;
+			this.b = b;
+			this.score = score;
+		}
+	}
+
+	private final Map<Integer, Customer> _customers = new HashMap<Integer, Customer>();
+	private final Map<Long, int[]> _blocks = new HashMap<Long, int[]>();
+	private volatile boolean _stale = true;
+	//ids changed by other sessions since the last read
+	private final Set<Integer> _changed = ConcurrentHashMap.newKeySet();
+
+	public boolean isStale() {
+		return _stale || !_changed.isEmpty();
+	}
+
+	/**
+	 * Method to bring the customers up to date: all of them after load() was
+	 * never run or a notice named no ids, else only the changed ids.
+	 *
+	 * @throws java.sql.SQLException when the customers could not be read
+	 */
+	public void refresh(Connection connection) throws SQLException {
+		if (_stale) {
+			// cleared first, so a change during the load marks it stale again
+			_stale = false;
+			_changed.clear();
+			List<Customer> customers;
+			try {
+				customers = read(connection, LOAD);
+			}catch(SQLException e){
+				_stale = true;
+				throw e;
+			}
+			synchronized (this) {
+				_customers.clear();
+				_blocks.clear();
+				for (Customer customer : customers) add(customer);
+			}
+			return;
+		}
+		if (_changed.isEmpty()) return;
+		Set<Integer> ids = new HashSet<Integer>(_changed);
+		_changed.removeAll(ids);
+		StringBuilder in = new StringBuilder();
+		for (int id : ids) in.append(in.length() == 0 ? "" : ", ").append(id);
+		List<Customer> customers;
+		try {
+			customers = read(connection, LOAD + " WHERE id IN (" + in + ")");
+		}catch(SQLException e){
+			_changed.addAll(ids);
+			throw e;
+		}
+		synchronized (this) {
+			// deleted ids are not read back
+			for (int id : ids) remove(id);
+			for (Customer customer : customers) add(customer);
+		}
+	}
+
+	/**
+	 * Method to file a customer, replacing what was filed under its id.
+	 */
+	public synchronized void add(Customer customer) {
+		remove(customer.id);
+		_customers.put(customer.id, customer);
+		for (long key : blockingKeys(customer)) {
+			int[] block = _blocks.get(key);
+			if (block == null) {
+				_blocks.put(key, new int[] { customer.id });
+			}else {
+				int[] grown = Arrays.copyOf(block, block.length + 1);
+				grown[block.length] = customer.id;
+				_blocks.put(key, grown);
+			}
+		}
+	}
+
+	private void remove(int id) {
+		Customer old = _customers.remove(id);
+		if (old == null) return;
+		for (long key : blockingKeys(old)) {
+			int[] block = _blocks.get(key);
+			if (block == null) continue;
+			int[] kept = new int[block.length];
+			int n = 0;
+			for (int member : block) {
+				if (member != id) kept[n++] = member;
+			}
+			if (n == 0) _blocks.remove(key);
+			else _blocks.put(key, Arrays.copyOf(kept, n));
+		}
+	}
+
+	/**
+	 * Method to find the filed customers a new one may duplicate.
+	 *
+	 * @return the matches scoring THRESHOLD or more, best first, with the
+	 *         new customer as a
+	 */
+	public synchronized List<Match> candidates(Customer customer) {
+		Set<Integer> seen = new HashSet<Integer>();
+		List<Match> matches = new ArrayList<Match>();
+		for (long key : blockingKeys(customer)) {
+			int[] block = _blocks.get(key);
+			if (block == null || block.length > MAX_BLOCK) continue;
+			for (int id : block) {
+				if (id == customer.id || !seen.add(id)) continue;
+				Customer other = _customers.get(id);
+				double score = score(customer, other);
+				if (score >= THRESHOLD) matches.add(new Match(customer, other, score));
+			}
+		}
+		matches.sort((x, y) -> Double.compare(y.score, x.score));
+		return matches;
+	}
+
+	/**
+	 * Method to find every likely duplicate pair. The blocks are scored in
+	 * parallel; a pair sharing several blocks is scored once.
+	 *
+	 * @return the pairs scoring THRESHOLD or more, best first, lower id as a
+	 */
+	public synchronized List<Match> duplicates() {
+		final Set<Long> scored = ConcurrentHashMap.newKeySet();
+		final ConcurrentLinkedQueue<Match> matches = new ConcurrentLinkedQueue<Match>();
+		_blocks.values().parallelStream().filter(block -> block.length > 1 && block.length <= MAX_BLOCK).forEach(block -> {
+			for (int i = 0; i < block.length; i++) {
+				for (int j = i + 1; j < block.length; j++) {
+					int a = Math.min(block[i], block[j]);
+					int b = Math.max(block[i], block[j]);
+					if (!scored.add(((long) a << 32) | (b & 0xffffffffL))) continue;
+					Customer first = _customers.get(a);
+					Customer second = _customers.get(b);
+					double score = score(first, second);
+					if (score >= THRESHOLD) matches.add(new Match(first, second, score));
+				}
+			}
+		});
+		List<Match> sorted = new ArrayList<Match>(matches);
+		sorted.sort((x, y) -> x.score != y.score ? Double.compare(y.score, x.score) : Integer.compare(x.a.id, y.a.id));
+		return sorted;
+	}
+
+	public void invalidate(String table, Set<String> keys) {
+		if (!table.equals("customer")) return;
+		if (keys == null) {
+			_stale = true;
+			return;
+		}
+		for (String key : keys) {
+			try {
+				_changed.add(Integer.parseInt(key));
+			}catch(NumberFormatException e){
+				_stale = true;
+			}
+		}
+	}
+
+	static double score(Customer a, Customer b) {
+		double names = 0.3 * jaroWinkler(a.normalLname, b.normalLname) + 0.2 * jaroWinkler(a.normalFname, b.normalFname);
+		// entered with first and last name swapped
+		double swapped = 0.3 * jaroWinkler(a.normalLname, b.normalFname) + 0.2 * jaroWinkler(a.normalFname, b.normalLname);
+		return Math.max(names, swapped) + 0.3 * phoneSimilarity(a.digits, b.digits) + 0.2 * overlap(a.words, b.words);
+	}
+
+	private static List<Customer> read(Connection connection, String query) throws SQLException {
+		List<Customer> customers = new ArrayList<Customer>();
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(query);
+			while (rs.next()) {
+				customers.add(new Customer(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+			}
+		}finally{
+			stmt.close();
+		}
+		return customers;
+	}
+
+	private static long[] blockingKeys(Customer customer) {
+		List<String> keys = new ArrayList<String>();
+		if (customer.digits.length() >= 7) keys.add("p:" + customer.digits);
+		if (customer.normalLname.length() > 0 && customer.normalFname.length() > 0) {
+			keys.add("n:" + soundsLike(customer.normalLname) + customer.normalFname.charAt(0));
+			keys.add("n:" + soundsLike(customer.normalFname) + customer.normalLname.charAt(0));
+		}
+		String house = houseNumber(customer.address);
+		if (house != null && customer.normalLname.length() > 0) keys.add("a:" + house + customer.normalLname.charAt(0));
+		long[] hashes = new long[keys.size()];
+		for (int i = 0; i < hashes.length; i++) hashes[i] = BloomFilter.hash(keys.get(i));
+		return hashes;
+	}
+
+	static String letters(String text) {
+		StringBuilder out = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			char c = Character.toLowerCase(text.charAt(i));
+			if (c >= 'a' && c <= 'z') out.append(c);
+		}
+		return out.toString();
+	}
+
+	//the last ten digits, so a leading country code does not count
+	static String digits(String phone) {
+		StringBuilder out = new StringBuilder(phone.length());
+		for (int i = 0; i < phone.length(); i++) {
+			char c = phone.charAt(i);
+			if (c >= '0' && c <= '9') out.append(c);
+		}
+		return out.length() > 10 ? out.substring(out.length() - 10) : out.toString();
+	}
+
+	static Set<String> words(String address) {
+		Set<String> words = new HashSet<String>();
+		for (String word : address.toLowerCase().split("[^a-z0-9]+")) {
+			if (word.isEmpty()) continue;
+			for (String[] abbreviation : ABBREVIATIONS) {
+				if (word.equals(abbreviation[0])) word = abbreviation[1];
+			}
+			words.add(word);
+		}
+		return words;
+	}
+
+	private static String houseNumber(String address) {
+		String trimmed = address.trim();
+		int end = 0;
+		while (end < trimmed.length() && Character.isDigit(trimmed.charAt(end))) end++;
+		return end == 0 ? null : trimmed.substring(0, end);
+	}
+
+	//first letter and the next three consonant sounds, as Soundex codes them
+	static String soundsLike(String name) {
+		final String codes = "01230120022455012623010202";
+		StringBuilder key = new StringBuilder().append(name.charAt(0));
+		char last = codes.charAt(name.charAt(0) - 'a');
+		for (int i = 1; i < name.length() && key.length() < 4; i++) {
+			char code = codes.charAt(name.charAt(i) - 'a');
+			if (code != '0' && code != last) key.append(code);
+			if (name.charAt(i) != 'h' && name.charAt(i) != 'w') last = code;
+		}
+		return key.toString();
+	}
+
+	static double jaroWinkler(String a, String b) {
+		if (a.isEmpty() || b.isEmpty()) return a.equals(b) ? 1 : 0;
+		int window = Math.max(0, Math.max(a.length(), b.length()) / 2 - 1);
+		boolean[] matchedA = new boolean[a.length()];
+		boolean[] matchedB = new boolean[b.length()];
+		int matches = 0;
+		for (int i = 0; i < a.length(); i++) {
+			for (int j = Math.max(0, i - window); j < Math.min(b.length(), i + window + 1); j++) {
+				if (!matchedB[j] && a.charAt(i) == b.charAt(j)) {
+					matchedA[i] = true;
+					matchedB[j] = true;
+					matches++;
+					break;
+				}
+			}
+		}
+		if (matches == 0) return 0;
+		int transpositions = 0;
+		for (int i = 0, j = 0; i < a.length(); i++) {
+			if (!matchedA[i]) continue;
+			while (!matchedB[j]) j++;
+			if (a.charAt(i) != b.charAt(j)) transpositions++;
+			j++;
+		}
+		double m = matches;
+		double jaro = (m / a.length() + m / b.length() + (m - transpositions / 2.0) / m) / 3;
+		int prefix = 0;
+		while (prefix < 4 && prefix < Math.min(a.length(), b.length()) && a.charAt(prefix) == b.charAt(prefix)) prefix++;
+		return jaro + prefix * 0.1 * (1 - jaro);
+	}
+
+	//1 for the same number, 0.8 for one digit changed or two swapped
+	static double phoneSimilarity(String a, String b) {
+		if (a.isEmpty() || b.isEmpty()) return 0;
+		if (a.equals(b)) return 1;
+		if (a.length() != b.length()) return 0;
+		int first = -1;
+		int differences = 0;
+		for (int i = 0; i < a.length(); i++) {
+			if (a.charAt(i) == b.charAt(i)) continue;
+			if (differences++ == 0) first = i;
+		}
+		if (differences == 1) return 0.8;
+		if (differences == 2 && first + 1 < a.length() && a.charAt(first) == b.charAt(first + 1) && a.charAt(first + 1) == b.charAt(first)) return 0.8;
+		return 0;
+	}
+
+	private static double overlap(Set<String> a, Set<String> b) {
+		if (a.isEmpty() || b.isEmpty()) return 0;
+		int shared = 0;
+		for (String word : a) {
+			if (b.contains(word)) shared++;
+		}
+		return (double) shared / (a.size() + b.size() - shared);
+	}
+}
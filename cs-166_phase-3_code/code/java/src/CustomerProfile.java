@@ -0,0 +1,154 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * This class is everything the desk shows about one customer: the customer,
+ * the cars they own, their open and closed tickets and what they have been
+ * billed in total. The whole profile is built by the server as one JSON
+ * document, so loading it is one round trip however many cars and tickets
+ * the customer has.
+ *
+ */
+public class CustomerProfile{
+	static final String QUERY = "SELECT json_build_object("
+		+ "'id', c.id, 'fname', trim(c.fname), 'lname', trim(c.lname), 'phone', trim(c.phone), 'address', trim(c.address), "
+		+ "'cars', COALESCE((SELECT json_agg(json_build_object('vin', car.vin, 'make', car.make, 'model', car.model, 'year', car.year) ORDER BY car.vin) "
+		+ "FROM Owns o, Car car WHERE car.vin = o.car_vin AND o.customer_id = c.id), '[]'), "
+		+ "'tickets', COALESCE((SELECT json_agg(json_build_object('rid', sr.rid, 'vin', sr.car_vin, 'date', sr.date, 'odometer', sr.odometer, 'complain', sr.complain, "
+		+ "'closed', cr.date, 'mid', cr.mid, 'comment', cr.comment, 'bill', cr.bill) ORDER BY sr.date, sr.rid) "
+		+ "FROM Service_Request sr LEFT JOIN Closed_Request cr ON cr.rid = sr.rid WHERE sr.customer_id = c.id), '[]'), "
+		+ "'bill', (SELECT COALESCE(SUM(cr.bill), 0) FROM Service_Request sr, Closed_Request cr WHERE cr.rid = sr.rid AND sr.customer_id = c.id)"
+		+ ")::text FROM Customer c WHERE c.id = ?";
+
+	public static class Car {
+		final String vin;
+		final String make;
+		final String model;
+		final int year;
+
+		Car(Map<String, Object> json) {
+			vin = (String) json.get("vin");
+			make = (String) json.get("make");
+			model = (String) json.get("model");
+			year = ((Long) json.get("year")).intValue();
+		}
+	}
+
+	/**
+	 * A service request; the closing fields are null while it is open.
+	 */
+	public static class Ticket {
+		final int rid;
+		final String vin;
+		final String date;
+		final int odometer;
+		final String complain;
+		final String closed;
+		final Integer mid;
+		final String comment;
+		final Integer bill;
+
+		Ticket(Map<String, Object> json) {
+			rid = ((Long) json.get("rid")).intValue();
+			vin = (String) json.get("vin");
+			date = (String) json.get("date");
+			odometer = ((Long) json.get("odometer")).intValue();
+			complain = (String) json.get("complain");
+			closed = (String) json.get("closed");
+			mid = json.get("mid") == null ? null : ((Long) json.get("mid")).intValue();
+			comment = (String) json.get("comment");
+			bill = json.get("bill") == null ? null : ((Long) json.get("bill")).intValue();
+		}
+
+		boolean isOpen() {
+			return closed == null;
+		}
+	}
+
+	final int id;
+	final String fname;
+	final String lname;
+	final String phone;
+	final String address;
+	final List<Car> cars = new ArrayList<Car>();
+	final List<Ticket> openTickets = new ArrayList<Ticket>();
+	final List<Ticket> closedTickets = new ArrayList<Ticket>();
+	final long lifetimeBill;
+
+	@SuppressWarnings("unchecked")
+	CustomerProfile(Map<String, Object> json) {
+		id = ((Long) json.get("id")).intValue();
+		fname = (String) json.get("fname");
+		lname = (String) json.get("lname");
+		phone = (String) json.get("phone");
+		address = (String) json.get("address");
+		for (Object car : (List<Object>) json.get("cars")) {
+			cars.add(new Car((Map<String, Object>) car));
+		}
+		for (Object t : (List<Object>) json.get("tickets")) {
+			Ticket ticket = new Ticket((Map<String, Object>) t);
+			(ticket.isOpen() ? openTickets : closedTickets).add(ticket);
+		}
+		lifetimeBill = ((Number) json.get("bill")).longValue();
+	}
+
+	/**
+	 * Method to load a profile.
+	 *
+	 * @param connection where to run the query
+	 * @param id the customer id
+	 * @return the profile, or null when there is no such customer
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	@SuppressWarnings("unchecked")
+	public static CustomerProfile load(Connection connection, int id) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(QUERY);
+		try {
+			stmt.setInt(1, id);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) return null;
+			return new CustomerProfile((Map<String, Object>) Json.parse(rs.getString(1)));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to tell whether the profile lists a car or a ticket.
+	 */
+	boolean mentionsVin(String vin) {
+		for (Car car : cars) if (car.vin.equals(vin)) return true;
+		return false;
+	}
+
+	boolean mentionsRequest(int rid) {
+		for (Ticket ticket : openTickets) if (ticket.rid == rid) return true;
+		for (Ticket ticket : closedTickets) if (ticket.rid == rid) return true;
+		return false;
+	}
+
+	/**
+	 * Method to print the profile for the desk.
+	 */
+	public void print() {
+		System.out.println("Customer " + id + ": " + fname + " " + lname + ", " + phone + ", " + address);
+		System.out.println("Cars (" + cars.size() + ")");
+		for (Car car : cars) {
+			System.out.println("\t" + car.vin + "\t" + car.make + "\t" + car.model + "\t" + car.year);
+		}
+		System.out.println("Open tickets (" + openTickets.size() + ")");
+		for (Ticket t : openTickets) {
+			System.out.println("\t" + t.rid + "\t" + t.date + "\t" + t.vin + "\t" + t.odometer + "\t" + t.complain);
+		}
+		System.out.println("Closed tickets (" + closedTickets.size() + ")");
+		for (Ticket t : closedTickets) {
+			System.out.println("\t" + t.rid + "\t" + t.date + "\t" + t.vin + "\tclosed " + t.closed + " by " + t.mid + "\t" + t.bill + "\t" + t.comment);
+		}
+		System.out.println("Lifetime bill: " + lifetimeBill);
+	}
+}
@@ -0,0 +1,243 @@
+import java.sql.SQLException;
+import java.util.Random;
+
+/**
+ * This class decides how a database operation is retried. Failures are
+ * classified by SQLState: lost connections, serialization failures,
+ * deadlocks, resource shortages and a server shutting down are worth
+ * retrying; everything else (duplicate keys, bad input, constraint
+ * violations) is reported to the caller at once.
+ *
+ * Retries wait an exponentially growing, fully jittered delay and draw on a
+ * retry budget that only refills as operations are started, so a storm of
+ * failures cannot multiply the load on the server. Consecutive availability
+ * failures trip a circuit breaker: while it is open every operation fails
+ * immediately, and after a cool-down a single trial operation decides
+ * whether it closes again.
+ *
+ */
+public class ExecutionPolicy{
+	//SQLState used for operations refused while the circuit is open
+	public static final String CIRCUIT_OPEN_STATE = "08004";
+
+	private static final int CLOSED = 0;
+	private static final int OPEN = 1;
+	private static final int HALF_OPEN = 2;
+
+	/**
+	 * A database operation that may be run more than once.
+	 */
+	public interface Action<T> {
+		T run() throws SQLException;
+	}
+
+	private final int _maxAttempts;
+	private final long _baseDelayMs;
+	private final long _maxDelayMs;
+	private final double _budgetPerCall;
+	private final double _maxBudget;
+	private final int _failureThreshold;
+	private final long _openMs;
+	private final Random _random = new Random();
+
+	private double _budget;
+	private int _state = CLOSED;
+	private int _consecutiveFailures = 0;
+	private long _openedAt = 0;
+	private boolean _trialRunning = false;
+
+	public ExecutionPolicy() {
+		this(4, 50, 2000, 0.1, 10, 5, 10000);
+	}
+
+	/**
+	 * @param maxAttempts attempts per operation, the first one included
+	 * @param baseDelayMs upper bound of the first backoff delay
+	 * @param maxDelayMs upper bound of any backoff delay
+	 * @param budgetPerCall retry budget earned by each operation started
+	 * @param maxBudget most retries that can be saved up
+	 * @param failureThreshold consecutive availability failures that open the circuit
+	 * @param openMs how long the circuit stays open before a trial
+	 */
+	public ExecutionPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, double budgetPerCall, double maxBudget, int failureThreshold, long openMs) {
+		_maxAttempts = maxAttempts;
+		_baseDelayMs = baseDelayMs;
+		_maxDelayMs = maxDelayMs;
+		_budgetPerCall = budgetPerCall;
+		_maxBudget = maxBudget;
+		_budget = maxBudget;
+		_failureThreshold = failureThreshold;
+		_openMs = openMs;
+	}
+
+	/**
+	 * Method to tell whether a failure may go away when the operation is
+	 * tried again.
+	 *
+	 * @param e the failure
+	 * @return true for connection, serialization, deadlock, resource and
+	 *         shutdown errors
+	 */
+	public static boolean isRetryable(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null) return false;
+		return isUnavailable(e)
+			|| state.equals("40001")        // serialization_failure
+			|| state.equals("40P01");       // deadlock_detected
+	}
+
+	/**
+	 * Method to tell whether a failure means the server cannot be reached or
+	 * cannot serve right now. Only these count towards opening the circuit.
+	 *
+	 * @param e the failure
+	 * @return true for connection exceptions, insufficient resources and
+	 *         operator intervention (shutdown, cannot connect now)
+	 */
+	public static boolean isUnavailable(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null || state.equals(CIRCUIT_OPEN_STATE)) return false;
+		return state.startsWith("08")
+			|| state.startsWith("53")
+			|| state.equals("57P01") || state.equals("57P02") || state.equals("57P03");
+	}
+
+	/**
+	 * Method to run an operation under this policy.
+	 *
+	 * @param action the operation
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException the last failure, or a CIRCUIT_OPEN_STATE
+	 *         failure when the database is considered down
+	 */
+	public <T> T execute(Action<T> action) throws SQLException {
+		return execute(action, true);
+	}
+
+	/**
+	 * Method to run an operation under this policy.
+	 *
+	 * @param action the operation
+	 * @param idempotent false for a write that must not run twice; it is
+	 *        then only retried when it cannot have reached the server
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException the last failure, or a CIRCUIT_OPEN_STATE
+	 *         failure when the database is considered down
+	 */
+	public <T> T execute(Action<T> action, boolean idempotent) throws SQLException {
+		boolean trial = admit();
+		try {
+			int attempt = 0;
+			while (true) {
+				try {
+					T result = action.run();
+					recordSuccess();
+					return result;
+				}catch(SQLException e){
+					attempt++;
+					if (isUnavailable(e)) {
+						recordFailure();
+					}else {
+						recordSuccess();
+					}
+					boolean retryable = idempotent ? isRetryable(e) : isRetryableWrite(e);
+					if (!retryable || attempt >= _maxAttempts || !withdrawRetry() || isOpen()) {
+						throw e;
+					}
+					backoff(attempt);
+				}
+			}
+		}finally{
+			// a trial that ended in anything but an SQLException decided nothing
+			if (trial) endTrial();
+		}
+	}
+
+	/**
+	 * Method to tell whether a failed write can safely be tried again:
+	 * only when no connection was made, or when the server rolled the
+	 * transaction back. After a connection broke mid-statement the write
+	 * may have committed.
+	 *
+	 * @param e the failure
+	 */
+	public static boolean isRetryableWrite(SQLException e) {
+		String state = e.getSQLState();
+		if (state == null) return false;
+		return state.equals("08001")        // sqlclient_unable_to_establish_sqlconnection
+			|| state.equals("08004")        // sqlserver_rejected_establishment_of_sqlconnection
+			|| state.equals("40001")        // serialization_failure
+			|| state.equals("40P01");       // deadlock_detected
+	}
+
+	/**
+	 * Method to tell whether operations are currently failing fast.
+	 */
+	public synchronized boolean isOpen() {
+		return _state == OPEN;
+	}
+
+	//refuses the operation while the circuit is open, lets one trial through after the cool-down;
+	//true when the operation is that trial
+	private synchronized boolean admit() throws SQLException {
+		_budget = Math.min(_maxBudget, _budget + _budgetPerCall);
+		if (_state == OPEN) {
+			long waited = System.currentTimeMillis() - _openedAt;
+			if (waited < _openMs) {
+				throw new SQLException("Database unavailable, failing fast for another " + (_openMs - waited) / 1000 + " s", CIRCUIT_OPEN_STATE);
+			}
+			_state = HALF_OPEN;
+		}
+		if (_state == HALF_OPEN) {
+			if (_trialRunning) {
+				throw new SQLException("Database unavailable, waiting for a trial operation", CIRCUIT_OPEN_STATE);
+			}
+			_trialRunning = true;
+			return true;
+		}
+		return false;
+	}
+
+	private synchronized void endTrial() {
+		_trialRunning = false;
+	}
+
+	private synchronized void recordSuccess() {
+		_consecutiveFailures = 0;
+		_trialRunning = false;
+		_state = CLOSED;
+	}
+
+	private synchronized void recordFailure() {
+		_consecutiveFailures++;
+		if (_state == HALF_OPEN || _consecutiveFailures >= _failureThreshold) {
+			if (_state != OPEN) {
+				System.err.println("Database unavailable, failing fast for " + _openMs / 1000 + " s");
+			}
+			_state = OPEN;
+			_openedAt = System.currentTimeMillis();
+			_trialRunning = false;
+		}
+	}
+
+	private synchronized boolean withdrawRetry() {
+		if (_budget < 1) return false;
+		_budget -= 1;
+		return true;
+	}
+
+	//full jitter: uniformly between zero and the exponential bound
+	private void backoff(int attempt) throws SQLException {
+		long bound = Math.min(_maxDelayMs, _baseDelayMs << Math.min(attempt - 1, 20));
+		long delay;
+		synchronized (_random) {
+			delay = (long) (_random.nextDouble() * bound);
+		}
+		try {
+			Thread.sleep(delay);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting to retry", "57014");
+		}
+	}
+}
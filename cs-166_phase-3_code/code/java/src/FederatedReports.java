@@ -0,0 +1,331 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class runs a report against the databases of several shops at once
+ * and combines what they return. Every shop has its own connection and the
+ * queries run in parallel, so a report takes as long as the slowest shop.
+ * A shop that fails or does not answer within the timeout is left out and
+ * named in the outcome, and the rest is still returned.
+ *
+ * Rows get a leading shop column. Lists are concatenated in shop order,
+ * reports that every shop returns sorted are k-way merged on the same
+ * order, and the top-K cars report adds up each car's services over the
+ * shops before taking the K highest.
+ *
+ */
+public class FederatedReports{
+	//the cars serviced at least %d times at a shop
+	static final String QUERY_CARS_SERVICED_AT_LEAST = "SELECT c.vin, c.make, c.model, c.year, s.services FROM Car c, (SELECT car_vin, COUNT(*) AS services FROM Service_Request GROUP BY car_vin HAVING COUNT(*) >= %d) AS s WHERE c.vin = s.car_vin";
+	//the services of the cars in the list %s at a shop
+	static final String QUERY_CARS_SERVICES = "SELECT c.vin, c.make, c.model, c.year, s.services FROM Car c, (SELECT car_vin, COUNT(*) AS services FROM Service_Request WHERE car_vin IN (%s) GROUP BY car_vin) AS s WHERE c.vin = s.car_vin";
+
+	/**
+	 * A combined report and the shops missing from it.
+	 */
+	public static class Outcome {
+		final ReportCache.Result result;
+		final List<String> missing;
+
+		Outcome(ReportCache.Result result, List<String> missing) {
+			this.result = result;
+			this.missing = missing;
+		}
+
+		/**
+		 * Method to print the rows, then a line per missing shop.
+		 *
+		 * @return the number of rows printed
+		 */
+		public int print() {
+			int rows = ReportCache.print(result);
+			for (String shop : missing) System.out.println("(missing " + shop + ")");
+			return rows;
+		}
+	}
+
+	private final List<String> _urls;
+	private final List<String> _names = new ArrayList<String>();
+	private final String _user;
+	private final String _passwd;
+	private final long _timeoutMillis;
+	private final Connection[] _connections;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param urls JDBC URLs of the shop databases
+	 * @param timeoutMillis how long a report waits for the slowest shop
+	 */
+	public FederatedReports(List<String> urls, String user, String passwd, long timeoutMillis) {
+		_urls = new ArrayList<String>(urls);
+		for (String url : urls) _names.add(url.startsWith("jdbc:postgresql://") ? url.substring("jdbc:postgresql://".length()) : url);
+		_user = user;
+		_passwd = passwd;
+		_timeoutMillis = timeoutMillis;
+		_connections = new Connection[urls.size()];
+		// not bounded: a shop that hangs keeps its thread while the next report runs
+		_executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "federated-report");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public int shops() {
+		return _urls.size();
+	}
+
+	/**
+	 * Method to run a list report on every shop and concatenate the rows.
+	 */
+	public Outcome concatenate(String query) {
+		List<String> missing = new ArrayList<String>();
+		List<ReportCache.Result> runs = runAll(query, missing);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		for (ReportCache.Result run : runs) rows.addAll(run.rows);
+		return new Outcome(new ReportCache.Result(columns(runs), rows, null), missing);
+	}
+
+	/**
+	 * Method to run a sorted report on every shop and merge the rows.
+	 *
+	 * @param query the report, which must return its rows sorted by order
+	 * @param order the sort order, applied to rows with the shop column
+	 */
+	public Outcome merge(String query, Comparator<List<String>> order) {
+		List<String> missing = new ArrayList<String>();
+		List<ReportCache.Result> runs = runAll(query, missing);
+		List<List<String>> rows = ParallelReports.mergeRuns(runs, order);
+		return new Outcome(new ReportCache.Result(columns(runs), rows, null), missing);
+	}
+
+	/**
+	 * Method to find the K cars with the most service requests over all
+	 * shops, exactly, in three rounds (the TPUT algorithm):
+	 *
+	 * 1. Each shop returns its own top K. The K-th highest of the partial
+	 *    totals this gives is a lower bound on the K-th total, and a car
+	 *    that beats it must have at least bound / shops services at some
+	 *    shop.
+	 * 2. Each shop returns every car with at least that many services. A
+	 *    car's total is then at most its known counts plus, for each shop
+	 *    that did not return it, one less than that threshold; cars whose
+	 *    bound is below the new K-th partial total are dropped.
+	 * 3. Each shop returns the services of the remaining cars, which are
+	 *    added up before taking the K highest.
+	 *
+	 * The result is exact over the shops that answered every round.
+	 *
+	 * @param k cars to list
+	 */
+	public Outcome topCarsByServices(int k) {
+		List<String> missing = new ArrayList<String>();
+		int shops = _urls.size();
+		// services per car, per shop that returned it
+		Map<String, Map<String, Long>> seen = new HashMap<String, Map<String, Long>>();
+		note(seen, runAll(String.format(MechanicShop.QUERY_TOP_K_CARS_BY_SERVICES, k), missing));
+		long threshold = (kthTotal(seen, k) + shops - 1) / shops;
+		List<String> more = new ArrayList<String>();
+		note(seen, runAll(String.format(QUERY_CARS_SERVICED_AT_LEAST, threshold), more));
+		addMissing(missing, more);
+		long kth = kthTotal(seen, k);
+		StringBuilder candidates = new StringBuilder();
+		for (Map.Entry<String, Map<String, Long>> car : seen.entrySet()) {
+			long bound = (shops - car.getValue().size()) * Math.max(0, threshold - 1);
+			for (long services : car.getValue().values()) bound += services;
+			if (bound < kth) continue;
+			if (candidates.length() > 0) candidates.append(", ");
+			candidates.append('\'').append(car.getKey().replace("'", "''")).append('\'');
+		}
+		if (candidates.length() == 0) return new Outcome(new ReportCache.Result(new ArrayList<String>(), new ArrayList<List<String>>(), null), missing);
+		more = new ArrayList<String>();
+		List<ReportCache.Result> runs = runAll(String.format(QUERY_CARS_SERVICES, candidates), more);
+		addMissing(missing, more);
+		Map<String, List<String>> cars = new LinkedHashMap<String, List<String>>();
+		for (ReportCache.Result run : runs) {
+			for (List<String> row : run.rows) {
+				// shop, vin, make, model, year, services
+				List<String> car = cars.get(row.get(1));
+				if (car == null) {
+					cars.put(row.get(1), new ArrayList<String>(row));
+				}else {
+					car.set(0, car.get(0) + "," + row.get(0));
+					car.set(5, Long.toString(Long.parseLong(car.get(5)) + Long.parseLong(row.get(5))));
+				}
+			}
+		}
+		List<List<String>> rows = new ArrayList<List<String>>(cars.values());
+		rows.sort((a, b) -> {
+			int c = Long.compare(Long.parseLong(b.get(5)), Long.parseLong(a.get(5)));
+			return c != 0 ? c : a.get(1).compareTo(b.get(1));
+		});
+		if (rows.size() > k) rows = new ArrayList<List<String>>(rows.subList(0, k));
+		return new Outcome(new ReportCache.Result(columns(runs), rows, null), missing);
+	}
+
+	//records each returned car's services at the shop that returned it
+	private static void note(Map<String, Map<String, Long>> seen, List<ReportCache.Result> runs) {
+		for (ReportCache.Result run : runs) {
+			for (List<String> row : run.rows) {
+				Map<String, Long> shops = seen.get(row.get(1));
+				if (shops == null) {
+					shops = new HashMap<String, Long>();
+					seen.put(row.get(1), shops);
+				}
+				shops.put(row.get(0), Long.parseLong(row.get(5)));
+			}
+		}
+	}
+
+	//the K-th highest of the known partial totals, 0 when fewer cars are known
+	private static long kthTotal(Map<String, Map<String, Long>> seen, int k) {
+		List<Long> totals = new ArrayList<Long>(seen.size());
+		for (Map<String, Long> shops : seen.values()) {
+			long total = 0;
+			for (long services : shops.values()) total += services;
+			totals.add(total);
+		}
+		if (totals.size() < k) return 0;
+		totals.sort(Collections.reverseOrder());
+		return totals.get(k - 1);
+	}
+
+	//adds the shops missing from a later round that are not named yet
+	private void addMissing(List<String> missing, List<String> more) {
+		for (String reason : more) {
+			boolean named = false;
+			for (String name : _names) {
+				if (!reason.startsWith(name + ": ")) continue;
+				for (String earlier : missing) named |= earlier.startsWith(name + ": ");
+			}
+			if (!named) missing.add(reason);
+		}
+	}
+
+	/**
+	 * Method to close every shop connection and stop the threads.
+	 */
+	public synchronized void close() {
+		_executor.shutdownNow();
+		for (int i = 0; i < _connections.length; i++) {
+			closeQuietly(_connections[i]);
+			_connections[i] = null;
+		}
+	}
+
+	/*
+	 * Runs the query on every shop at once and returns the results of the
+	 * shops that answered in time, in shop order. The others are added to
+	 * missing with the reason; their connection is dropped, so a late answer
+	 * cannot be read by the next report, and reopened when next needed.
+	 */
+	private List<ReportCache.Result> runAll(final String query, List<String> missing) {
+		List<Future<ReportCache.Result>> parts = new ArrayList<Future<ReportCache.Result>>();
+		for (int i = 0; i < _urls.size(); i++) {
+			final int shop = i;
+			parts.add(_executor.submit(new Callable<ReportCache.Result>() {
+				public ReportCache.Result call() throws SQLException {
+					return run(shop, query);
+				}
+			}));
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_timeoutMillis);
+		List<ReportCache.Result> runs = new ArrayList<ReportCache.Result>();
+		for (int i = 0; i < parts.size(); i++) {
+			try {
+				runs.add(parts.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+			}catch(TimeoutException e){
+				parts.get(i).cancel(true);
+				drop(i);
+				missing.add(_names.get(i) + ": no answer in " + _timeoutMillis + " ms");
+			}catch(ExecutionException e){
+				drop(i);
+				missing.add(_names.get(i) + ": " + e.getCause().getMessage());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				missing.add(_names.get(i) + ": interrupted");
+			}
+		}
+		return runs;
+	}
+
+	private ReportCache.Result run(int shop, String query) throws SQLException {
+		Connection connection = connection(shop);
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(query);
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			List<String> columns = new ArrayList<String>();
+			columns.add("shop");
+			for (int i = 1; i <= numCol; i++) columns.add(rsmd.getColumnName(i));
+			StringDictionary.Columns values = StringDictionary.SHARED.columns(rsmd);
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while (rs.next()) {
+				List<String> row = new ArrayList<String>(numCol + 1);
+				row.add(_names.get(shop));
+				for (int i = 1; i <= numCol; i++) row.add(values.get(rs, i));
+				rows.add(row);
+			}
+			return new ReportCache.Result(columns, rows, null);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//connects outside the lock, so a shop that does not answer holds up no other
+	private Connection connection(int shop) throws SQLException {
+		synchronized (this) {
+			if (_connections[shop] != null) return _connections[shop];
+		}
+		Connection connection = DriverManager.getConnection(_urls.get(shop), _user, _passwd);
+		synchronized (this) {
+			if (_connections[shop] == null) {
+				_connections[shop] = connection;
+				return connection;
+			}
+		}
+		closeQuietly(connection);
+		return connection(shop);
+	}
+
+	private synchronized void drop(int shop) {
+		final Connection connection = _connections[shop];
+		_connections[shop] = null;
+		if (connection != null) {
+			// closing can block as long as the shop does not answer
+			_executor.submit(() -> closeQuietly(connection));
+		}
+	}
+
+	private static void closeQuietly(Connection connection) {
+		if (connection == null) return;
+		try {
+			connection.close();
+		}catch(SQLException e){
+			// already broken
+		}
+	}
+
+	private static List<String> columns(List<ReportCache.Result> runs) {
+		return runs.isEmpty() ? new ArrayList<String>() : runs.get(0).columns;
+	}
+}
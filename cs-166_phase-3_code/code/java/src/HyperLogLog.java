@@ -0,0 +1,80 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * This class estimates the number of distinct keys added to it in a fixed
+ * 2^precision bytes. With the default precision of 12 (4 KB) the relative
+ * standard error is 1.04 / sqrt(4096), about 1.6%, so about 95% of the
+ * estimates are within 3.2% of the true count; small counts are counted
+ * almost exactly through linear counting. Two sketches of the same
+ * precision merge into the sketch of the union of their keys.
+ *
+ */
+public class HyperLogLog{
+	public static final int DEFAULT_PRECISION = 12;
+
+	private final int _precision;
+	private final byte[] _registers;
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18) throw new IllegalArgumentException("precision must be 4-18");
+		_precision = precision;
+		_registers = new byte[1 << precision];
+	}
+
+	public synchronized void add(String key) {
+		long hash = BloomFilter.hash(key);
+		int index = (int) (hash >>> (64 - _precision));
+		// rank of the first one bit in the remaining bits, 1-based
+		long rest = hash << _precision;
+		int rank = rest == 0 ? 64 - _precision + 1 : Long.numberOfLeadingZeros(rest) + 1;
+		if (rank > _registers[index]) _registers[index] = (byte) rank;
+	}
+
+	public synchronized long estimate() {
+		int m = _registers.length;
+		double sum = 0;
+		int zeros = 0;
+		for (byte register : _registers) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) zeros++;
+		}
+		double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+		double estimate = alpha * m * m / sum;
+		if (estimate <= 2.5 * m && zeros > 0) {
+			estimate = m * Math.log((double) m / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * @return the relative standard error of estimate()
+	 */
+	public double standardError() {
+		return 1.04 / Math.sqrt(_registers.length);
+	}
+
+	/**
+	 * Method to add every key of another sketch to this one.
+	 */
+	public synchronized void merge(HyperLogLog other) {
+		if (other._precision != _precision) throw new IllegalArgumentException("cannot merge sketches of different precision");
+		synchronized (other) {
+			for (int i = 0; i < _registers.length; i++) {
+				if (other._registers[i] > _registers[i]) _registers[i] = other._registers[i];
+			}
+		}
+	}
+
+	public synchronized void write(DataOutputStream out) throws IOException {
+		out.writeByte(_precision);
+		out.write(_registers);
+	}
+
+	public static HyperLogLog read(DataInputStream in) throws IOException {
+		HyperLogLog sketch = new HyperLogLog(in.readByte());
+		in.readFully(sketch._registers);
+		return sketch;
+	}
+}
@@ -0,0 +1,593 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * This class lets InsertServiceRequest accept tickets without waiting for
+ * the database. An accepted ticket is appended to a local journal file and
+ * acknowledged once the file is on disk; a background flusher then moves
+ * the journal to Service_Request in batches.
+ *
+ * Appends are group committed: a writer thread takes every ticket queued
+ * since its last pass, writes them together and forces the file once, so
+ * a burst of desks pays one fsync rather than one each. The flusher inserts
+ * a batch and advances this journal's row in Intake_Journal_Checkpoint in
+ * the same transaction, so after a crash exactly the entries past the
+ * checkpoint are replayed. A ticket the database rejects for good (an
+ * unknown customer, say) is written to the .rejected file next to the
+ * journal instead of blocking the ones behind it.
+ *
+ * File layout: a header line "MSJ1 <journal id> <first seq>" followed by
+ * one tab-separated line per ticket ending in a CRC32 of the line, so a
+ * line torn by a crash is detected and cut off at recovery. Only the last
+ * line can be torn; a bad line with entries after it fails the recovery.
+ *
+ */
+public class IntakeJournal{
+	private static final String MAGIC = "MSJ1";
+	//most tickets sent to the database in one transaction
+	private static final int FLUSH_BATCH = 500;
+	//pause between flushes when the journal is idle or the database is down
+	private static final long FLUSH_INTERVAL_MS = 500;
+	//journal size above which it is rewritten once everything is flushed
+	private static final long COMPACT_BYTES = 1 << 20;
+
+	static final String INSERT = "INSERT INTO Service_Request (rid, customer_id, car_vin, date, odometer, complain) VALUES (?, ?, ?, ?::date, ?, ?) ON CONFLICT (rid, date) DO NOTHING";
+	private static final String EXISTING = "SELECT customer_id, trim(car_vin), odometer, complain FROM Service_Request WHERE rid = ? AND date = ?::date";
+	private static final String CHECKPOINT = "INSERT INTO Intake_Journal_Checkpoint (journal_id, last_seq) VALUES (?, ?) ON CONFLICT (journal_id) DO UPDATE SET last_seq = EXCLUDED.last_seq";
+
+	/**
+	 * A service request waiting to reach the database.
+	 */
+	public static class Ticket {
+		long seq;
+		final int rid;
+		final int customerId;
+		final String carVin;
+		final String date;
+		final int odometer;
+		final String complain;
+
+		public Ticket(int rid, int customerId, String carVin, String date, int odometer, String complain) {
+			this.rid = rid;
+			this.customerId = customerId;
+			this.carVin = carVin;
+			this.date = date;
+			this.odometer = odometer;
+			this.complain = complain;
+		}
+	}
+
+	/**
+	 * Told about the tickets of each committed flush, on the flusher thread.
+	 */
+	public interface Listener {
+		void flushed(List<Ticket> tickets);
+	}
+
+	private final File _file;
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private String _journalId;
+	//guarded by _fileLock, which is never taken while waiting for this
+	private FileChannel _channel;
+	private final Object _fileLock = new Object();
+
+	//guarded by this: tickets queued for the writer, and tickets on disk but not in the database
+	private final List<Ticket> _queued = new ArrayList<Ticket>();
+	private final List<Ticket> _unflushed = new ArrayList<Ticket>();
+	private boolean _writing = false;
+	private long _nextSeq;
+	private long _durableSeq;
+	private IOException _writeError = null;
+	private volatile boolean _running = true;
+	//false while the database was down at recovery: the replayed entries
+	//still include the ones past the checkpoint, dropped before the first flush
+	private boolean _checkpointRead = false;
+	private Thread _writer;
+	private Thread _flusher;
+	private volatile Listener _listener = null;
+
+	/**
+	 * Opens (or creates) the journal and recovers the entries the database
+	 * has not seen yet. Call start() to begin flushing them.
+	 *
+	 * @param file the journal file
+	 * @param url JDBC URL of the primary
+	 * @throws java.io.IOException when the journal cannot be read or written
+	 */
+	public IntakeJournal(File file, String url, String user, String passwd) throws IOException {
+		_file = file;
+		_url = url;
+		_user = user;
+		_passwd = passwd;
+		recover();
+	}
+
+	/**
+	 * Method to start the writer and flusher threads.
+	 */
+	public void start() {
+		_writer = new Thread(this::writeLoop, "journal-writer");
+		_writer.setDaemon(true);
+		_writer.start();
+		_flusher = new Thread(this::flushLoop, "journal-flusher");
+		_flusher.setDaemon(true);
+		_flusher.start();
+	}
+
+	/**
+	 * Method to accept a ticket. Returns once the ticket is on disk.
+	 *
+	 * @param ticket the service request
+	 * @return the journal sequence number given to the ticket
+	 * @throws java.io.IOException when the journal could not be written
+	 */
+	public synchronized long append(Ticket ticket) throws IOException {
+		ticket.seq = _nextSeq++;
+		_queued.add(ticket);
+		notifyAll();
+		while (_durableSeq < ticket.seq && _writeError == null) {
+			try {
+				wait();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while writing the journal");
+			}
+		}
+		if (_durableSeq < ticket.seq) throw _writeError;
+		return ticket.seq;
+	}
+
+	/**
+	 * Method to be told about tickets once they are in Service_Request;
+	 * replays of a row already there and rejected tickets are left out.
+	 */
+	public void setListener(Listener listener) {
+		_listener = listener;
+	}
+
+	/**
+	 * Method to tell how many accepted tickets have not reached the database.
+	 */
+	public synchronized int pending() {
+		return _queued.size() + _unflushed.size();
+	}
+
+	/**
+	 * Method to stop the threads after a last flush attempt.
+	 */
+	public void stop() {
+		_running = false;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			if (_writer != null) _writer.join(2000);
+			if (_flusher != null) _flusher.join(5000);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		synchronized (_fileLock) {
+			try {
+				_channel.close();
+			}catch(IOException e){
+				// ignored.
+			}
+		}
+	}
+
+	//group commit: write whatever is queued, force once, wake the appenders
+	private void writeLoop() {
+		while (true) {
+			List<Ticket> batch;
+			synchronized (this) {
+				while (_queued.isEmpty() && _running) {
+					try {
+						wait();
+					}catch(InterruptedException e){
+						return;
+					}
+				}
+				if (_queued.isEmpty()) return;
+				batch = new ArrayList<Ticket>(_queued);
+				_queued.clear();
+				_writing = true;
+			}
+			try {
+				StringBuilder text = new StringBuilder();
+				for (Ticket ticket : batch) text.append(encode(ticket)).append('\n');
+				ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+				synchronized (_fileLock) {
+					while (bytes.hasRemaining()) _channel.write(bytes);
+					_channel.force(false);
+				}
+				synchronized (this) {
+					_unflushed.addAll(batch);
+					_writing = false;
+					_durableSeq = batch.get(batch.size() - 1).seq;
+					notifyAll();
+				}
+			}catch(IOException e){
+				synchronized (this) {
+					_writing = false;
+					_writeError = e;
+					notifyAll();
+				}
+				System.err.println("Intake journal write failed: " + e.getMessage());
+				return;
+			}
+		}
+	}
+
+	private void flushLoop() {
+		Connection connection = null;
+		while (true) {
+			boolean more = false;
+			try {
+				if (connection == null) {
+					connection = DriverManager.getConnection(_url, _user, _passwd);
+					connection.setAutoCommit(false);
+				}
+				more = flushOnce(connection);
+			}catch(SQLException e){
+				try {
+					if (connection != null) connection.close();
+				}catch(SQLException ignored){
+					// ignored.
+				}
+				connection = null;
+			}catch(IOException e){
+				System.err.println("Intake journal compaction failed: " + e.getMessage());
+			}
+			if (!_running && (!more || connection == null)) break;
+			if (!more) {
+				try {
+					Thread.sleep(FLUSH_INTERVAL_MS);
+				}catch(InterruptedException e){
+					break;
+				}
+			}
+		}
+		try {
+			if (connection != null) connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/*
+	 * Sends up to FLUSH_BATCH tickets in one transaction together with the
+	 * checkpoint. Returns true when more tickets are waiting.
+	 */
+	private boolean flushOnce(Connection connection) throws SQLException, IOException {
+		if (!_checkpointRead) {
+			long checkpoint = readCheckpoint(connection);
+			synchronized (this) {
+				Iterator<Ticket> it = _unflushed.iterator();
+				while (it.hasNext()) {
+					if (it.next().seq <= checkpoint) it.remove();
+				}
+			}
+			_checkpointRead = true;
+		}
+		List<Ticket> batch;
+		synchronized (this) {
+			if (_unflushed.isEmpty()) {
+				compactIfIdle();
+				return false;
+			}
+			batch = new ArrayList<Ticket>(_unflushed.subList(0, Math.min(FLUSH_BATCH, _unflushed.size())));
+		}
+		ensurePartitions(connection, batch);
+		List<Ticket> rejected = new ArrayList<Ticket>();
+		List<Ticket> skipped = new ArrayList<Ticket>();
+		try {
+			PreparedStatement insert = connection.prepareStatement(INSERT);
+			try {
+				for (Ticket ticket : batch) {
+					bind(insert, ticket);
+					insert.addBatch();
+				}
+				int[] counts = insert.executeBatch();
+				for (int i = 0; i < counts.length; i++) {
+					if (counts[i] == 0) skipped.add(batch.get(i));
+				}
+			}catch(SQLException e){
+				if (ExecutionPolicy.isRetryable(e)) throw e;
+				// a ticket the database will never take: redo one by one and set it aside
+				connection.rollback();
+				skipped.clear();
+				rejected = insertOneByOne(connection, insert, batch, skipped);
+			}finally{
+				insert.close();
+			}
+			// a ticket whose (rid, date) was taken is a replay only when the row is the same
+			for (Ticket ticket : skipped) {
+				if (!alreadyWritten(connection, ticket)) {
+					System.err.println("Service request " + ticket.rid + " rejected: another request " + ticket.rid + " exists on " + ticket.date);
+					rejected.add(ticket);
+				}
+			}
+			// set aside before the checkpoint moves past them; a crash here can
+			// only list a rejected ticket twice, never lose it
+			if (!rejected.isEmpty()) reject(rejected);
+			PreparedStatement checkpoint = connection.prepareStatement(CHECKPOINT);
+			checkpoint.setString(1, _journalId);
+			checkpoint.setLong(2, batch.get(batch.size() - 1).seq);
+			checkpoint.executeUpdate();
+			checkpoint.close();
+			connection.commit();
+		}catch(SQLException e){
+			connection.rollback();
+			throw e;
+		}
+		boolean more;
+		synchronized (this) {
+			_unflushed.subList(0, batch.size()).clear();
+			more = !_unflushed.isEmpty();
+		}
+		Listener listener = _listener;
+		if (listener != null) {
+			List<Ticket> written = new ArrayList<Ticket>(batch);
+			written.removeAll(rejected);
+			written.removeAll(skipped);
+			try {
+				if (!written.isEmpty()) listener.flushed(written);
+			}catch(RuntimeException e){
+				// the tickets are committed; a listener failure must not stop the flusher
+				System.err.println("Intake journal listener failed: " + e);
+			}
+		}
+		return more;
+	}
+
+	//skipped gets the tickets whose (rid, date) was already taken
+	private List<Ticket> insertOneByOne(Connection connection, PreparedStatement insert, List<Ticket> batch, List<Ticket> skipped) throws SQLException {
+		List<Ticket> rejected = new ArrayList<Ticket>();
+		for (Ticket ticket : batch) {
+			Savepoint savepoint = connection.setSavepoint();
+			try {
+				bind(insert, ticket);
+				if (insert.executeUpdate() == 0) skipped.add(ticket);
+				connection.releaseSavepoint(savepoint);
+			}catch(SQLException e){
+				if (ExecutionPolicy.isRetryable(e)) throw e;
+				connection.rollback(savepoint);
+				System.err.println("Service request " + ticket.rid + " rejected: " + e.getMessage());
+				rejected.add(ticket);
+			}
+		}
+		return rejected;
+	}
+
+	//true when the row holding the ticket's (rid, date) is the ticket itself
+	static boolean alreadyWritten(Connection connection, Ticket ticket) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(EXISTING);
+		try {
+			stmt.setInt(1, ticket.rid);
+			stmt.setString(2, ticket.date);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next()) return false;
+			return rs.getInt(1) == ticket.customerId && rs.getString(2).equals(ticket.carVin.trim())
+				&& rs.getInt(3) == ticket.odometer && java.util.Objects.equals(rs.getString(4), ticket.complain);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//the monthly partitions the batch lands in (see create.sql)
+	static void ensurePartitions(Connection connection, List<Ticket> batch) throws SQLException {
+		Set<String> months = new HashSet<String>();
+		PreparedStatement stmt = connection.prepareStatement("SELECT ensure_request_partition('Service_Request', ?::date)");
+		try {
+			for (Ticket ticket : batch) {
+				if (months.add(ticket.date.substring(0, 7))) {
+					stmt.setString(1, ticket.date);
+					stmt.executeQuery().close();
+				}
+			}
+			connection.commit();
+		}catch(SQLException e){
+			connection.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	static void bind(PreparedStatement stmt, Ticket ticket) throws SQLException {
+		stmt.setInt(1, ticket.rid);
+		stmt.setInt(2, ticket.customerId);
+		stmt.setString(3, ticket.carVin);
+		stmt.setString(4, ticket.date);
+		stmt.setInt(5, ticket.odometer);
+		stmt.setString(6, ticket.complain);
+	}
+
+	private void reject(List<Ticket> rejected) throws IOException {
+		FileWriter out = new FileWriter(_file.getPath() + ".rejected", true);
+		try {
+			for (Ticket ticket : rejected) out.write(encode(ticket) + "\n");
+		}finally{
+			out.close();
+		}
+	}
+
+	/*
+	 * Reads the journal, cuts off a torn last line, and keeps the entries
+	 * past the checkpoint the database holds for this journal. When the
+	 * database is down every entry is kept and the flusher reads the
+	 * checkpoint once it connects.
+	 */
+	private void recover() throws IOException {
+		if (!_file.exists() || _file.length() == 0) {
+			_journalId = UUID.randomUUID().toString();
+			writeHeader(_file, 1);
+			_nextSeq = 1;
+			_durableSeq = 0;
+			_checkpointRead = true;
+			_channel = FileChannel.open(_file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			return;
+		}
+		List<Ticket> entries = new ArrayList<Ticket>();
+		long goodBytes = 0;
+		long firstSeq;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), StandardCharsets.UTF_8));
+		try {
+			String header = reader.readLine();
+			String[] fields = header == null ? new String[0] : header.split(" ");
+			if (fields.length != 3 || !fields[0].equals(MAGIC)) {
+				throw new IOException(_file + " is not an intake journal");
+			}
+			_journalId = fields[1];
+			firstSeq = Long.parseLong(fields[2]);
+			goodBytes = header.getBytes(StandardCharsets.UTF_8).length + 1;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Ticket ticket = decode(line);
+				if (ticket == null) {
+					// a torn write can only be the last line; anything after a
+					// bad line was acknowledged and must not be cut off with it
+					if (reader.readLine() != null) {
+						throw new IOException(_file + " has a corrupt entry after seq " + (entries.isEmpty() ? firstSeq - 1 : entries.get(entries.size() - 1).seq) + " followed by more entries");
+					}
+					break;
+				}
+				entries.add(ticket);
+				goodBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+			}
+		}finally{
+			reader.close();
+		}
+		_channel = FileChannel.open(_file.toPath(), StandardOpenOption.WRITE);
+		if (goodBytes < _file.length()) {
+			System.err.println("Intake journal: dropping a torn entry at the end of " + _file);
+			_channel.truncate(goodBytes);
+			_channel.force(false);
+		}
+		_channel.position(goodBytes);
+		long checkpoint = 0;
+		try {
+			Connection connection = DriverManager.getConnection(_url, _user, _passwd);
+			try {
+				checkpoint = readCheckpoint(connection);
+				_checkpointRead = true;
+			}finally{
+				connection.close();
+			}
+		}catch(SQLException e){
+			System.err.println("Intake journal: checkpoint not read, the database is unavailable (" + e.getMessage() + ")");
+		}
+		for (Ticket ticket : entries) {
+			if (ticket.seq > checkpoint) _unflushed.add(ticket);
+		}
+		_durableSeq = entries.isEmpty() ? firstSeq - 1 : entries.get(entries.size() - 1).seq;
+		_nextSeq = _durableSeq + 1;
+		if (!_unflushed.isEmpty()) {
+			System.out.println("Intake journal: replaying " + _unflushed.size() + " service request(s) not yet in the database");
+		}
+	}
+
+	private long readCheckpoint(Connection connection) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement("SELECT last_seq FROM Intake_Journal_Checkpoint WHERE journal_id = ?");
+		try {
+			stmt.setString(1, _journalId);
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Once every entry is in the database the journal is replaced by a bare
+	 * header that carries the sequence on, so it does not grow forever.
+	 * Called with the lock held and only when the writer is idle, so the
+	 * file holds nothing that is not already in the database.
+	 */
+	private void compactIfIdle() throws IOException {
+		if (!_queued.isEmpty() || _writing) return;
+		synchronized (_fileLock) {
+			if (_channel.size() < COMPACT_BYTES) return;
+			File tmp = new File(_file.getPath() + ".tmp");
+			writeHeader(tmp, _nextSeq);
+			Files.move(tmp.toPath(), _file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			_channel.close();
+			_channel = FileChannel.open(_file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		}
+	}
+
+	private void writeHeader(File file, long firstSeq) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			channel.write(ByteBuffer.wrap((MAGIC + " " + _journalId + " " + firstSeq + "\n").getBytes(StandardCharsets.UTF_8)));
+			channel.force(true);
+		}finally{
+			channel.close();
+		}
+	}
+
+	private static String encode(Ticket ticket) {
+		String line = ticket.seq + "\t" + ticket.rid + "\t" + ticket.customerId + "\t" + escape(ticket.carVin) + "\t" + ticket.date + "\t" + ticket.odometer + "\t" + escape(ticket.complain);
+		return line + "\t" + crc(line);
+	}
+
+	//null for a line that is torn or corrupt
+	private static Ticket decode(String line) {
+		int tab = line.lastIndexOf('\t');
+		if (tab < 0 || !line.substring(tab + 1).equals(String.valueOf(crc(line.substring(0, tab))))) return null;
+		String[] f = line.substring(0, tab).split("\t", -1);
+		if (f.length != 7) return null;
+		Ticket ticket = new Ticket(Integer.parseInt(f[1]), Integer.parseInt(f[2]), unescape(f[3]), f[4], Integer.parseInt(f[5]), unescape(f[6]));
+		ticket.seq = Long.parseLong(f[0]);
+		return ticket;
+	}
+
+	static long crc(String text) {
+		CRC32 crc = new CRC32();
+		crc.update(text.getBytes(StandardCharsets.UTF_8));
+		return crc.getValue();
+	}
+
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	static String unescape(String value) {
+		StringBuilder out = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char n = value.charAt(++i);
+				out.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			}else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,34 @@
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * The writes the intake desk makes, as operations rather than SQL. The
+ * menu reaches the database through execute* helpers that take SQL text,
+ * which only Postgres can interpret; the offline store cannot, so the
+ * desk's three intake writes go through this interface instead, with
+ * PostgresStore writing them to the database and LocalStore keeping them
+ * in a local file until the database is back.
+ *
+ */
+public interface IntakeStore{
+	//the write was kept locally and reaches the database later
+	int QUEUED = 3;
+
+	/**
+	 * @return Upserts.CREATED, Upserts.UNCHANGED when the id is taken, or
+	 *         QUEUED
+	 */
+	int addCustomer(Upserts.Customer customer) throws SQLException, IOException;
+
+	/**
+	 * @return Upserts.CREATED, Upserts.UNCHANGED when the VIN is taken, or
+	 *         QUEUED
+	 */
+	int addCar(Upserts.Car car) throws SQLException, IOException;
+
+	/**
+	 * @return Upserts.CREATED, Upserts.UNCHANGED when a request with the
+	 *         same rid and date is already there, or QUEUED
+	 */
+	int insertServiceRequest(IntakeJournal.Ticket ticket) throws SQLException, IOException;
+}
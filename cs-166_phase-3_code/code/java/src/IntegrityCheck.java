@@ -0,0 +1,441 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.IntStream;
+
+/**
+ * This class checks the rules create.sql does not enforce across the
+ * tables: references from Owns, Service_Request and Closed_Request to rows
+ * that do not exist, tickets closed before they were opened, tickets for a
+ * car the customer does not own, and tickets closed more than once.
+ *
+ * Every table is streamed once through a cursor on its own pooled
+ * connection, all inside one exported snapshot (see SnapshotGroup), and
+ * its keys go into open-addressing hash sets of ints and longs; VINs are
+ * kept as their 64-bit hash. The checks then run over those sets in
+ * parallel. Each violation is a line of the violations file, and the
+ * counts per check are the summary.
+ *
+ */
+public class IntegrityCheck{
+	public static final String[] CHECKS = {
+		"owns_unknown_customer", "owns_unknown_car",
+		"request_unknown_customer", "request_unknown_car", "request_car_not_owned",
+		"closed_unknown_request", "closed_unknown_mechanic", "closed_before_request", "closed_twice",
+	};
+	private static final int OWNS_UNKNOWN_CUSTOMER = 0;
+	private static final int OWNS_UNKNOWN_CAR = 1;
+	private static final int REQUEST_UNKNOWN_CUSTOMER = 2;
+	private static final int REQUEST_UNKNOWN_CAR = 3;
+	private static final int REQUEST_CAR_NOT_OWNED = 4;
+	private static final int CLOSED_UNKNOWN_REQUEST = 5;
+	private static final int CLOSED_UNKNOWN_MECHANIC = 6;
+	private static final int CLOSED_BEFORE_REQUEST = 7;
+	private static final int CLOSED_TWICE = 8;
+	//rows per round trip of each cursor
+	private static final int FETCH_SIZE = 10000;
+	//rows per task when the checks run over the loaded arrays
+	private static final int CHUNK = 1 << 16;
+
+	/**
+	 * A set of ints by open addressing, without boxing.
+	 */
+	static class IntSet {
+		private int[] _keys;
+		private boolean[] _used;
+		private int _size;
+
+		IntSet(int expected) {
+			int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+			_keys = new int[capacity];
+			_used = new boolean[capacity];
+		}
+
+		/**
+		 * @return false when the key was already in the set
+		 */
+		boolean add(int key) {
+			if (_size * 2 >= _keys.length) grow();
+			int mask = _keys.length - 1;
+			for (int i = (int) BloomFilter.mix(key) & mask; ; i = (i + 1) & mask) {
+				if (!_used[i]) {
+					_used[i] = true;
+					_keys[i] = key;
+					_size++;
+					return true;
+				}
+				if (_keys[i] == key) return false;
+			}
+		}
+
+		boolean contains(int key) {
+			int mask = _keys.length - 1;
+			for (int i = (int) BloomFilter.mix(key) & mask; _used[i]; i = (i + 1) & mask) {
+				if (_keys[i] == key) return true;
+			}
+			return false;
+		}
+
+		int size() {
+			return _size;
+		}
+
+		private void grow() {
+			int[] keys = _keys;
+			boolean[] used = _used;
+			_keys = new int[keys.length * 2];
+			_used = new boolean[keys.length * 2];
+			_size = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (used[i]) add(keys[i]);
+			}
+		}
+	}
+
+	/**
+	 * A set of longs by open addressing, without boxing.
+	 */
+	static class LongSet {
+		private long[] _keys;
+		private boolean[] _used;
+		private int _size;
+
+		LongSet(int expected) {
+			int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+			_keys = new long[capacity];
+			_used = new boolean[capacity];
+		}
+
+		boolean add(long key) {
+			if (_size * 2 >= _keys.length) grow();
+			int mask = _keys.length - 1;
+			for (int i = (int) BloomFilter.mix(key) & mask; ; i = (i + 1) & mask) {
+				if (!_used[i]) {
+					_used[i] = true;
+					_keys[i] = key;
+					_size++;
+					return true;
+				}
+				if (_keys[i] == key) return false;
+			}
+		}
+
+		boolean contains(long key) {
+			int mask = _keys.length - 1;
+			for (int i = (int) BloomFilter.mix(key) & mask; _used[i]; i = (i + 1) & mask) {
+				if (_keys[i] == key) return true;
+			}
+			return false;
+		}
+
+		int size() {
+			return _size;
+		}
+
+		private void grow() {
+			long[] keys = _keys;
+			boolean[] used = _used;
+			_keys = new long[keys.length * 2];
+			_used = new boolean[keys.length * 2];
+			_size = 0;
+			for (int i = 0; i < keys.length; i++) {
+				if (used[i]) add(keys[i]);
+			}
+		}
+	}
+
+	/**
+	 * A map from int to int by open addressing; the smallest value put for
+	 * a key is kept.
+	 */
+	static class IntIntMap {
+		private final IntSet _keys;
+		private int[] _values;
+
+		IntIntMap(int expected) {
+			_keys = new IntSet(expected);
+			_values = new int[_keys._keys.length];
+		}
+
+		void putMin(int key, int value) {
+			if (_keys._size * 2 >= _keys._keys.length) {
+				// rehash the values along with the keys
+				int[] keys = _keys._keys;
+				boolean[] used = _keys._used;
+				int[] values = _values;
+				_keys.grow();
+				_values = new int[_keys._keys.length];
+				for (int i = 0; i < keys.length; i++) {
+					if (used[i]) _values[slot(keys[i])] = values[i];
+				}
+			}
+			if (_keys.add(key)) _values[slot(key)] = value;
+			else {
+				int i = slot(key);
+				if (value < _values[i]) _values[i] = value;
+			}
+		}
+
+		/**
+		 * @return the value, or missing when the key is not in the map
+		 */
+		int get(int key, int missing) {
+			if (!_keys.contains(key)) return missing;
+			return _values[slot(key)];
+		}
+
+		private int slot(int key) {
+			int mask = _keys._keys.length - 1;
+			int i = (int) BloomFilter.mix(key) & mask;
+			while (_keys._keys[i] != key) i = (i + 1) & mask;
+			return i;
+		}
+	}
+
+	//a table's rows as parallel int arrays, grown as they stream in
+	private static class Rows {
+		int[][] columns;
+		long[] vins;
+		int size;
+
+		Rows(int width, boolean vin) {
+			columns = new int[width][1024];
+			vins = vin ? new long[1024] : null;
+		}
+
+		int add() {
+			if (size == columns[0].length) {
+				for (int c = 0; c < columns.length; c++) columns[c] = Arrays.copyOf(columns[c], size * 2);
+				if (vins != null) vins = Arrays.copyOf(vins, size * 2);
+			}
+			return size++;
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final AtomicLongArray _counts = new AtomicLongArray(CHECKS.length);
+	private BufferedWriter _violations;
+	private long[] _rows = new long[6];
+
+	public IntegrityCheck(ConnectionPool pool) {
+		_pool = pool;
+	}
+
+	/**
+	 * Method to run every check.
+	 *
+	 * @param violations the file every violation is written to, one per
+	 *        line as check, tab, detail; replaced when the run completes
+	 * @return the number of violations per check, in CHECKS order
+	 * @throws java.sql.SQLException when a table could not be read
+	 */
+	public long[] run(File violations) throws SQLException, IOException {
+		File tmp = new File(violations.getPath() + ".tmp");
+		_violations = new BufferedWriter(new FileWriter(tmp));
+		ExecutorService executor = Executors.newFixedThreadPool(5, r -> {
+			Thread thread = new Thread(r, "integrity-check");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final SnapshotGroup group = new SnapshotGroup(_pool);
+		try {
+			final IntSet customers = new IntSet(1024);
+			final LongSet cars = new LongSet(1024);
+			final IntSet mechanics = new IntSet(1024);
+			final Rows owns = new Rows(2, true);
+			final Rows closed = new Rows(4, false);
+			final LongSet owned = new LongSet(1024);
+			final IntSet closedRids = new IntSet(1024);
+			// every table but Service_Request, which is checked as it streams against them
+			wait(Arrays.asList(
+				executor.submit(stream(group, "SELECT id FROM Customer", 0, rs -> customers.add(rs.getInt(1)))),
+				executor.submit(stream(group, "SELECT vin FROM Car", 1, rs -> cars.add(BloomFilter.hash(rs.getString(1).trim())))),
+				executor.submit(stream(group, "SELECT id FROM Mechanic", 2, rs -> mechanics.add(rs.getInt(1)))),
+				executor.submit(stream(group, "SELECT ownership_id, customer_id, car_vin FROM Owns", 3, rs -> {
+					int row = owns.add();
+					owns.columns[0][row] = rs.getInt(1);
+					owns.columns[1][row] = rs.getInt(2);
+					owns.vins[row] = BloomFilter.hash(rs.getString(3).trim());
+					owned.add(ownership(owns.columns[1][row], owns.vins[row]));
+				})),
+				executor.submit(stream(group, "SELECT wid, rid, mid, date FROM Closed_Request", 5, rs -> {
+					int row = closed.add();
+					closed.columns[0][row] = rs.getInt(1);
+					closed.columns[1][row] = rs.getInt(2);
+					closed.columns[2][row] = rs.getInt(3);
+					closed.columns[3][row] = (int) rs.getDate(4).toLocalDate().toEpochDay();
+					if (!closedRids.add(closed.columns[1][row])) violation(CLOSED_TWICE, "wid " + closed.columns[0][row] + " closes rid " + closed.columns[1][row] + " again");
+				}))));
+
+			final IntIntMap requested = new IntIntMap(1024);
+			List<Future<Object>> checks = new ArrayList<Future<Object>>();
+			checks.add(executor.submit(stream(group, "SELECT rid, customer_id, car_vin, date FROM Service_Request", 4, rs -> {
+				int rid = rs.getInt(1);
+				int customer = rs.getInt(2);
+				String vin = rs.getString(3).trim();
+				long car = BloomFilter.hash(vin);
+				// a rid on several dates (see Request_Rid) is checked against its first
+				requested.putMin(rid, (int) rs.getDate(4).toLocalDate().toEpochDay());
+				if (!customers.contains(customer)) violation(REQUEST_UNKNOWN_CUSTOMER, "rid " + rid + " customer " + customer);
+				if (!cars.contains(car)) violation(REQUEST_UNKNOWN_CAR, "rid " + rid + " car " + vin);
+				else if (!owned.contains(ownership(customer, car))) violation(REQUEST_CAR_NOT_OWNED, "rid " + rid + " customer " + customer + " car " + vin);
+			})));
+			checks.add(executor.submit(() -> {
+				chunks(owns.size).forEach(start -> {
+					for (int row = start; row < Math.min(owns.size, start + CHUNK); row++) {
+						if (!customers.contains(owns.columns[1][row])) violation(OWNS_UNKNOWN_CUSTOMER, "ownership " + owns.columns[0][row] + " customer " + owns.columns[1][row]);
+						if (!cars.contains(owns.vins[row])) violation(OWNS_UNKNOWN_CAR, "ownership " + owns.columns[0][row]);
+					}
+				});
+				chunks(closed.size).forEach(start -> {
+					for (int row = start; row < Math.min(closed.size, start + CHUNK); row++) {
+						if (!mechanics.contains(closed.columns[2][row])) violation(CLOSED_UNKNOWN_MECHANIC, "wid " + closed.columns[0][row] + " mechanic " + closed.columns[2][row]);
+					}
+				});
+				return null;
+			}));
+			wait(checks);
+
+			// the request dates are complete now
+			chunks(closed.size).forEach(start -> {
+				for (int row = start; row < Math.min(closed.size, start + CHUNK); row++) {
+					int day = requested.get(closed.columns[1][row], Integer.MIN_VALUE);
+					if (day == Integer.MIN_VALUE) {
+						violation(CLOSED_UNKNOWN_REQUEST, "wid " + closed.columns[0][row] + " rid " + closed.columns[1][row]);
+					}else if (closed.columns[3][row] < day) {
+						violation(CLOSED_BEFORE_REQUEST, "wid " + closed.columns[0][row] + " rid " + closed.columns[1][row] + " closed "
+							+ java.time.LocalDate.ofEpochDay(closed.columns[3][row]) + " requested " + java.time.LocalDate.ofEpochDay(day));
+					}
+				}
+			});
+			_violations.close();
+			Files.move(tmp.toPath(), violations.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}finally{
+			group.close();
+			executor.shutdownNow();
+			_violations.close();
+		}
+		long[] counts = new long[CHECKS.length];
+		for (int i = 0; i < counts.length; i++) counts[i] = _counts.get(i);
+		return counts;
+	}
+
+	/**
+	 * Method to get the rows read from Customer, Car, Mechanic, Owns,
+	 * Service_Request and Closed_Request by the last run.
+	 */
+	public long[] rowsRead() {
+		return _rows.clone();
+	}
+
+	/**
+	 * Method to print the summary of a run.
+	 */
+	public void printSummary(long[] counts) {
+		String[] tables = { "customer", "car", "mechanic", "owns", "service_request", "closed_request" };
+		for (int i = 0; i < tables.length; i++) System.out.println(tables[i] + "\t" + _rows[i] + " row(s)");
+		for (int i = 0; i < CHECKS.length; i++) System.out.println(CHECKS[i] + "\t" + counts[i]);
+	}
+
+	private interface RowAction {
+		void accept(ResultSet rs) throws SQLException;
+	}
+
+	//reads one table through a cursor on a connection in the snapshot
+	private Callable<Object> stream(final SnapshotGroup group, final String query, final int table, final RowAction action) {
+		return () -> {
+			Connection connection = group.join();
+			try {
+				Statement stmt = connection.createStatement();
+				try {
+					stmt.setFetchSize(FETCH_SIZE);
+					ResultSet rs = stmt.executeQuery(query);
+					long rows = 0;
+					while (rs.next()) {
+						action.accept(rs);
+						rows++;
+					}
+					_rows[table] = rows;
+				}finally{
+					stmt.close();
+				}
+			}finally{
+				group.leave(connection);
+			}
+			return null;
+		};
+	}
+
+	private static IntStream chunks(int rows) {
+		return IntStream.range(0, (rows + CHUNK - 1) / CHUNK).parallel().map(chunk -> chunk * CHUNK);
+	}
+
+	//a customer's ownership of a car as one long
+	private static long ownership(int customer, long car) {
+		return BloomFilter.mix(car ^ customer);
+	}
+
+	private void violation(int check, String detail) {
+		_counts.incrementAndGet(check);
+		synchronized (this) {
+			try {
+				_violations.write(CHECKS[check] + "\t" + detail + "\n");
+			}catch(IOException e){
+				throw new java.io.UncheckedIOException(e);
+			}
+		}
+	}
+
+	private static void wait(List<Future<Object>> tasks) throws SQLException, IOException {
+		try {
+			for (Future<Object> task : tasks) task.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while checking", "57014");
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			if (e.getCause() instanceof java.io.UncheckedIOException) throw ((java.io.UncheckedIOException) e.getCause()).getCause();
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Runs the checks from the command line.
+	 *
+	 * @param args <dbname> <port> <user> [violations file]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] IntegrityCheck <dbname> <port> <user> [violations file]");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		Class.forName("org.postgresql.Driver");
+		ConnectionPool pool = new ConnectionPool(url, args[2], "#BlackpinkLisa1", 6);
+		try {
+			IntegrityCheck check = new IntegrityCheck(pool);
+			long start = System.nanoTime();
+			long[] counts = check.run(new File(args.length > 3 ? args[3] : "violations.tsv"));
+			check.printSummary(counts);
+			System.out.println("checked in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}finally{
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * This class receives the change notices the create.sql triggers publish on
+ * the mechanicshop_changes channel and hands them to the caches of this
+ * process. A background thread listens on its own connection, gathers the
+ * notices that arrive close together, drops duplicates, and delivers them
+ * as one set of keys per table. When too many keys of a table arrive at
+ * once, or when notices may have been missed because the connection broke,
+ * listeners are told to drop everything they hold for the table instead.
+ *
+ */
+public class InvalidationBus{
+	public static final String CHANNEL = "mechanicshop_changes";
+	public static final String[] TABLES = { "customer", "car", "owns", "service_request", "closed_request", "mechanic", "request" };
+
+	//how long the thread waits for more notices before delivering a batch
+	private static final int COALESCE_MS = 50;
+	//keys of one table in one batch above which the whole table is invalidated
+	private static final int MAX_KEYS = 1000;
+	private static final long RECONNECT_MS = 2000;
+	//longest wait for a notice when idle, so stop() is noticed
+	private static final int IDLE_WAIT_MS = 500;
+
+	/**
+	 * A cache that wants to hear about changes.
+	 */
+	public interface Listener {
+		/**
+		 * @param table one of TABLES
+		 * @param keys the changed keys, or null when every key may have changed
+		 */
+		void invalidate(String table, Set<String> keys);
+	}
+
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final List<Listener> _listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile boolean _running = true;
+	private Thread _thread;
+
+	public InvalidationBus(String url, String user, String passwd) {
+		_url = url;
+		_user = user;
+		_passwd = passwd;
+	}
+
+	public void addListener(Listener listener) {
+		_listeners.add(listener);
+	}
+
+	/**
+	 * Method to start the listener thread.
+	 */
+	public void start() {
+		_thread = new Thread(this::listen, "invalidation-bus");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Method to stop the listener thread and close its connection.
+	 */
+	public void stop() {
+		_running = false;
+		if (_thread != null) _thread.interrupt();
+	}
+
+	private void listen() {
+		while (_running) {
+			Connection connection = null;
+			try {
+				connection = DriverManager.getConnection(_url, _user, _passwd);
+				Statement stmt = connection.createStatement();
+				stmt.execute("LISTEN " + CHANNEL);
+				stmt.close();
+				// anything may have changed while nobody was listening
+				invalidateAll();
+				PGConnection pg = connection.unwrap(PGConnection.class);
+				Map<String, Set<String>> pending = new HashMap<String, Set<String>>();
+				while (_running) {
+					// block until something arrives, then keep gathering while notices keep coming
+					PGNotification[] notices = pg.getNotifications(pending.isEmpty() ? IDLE_WAIT_MS : COALESCE_MS);
+					if (notices == null || notices.length == 0) {
+						if (!pending.isEmpty()) {
+							deliver(pending);
+							pending = new HashMap<String, Set<String>>();
+						}
+						continue;
+					}
+					for (PGNotification notice : notices) {
+						add(pending, notice.getParameter());
+					}
+				}
+			}catch(SQLException e){
+				if (_running) {
+					System.err.println("Invalidation bus lost its connection, reconnecting: " + e.getMessage());
+				}
+			}finally{
+				try {
+					if (connection != null) connection.close();
+				}catch(SQLException e){
+					// ignored.
+				}
+			}
+			try {
+				Thread.sleep(RECONNECT_MS);
+			}catch(InterruptedException e){
+				return;
+			}
+		}
+	}
+
+	//adds one '<table>:<key>' notice; a null key set means the whole table
+	private static void add(Map<String, Set<String>> pending, String payload) {
+		int colon = payload.indexOf(':');
+		if (colon < 0) return;
+		String table = payload.substring(0, colon);
+		if (pending.containsKey(table) && pending.get(table) == null) return;
+		Set<String> keys = pending.get(table);
+		if (keys == null) {
+			keys = new HashSet<String>();
+			pending.put(table, keys);
+		}
+		keys.add(payload.substring(colon + 1));
+		if (keys.size() > MAX_KEYS) {
+			pending.put(table, null);
+		}
+	}
+
+	private void deliver(Map<String, Set<String>> pending) {
+		for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+			for (Listener listener : _listeners) {
+				try {
+					listener.invalidate(entry.getKey(), entry.getValue());
+				}catch(RuntimeException e){
+					System.err.println("Cache invalidation failed: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	private void invalidateAll() {
+		Map<String, Set<String>> all = new HashMap<String, Set<String>>();
+		for (String table : TABLES) all.put(table, null);
+		deliver(all);
+	}
+}
@@ -0,0 +1,154 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * This class parses the JSON documents Postgres builds with json_agg and
+ * json_build_object. Objects become maps, arrays lists, numbers Long or
+ * Double, and true, false and null their Java counterparts. It accepts
+ * standard JSON only and is meant for documents of a few kilobytes.
+ *
+ */
+public class Json{
+	private final String _text;
+	private int _pos = 0;
+
+	private Json(String text) {
+		_text = text;
+	}
+
+	/**
+	 * Method to parse a JSON document.
+	 *
+	 * @param text the document
+	 * @return the value it holds
+	 * @throws IllegalArgumentException when the text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		Json parser = new Json(text);
+		Object value = parser.value();
+		parser.skipSpace();
+		if (parser._pos != text.length()) throw parser.error("trailing characters");
+		return value;
+	}
+
+	private Object value() {
+		skipSpace();
+		if (_pos >= _text.length()) throw error("unexpected end");
+		char c = _text.charAt(_pos);
+		switch (c) {
+			case '{': return object();
+			case '[': return array();
+			case '"': return string();
+			case 't': literal("true"); return Boolean.TRUE;
+			case 'f': literal("false"); return Boolean.FALSE;
+			case 'n': literal("null"); return null;
+			default: return number();
+		}
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		_pos++;
+		skipSpace();
+		if (peek() == '}') {
+			_pos++;
+			return map;
+		}
+		while (true) {
+			skipSpace();
+			String key = string();
+			skipSpace();
+			expect(':');
+			map.put(key, value());
+			skipSpace();
+			if (peek() == ',') {
+				_pos++;
+				continue;
+			}
+			expect('}');
+			return map;
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> list = new ArrayList<Object>();
+		_pos++;
+		skipSpace();
+		if (peek() == ']') {
+			_pos++;
+			return list;
+		}
+		while (true) {
+			list.add(value());
+			skipSpace();
+			if (peek() == ',') {
+				_pos++;
+				continue;
+			}
+			expect(']');
+			return list;
+		}
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder out = new StringBuilder();
+		while (true) {
+			if (_pos >= _text.length()) throw error("unterminated string");
+			char c = _text.charAt(_pos++);
+			if (c == '"') return out.toString();
+			if (c != '\\') {
+				out.append(c);
+				continue;
+			}
+			char e = _text.charAt(_pos++);
+			switch (e) {
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'u':
+					out.append((char) Integer.parseInt(_text.substring(_pos, _pos + 4), 16));
+					_pos += 4;
+					break;
+				default: out.append(e);
+			}
+		}
+	}
+
+	private Object number() {
+		int start = _pos;
+		while (_pos < _text.length() && "+-0123456789.eE".indexOf(_text.charAt(_pos)) >= 0) _pos++;
+		String digits = _text.substring(start, _pos);
+		if (digits.length() == 0) throw error("unexpected character");
+		if (digits.indexOf('.') >= 0 || digits.indexOf('e') >= 0 || digits.indexOf('E') >= 0) {
+			return Double.valueOf(digits);
+		}
+		return Long.valueOf(digits);
+	}
+
+	private void literal(String word) {
+		if (!_text.startsWith(word, _pos)) throw error("unexpected character");
+		_pos += word.length();
+	}
+
+	private void expect(char c) {
+		if (peek() != c) throw error("expected '" + c + "'");
+		_pos++;
+	}
+
+	private char peek() {
+		return _pos < _text.length() ? _text.charAt(_pos) : 0;
+	}
+
+	private void skipSpace() {
+		while (_pos < _text.length() && Character.isWhitespace(_text.charAt(_pos))) _pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("bad json at " + _pos + ": " + message);
+	}
+}
@@ -0,0 +1,188 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class tells the desk whether a customer id, VIN, mechanic id or
+ * service request number exists without asking the database. Each kind of
+ * key has a Bloom filter of every key loaded at startup or written since,
+ * which rules out mistyped keys, and a bounded LRU of keys confirmed to
+ * exist, which answers for the keys in use. Anything else is a "maybe" the
+ * caller confirms with a lookup and reports back.
+ *
+ * The filters only see this process's writes and the change notices of the
+ * InvalidationBus. A key that is not in a filter is therefore only known
+ * to be absent while the bus is running; a kind whose notices may have
+ * been missed is reloaded and answers "maybe" until then.
+ *
+ */
+public class KnownKeys implements InvalidationBus.Listener{
+	public static final int CUSTOMER = 0;
+	public static final int CAR = 1;
+	public static final int MECHANIC = 2;
+	public static final int REQUEST = 3;
+
+	public static final int ABSENT = 0;
+	public static final int PRESENT = 1;
+	public static final int MAYBE = 2;
+
+	//what each kind loads from, and the notices that carry its keys;
+	//request ids come from Request_Rid, where detached rids stay taken
+	static final String[] KEYS = {
+		"SELECT id FROM Customer",
+		"SELECT vin FROM Car",
+		"SELECT id FROM Mechanic",
+		"SELECT rid FROM Request_Rid",
+	};
+	static final String[] NOTICES = { "customer", "car", "mechanic", "request" };
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	//room in each filter for keys added after the load
+	private static final int GROWTH = 2;
+
+	private final int _confirmedPerKind;
+	private final BloomFilter[] _filters = new BloomFilter[KEYS.length];
+	private final boolean[] _stale = new boolean[KEYS.length];
+	//forget() ran while the kind was loading, so the load may have missed keys
+	private final boolean[] _forgotten = new boolean[KEYS.length];
+	//keys added while a kind is being loaded, replayed into the new filter
+	private final List<String>[] _added;
+	private final Map<String, Boolean>[] _confirmed;
+	//false while no bus delivers other processes' writes
+	private volatile boolean _complete = false;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public KnownKeys(final int confirmedPerKind) {
+		_confirmedPerKind = confirmedPerKind;
+		_confirmed = new Map[KEYS.length];
+		_added = new List[KEYS.length];
+		for (int kind = 0; kind < KEYS.length; kind++) {
+			_confirmed[kind] = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+					return size() > _confirmedPerKind;
+				}
+			};
+			_stale[kind] = true;
+		}
+	}
+
+	/**
+	 * Method to say whether absence in a filter can be trusted, which is the
+	 * case while the InvalidationBus is running.
+	 */
+	public void setComplete(boolean complete) {
+		_complete = complete;
+	}
+
+	/**
+	 * Method to load every key of one kind into a fresh filter.
+	 *
+	 * @throws java.sql.SQLException when the keys could not be read
+	 */
+	public void load(Connection connection, int kind) throws SQLException {
+		synchronized (this) {
+			if (_added[kind] != null) return;
+			_stale[kind] = true;
+			_forgotten[kind] = false;
+			_added[kind] = new ArrayList<String>();
+		}
+		Statement stmt = connection.createStatement();
+		boolean loaded = false;
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT count(*) FROM (" + KEYS[kind] + ") AS k");
+			rs.next();
+			BloomFilter filter = new BloomFilter(rs.getLong(1) * GROWTH, FALSE_POSITIVE_RATE);
+			rs = stmt.executeQuery(KEYS[kind]);
+			while (rs.next()) filter.add(rs.getString(1).trim());
+			synchronized (this) {
+				for (String key : _added[kind]) filter.add(key);
+				_filters[kind] = filter;
+				_stale[kind] = _forgotten[kind];
+				loaded = true;
+			}
+		}finally{
+			stmt.close();
+			synchronized (this) {
+				_added[kind] = null;
+				if (!loaded) _stale[kind] = true;
+			}
+		}
+	}
+
+	public void loadAll(Connection connection) throws SQLException {
+		for (int kind = 0; kind < KEYS.length; kind++) load(connection, kind);
+	}
+
+	/**
+	 * Method to check a key.
+	 *
+	 * @return PRESENT when it was confirmed recently, ABSENT when it
+	 *         certainly does not exist, MAYBE when it must be looked up
+	 */
+	public synchronized int check(int kind, String key) {
+		if (_confirmed[kind].get(key) != null) return PRESENT;
+		if (_filters[kind] == null || _stale[kind] || !_complete) return MAYBE;
+		return _filters[kind].mightContain(key) ? MAYBE : ABSENT;
+	}
+
+	/**
+	 * Method to record that a lookup found a key.
+	 */
+	public synchronized void confirm(int kind, String key) {
+		_confirmed[kind].put(key, Boolean.TRUE);
+	}
+
+	/**
+	 * Method to record a key this process wrote.
+	 *
+	 * @param confirmed false when the write may still be rejected, as with
+	 *        a write-behind ticket, so the key is only "maybe" present
+	 */
+	public synchronized void add(int kind, String key, boolean confirmed) {
+		if (_filters[kind] != null) _filters[kind].add(key);
+		if (_added[kind] != null) _added[kind].add(key);
+		if (confirmed) {
+			_confirmed[kind].put(key, Boolean.TRUE);
+		}else {
+			_confirmed[kind].remove(key);
+		}
+	}
+
+	/**
+	 * Method to drop what is known about a kind after keys were deleted, so
+	 * it answers MAYBE until reloaded.
+	 */
+	public synchronized void forget(int kind) {
+		_confirmed[kind].clear();
+		_stale[kind] = true;
+		if (_added[kind] != null) _forgotten[kind] = true;
+	}
+
+	/**
+	 * @return true when the kind must be reloaded and no load is running
+	 */
+	public synchronized boolean needsLoad(int kind) {
+		return _stale[kind] && _added[kind] == null;
+	}
+
+	/**
+	 * Changed keys go into the filter and out of the confirmed keys, since
+	 * a change may be a delete; a table whose changes were not all delivered
+	 * is forgotten until reloaded.
+	 */
+	public synchronized void invalidate(String table, Set<String> keys) {
+		for (int kind = 0; kind < NOTICES.length; kind++) {
+			if (!NOTICES[kind].equals(table)) continue;
+			if (keys == null) {
+				forget(kind);
+				return;
+			}
+			for (String key : keys) add(kind, key, false);
+		}
+	}
+}
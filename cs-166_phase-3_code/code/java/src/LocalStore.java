@@ -0,0 +1,513 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the intake desk working while the database cannot be
+ * reached. Customers, cars and service requests are appended to a change
+ * log in a local directory and acknowledged once the log is on disk; a
+ * background thread keeps trying the database and, once it answers, ships
+ * the changes in order, up to SYNC_BATCH per transaction, and records the
+ * last shipped change in the synced file.
+ *
+ * A change is applied only when its key is free. When the key is taken by
+ * an identical row the change counts as already applied, which is what a
+ * replay after a crash between the commit and the synced file sees; when
+ * it is taken by a different row, or the database refuses the row (a
+ * ticket for a customer that never reached it, say), the change is written
+ * to the conflicts file with the reason and skipped, so one conflict does
+ * not hold up the changes behind it.
+ *
+ * File layout: a header line "MSK1 <next seq>", the number the next
+ * change gets when the log was rewritten, followed by one tab-separated
+ * line per change ending in a CRC32 of the line, as in IntakeJournal; a
+ * torn last line is cut off at recovery.
+ *
+ */
+public class LocalStore implements IntakeStore{
+	private static final String MAGIC = "MSK1";
+	//most changes shipped in one transaction
+	private static final int SYNC_BATCH = 500;
+	//pause between attempts while the database is down or nothing is waiting
+	private static final long SYNC_INTERVAL_MS = 2000;
+	private static final char CUSTOMER = 'C';
+	private static final char CAR = 'V';
+	private static final char REQUEST = 'R';
+	//outcome of a row the database refused, next to Upserts.CREATED and co
+	private static final int REFUSED = -1;
+
+	private static final String EXISTING_CUSTOMERS = "SELECT id, trim(fname), trim(lname), trim(phone), trim(address) FROM Customer WHERE id = ANY(?)";
+	private static final String EXISTING_CARS = "SELECT trim(vin), trim(make), trim(model), year FROM Car WHERE vin = ANY(?)";
+	private static final String EXISTING_REQUESTS = "SELECT rid, customer_id, trim(car_vin), date::text, odometer, complain FROM Service_Request WHERE rid = ANY(?)";
+
+	//one logged change; row is an Upserts.Customer, Upserts.Car or IntakeJournal.Ticket
+	private static class Change {
+		final long seq;
+		final char kind;
+		final Object row;
+		final String line;
+
+		Change(long seq, char kind, Object row, String line) {
+			this.seq = seq;
+			this.kind = kind;
+			this.row = row;
+			this.line = line;
+		}
+	}
+
+	private final File _dir;
+	private final File _log;
+	private final File _synced;
+	private final File _conflicts;
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final List<Change> _pending = new ArrayList<Change>();
+	private long _nextSeq;
+	private FileChannel _channel;
+	private volatile boolean _running = true;
+	private Thread _syncer;
+
+	/**
+	 * Opens (or creates) the store and recovers the changes not shipped yet.
+	 * Call start() to begin shipping them.
+	 *
+	 * @param dir where the change log, the synced file and the conflicts
+	 *        file are kept, created when missing
+	 * @param url JDBC URL of the primary
+	 * @throws java.io.IOException when the log cannot be read or written
+	 */
+	public LocalStore(File dir, String url, String user, String passwd) throws IOException {
+		_dir = dir;
+		_log = new File(dir, "changes.log");
+		_synced = new File(dir, "synced");
+		_conflicts = new File(dir, "conflicts");
+		_url = url;
+		_user = user;
+		_passwd = passwd;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+		recover();
+	}
+
+	/**
+	 * Method to start the thread that ships the changes.
+	 */
+	public void start() {
+		_syncer = new Thread(this::syncLoop, "kiosk-sync");
+		_syncer.setDaemon(true);
+		_syncer.start();
+	}
+
+	/**
+	 * Method to stop shipping. Changes left are shipped after the next
+	 * start.
+	 */
+	public void stop() {
+		_running = false;
+		if (_syncer != null) {
+			_syncer.interrupt();
+			try {
+				_syncer.join(5000);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			try {
+				_channel.close();
+			}catch(IOException e){
+				// ignored.
+			}
+		}
+	}
+
+	/**
+	 * Method to tell how many changes have not reached the database.
+	 */
+	public synchronized int pending() {
+		return _pending.size();
+	}
+
+	/**
+	 * Method to tell whether a change waiting here adds a key, so the desk
+	 * can use a customer or car it added offline.
+	 *
+	 * @param kind KnownKeys.CUSTOMER, KnownKeys.CAR or KnownKeys.REQUEST
+	 */
+	public synchronized boolean contains(int kind, String key) {
+		for (Change change : _pending) {
+			if (kind == KnownKeys.CUSTOMER && change.kind == CUSTOMER && Integer.toString(((Upserts.Customer) change.row).id).equals(key)) return true;
+			if (kind == KnownKeys.CAR && change.kind == CAR && ((Upserts.Car) change.row).vin.equals(key)) return true;
+			if (kind == KnownKeys.REQUEST && change.kind == REQUEST && Integer.toString(((IntakeJournal.Ticket) change.row).rid).equals(key)) return true;
+		}
+		return false;
+	}
+
+	public int addCustomer(Upserts.Customer customer) throws IOException {
+		append(CUSTOMER, customer, customer.id + "\t" + IntakeJournal.escape(customer.fname) + "\t" + IntakeJournal.escape(customer.lname)
+			+ "\t" + IntakeJournal.escape(customer.phone) + "\t" + IntakeJournal.escape(customer.address));
+		return QUEUED;
+	}
+
+	public int addCar(Upserts.Car car) throws IOException {
+		append(CAR, car, IntakeJournal.escape(car.vin) + "\t" + IntakeJournal.escape(car.make) + "\t" + IntakeJournal.escape(car.model) + "\t" + car.year);
+		return QUEUED;
+	}
+
+	public int insertServiceRequest(IntakeJournal.Ticket ticket) throws IOException {
+		append(REQUEST, ticket, ticket.rid + "\t" + ticket.customerId + "\t" + IntakeJournal.escape(ticket.carVin) + "\t" + ticket.date
+			+ "\t" + ticket.odometer + "\t" + IntakeJournal.escape(ticket.complain));
+		return QUEUED;
+	}
+
+	//returns once the change is on disk
+	private synchronized void append(char kind, Object row, String fields) throws IOException {
+		String line = _nextSeq + "\t" + kind + "\t" + fields;
+		ByteBuffer bytes = ByteBuffer.wrap((line + "\t" + IntakeJournal.crc(line) + "\n").getBytes(StandardCharsets.UTF_8));
+		while (bytes.hasRemaining()) _channel.write(bytes);
+		_channel.force(false);
+		_pending.add(new Change(_nextSeq++, kind, row, line));
+	}
+
+	private void syncLoop() {
+		Connection connection = null;
+		while (_running) {
+			boolean more = false;
+			try {
+				if (pending() > 0) {
+					if (connection == null) {
+						connection = DriverManager.getConnection(_url, _user, _passwd);
+						connection.setAutoCommit(false);
+					}
+					more = syncOnce(connection);
+				}
+			}catch(SQLException e){
+				// an outage is expected here; anything else needs a look
+				if (!ExecutionPolicy.isUnavailable(e)) System.err.println("Kiosk sync failed: " + e.getMessage());
+				try {
+					if (connection != null) connection.close();
+				}catch(SQLException ignored){
+					// ignored.
+				}
+				connection = null;
+			}catch(IOException e){
+				System.err.println("Kiosk store write failed: " + e.getMessage());
+			}
+			if (!_running) break;
+			if (!more) {
+				try {
+					Thread.sleep(SYNC_INTERVAL_MS);
+				}catch(InterruptedException e){
+					break;
+				}
+			}
+		}
+		try {
+			if (connection != null) connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/*
+	 * Ships up to SYNC_BATCH changes in one transaction, consecutive changes
+	 * of a kind as one statement. Returns true when more changes are waiting.
+	 */
+	private boolean syncOnce(Connection connection) throws SQLException, IOException {
+		List<Change> batch;
+		synchronized (this) {
+			batch = new ArrayList<Change>(_pending.subList(0, Math.min(SYNC_BATCH, _pending.size())));
+		}
+		List<IntakeJournal.Ticket> tickets = new ArrayList<IntakeJournal.Ticket>();
+		for (Change change : batch) {
+			if (change.kind == REQUEST) tickets.add((IntakeJournal.Ticket) change.row);
+		}
+		if (!tickets.isEmpty()) IntakeJournal.ensurePartitions(connection, tickets);
+		List<String> conflicts = new ArrayList<String>();
+		try {
+			int start = 0;
+			while (start < batch.size()) {
+				int end = start;
+				while (end < batch.size() && batch.get(end).kind == batch.get(start).kind) end++;
+				List<Change> run = batch.subList(start, end);
+				if (run.get(0).kind == CUSTOMER) shipCustomers(connection, run, conflicts);
+				else if (run.get(0).kind == CAR) shipCars(connection, run, conflicts);
+				else shipTickets(connection, run, conflicts);
+				start = end;
+			}
+			connection.commit();
+		}catch(SQLException e){
+			connection.rollback();
+			throw e;
+		}
+		// listed before the synced file moves past them; a crash here can
+		// only list a conflict twice, never lose it
+		if (!conflicts.isEmpty()) writeConflicts(conflicts);
+		writeSynced(batch.get(batch.size() - 1).seq);
+		synchronized (this) {
+			_pending.subList(0, batch.size()).clear();
+			if (_pending.isEmpty()) compact();
+			return !_pending.isEmpty();
+		}
+	}
+
+	private static void shipCustomers(Connection connection, List<Change> run, List<String> conflicts) throws SQLException {
+		List<Upserts.Customer> rows = new ArrayList<Upserts.Customer>();
+		for (Change change : run) rows.add((Upserts.Customer) change.row);
+		int[] outcome = upsert(connection, run, rows, (c, some) -> Upserts.customers(c, some, false), conflicts);
+		Map<Object, List<Object>> existing = existing(connection, EXISTING_CUSTOMERS, "int4", run, outcome, change -> ((Upserts.Customer) change.row).id);
+		for (int i = 0; i < run.size(); i++) {
+			if (outcome[i] == Upserts.CREATED || outcome[i] == REFUSED) continue;
+			Upserts.Customer row = rows.get(i);
+			List<Object> found = existing.get(row.id);
+			if (!same(found, row.id, row.fname, row.lname, row.phone, row.address)) conflicts.add(run.get(i).line + "\tcustomer id taken by " + found);
+		}
+	}
+
+	private static void shipCars(Connection connection, List<Change> run, List<String> conflicts) throws SQLException {
+		List<Upserts.Car> rows = new ArrayList<Upserts.Car>();
+		for (Change change : run) rows.add((Upserts.Car) change.row);
+		int[] outcome = upsert(connection, run, rows, (c, some) -> Upserts.cars(c, some, false), conflicts);
+		Map<Object, List<Object>> existing = existing(connection, EXISTING_CARS, "text", run, outcome, change -> ((Upserts.Car) change.row).vin);
+		for (int i = 0; i < run.size(); i++) {
+			if (outcome[i] == Upserts.CREATED || outcome[i] == REFUSED) continue;
+			Upserts.Car row = rows.get(i);
+			List<Object> found = existing.get(row.vin);
+			if (!same(found, row.vin, row.make, row.model, row.year)) conflicts.add(run.get(i).line + "\tVIN taken by " + found);
+		}
+	}
+
+	private static void shipTickets(Connection connection, List<Change> run, List<String> conflicts) throws SQLException {
+		// every ticket's rid is looked up
+		int[] all = new int[run.size()];
+		java.util.Arrays.fill(all, Upserts.UNCHANGED);
+		Map<Object, List<Object>> existing = existing(connection, EXISTING_REQUESTS, "int4", run, all, change -> ((IntakeJournal.Ticket) change.row).rid);
+		List<Change> fresh = new ArrayList<Change>();
+		for (Change change : run) {
+			IntakeJournal.Ticket ticket = (IntakeJournal.Ticket) change.row;
+			List<Object> found = existing.get(ticket.rid);
+			if (found == null) {
+				fresh.add(change);
+			}else if (!same(found, ticket.rid, ticket.customerId, ticket.carVin, ticket.date, ticket.odometer, ticket.complain)) {
+				conflicts.add(change.line + "\trid taken by " + found);
+			}
+		}
+		if (fresh.isEmpty()) return;
+		PreparedStatement insert = connection.prepareStatement(IntakeJournal.INSERT);
+		Savepoint before = connection.setSavepoint();
+		try {
+			for (Change change : fresh) {
+				IntakeJournal.bind(insert, (IntakeJournal.Ticket) change.row);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+			connection.releaseSavepoint(before);
+		}catch(SQLException e){
+			if (ExecutionPolicy.isRetryable(e)) throw e;
+			// a ticket the database refuses: redo one by one and list it
+			connection.rollback(before);
+			for (Change change : fresh) {
+				Savepoint savepoint = connection.setSavepoint();
+				try {
+					IntakeJournal.bind(insert, (IntakeJournal.Ticket) change.row);
+					insert.executeUpdate();
+					connection.releaseSavepoint(savepoint);
+				}catch(SQLException refused){
+					if (ExecutionPolicy.isRetryable(refused)) throw refused;
+					connection.rollback(savepoint);
+					conflicts.add(change.line + "\t" + refused.getMessage().replace('\n', ' '));
+				}
+			}
+		}finally{
+			insert.close();
+		}
+	}
+
+	private interface Upsert<T> {
+		int[] apply(Connection connection, List<T> rows) throws SQLException;
+	}
+
+	/*
+	 * Writes the rows as one statement; when the database refuses it, redoes
+	 * them one by one, each under its own savepoint, and lists the refused
+	 * ones as conflicts with outcome REFUSED.
+	 */
+	private static <T> int[] upsert(Connection connection, List<Change> run, List<T> rows, Upsert<T> upsert, List<String> conflicts) throws SQLException {
+		Savepoint before = connection.setSavepoint();
+		try {
+			int[] outcome = upsert.apply(connection, rows);
+			connection.releaseSavepoint(before);
+			return outcome;
+		}catch(SQLException e){
+			if (ExecutionPolicy.isRetryable(e)) throw e;
+			connection.rollback(before);
+		}
+		int[] outcome = new int[rows.size()];
+		for (int i = 0; i < rows.size(); i++) {
+			Savepoint savepoint = connection.setSavepoint();
+			try {
+				outcome[i] = upsert.apply(connection, rows.subList(i, i + 1))[0];
+				connection.releaseSavepoint(savepoint);
+			}catch(SQLException refused){
+				if (ExecutionPolicy.isRetryable(refused)) throw refused;
+				connection.rollback(savepoint);
+				conflicts.add(run.get(i).line + "\t" + refused.getMessage().replace('\n', ' '));
+				outcome[i] = REFUSED;
+			}
+		}
+		return outcome;
+	}
+
+	private interface KeyOf {
+		Object key(Change change);
+	}
+
+	//the rows already holding the keys of the changes neither created nor refused, by key
+	private static Map<Object, List<Object>> existing(Connection connection, String query, String type, List<Change> run, int[] outcome, KeyOf keyOf) throws SQLException {
+		Map<Object, List<Object>> rows = new HashMap<Object, List<Object>>();
+		List<Object> keys = new ArrayList<Object>();
+		for (int i = 0; i < run.size(); i++) {
+			if (outcome[i] != Upserts.CREATED && outcome[i] != REFUSED) keys.add(keyOf.key(run.get(i)));
+		}
+		if (keys.isEmpty()) return rows;
+		PreparedStatement stmt = connection.prepareStatement(query);
+		try {
+			Array array = connection.createArrayOf(type, keys.toArray());
+			stmt.setArray(1, array);
+			ResultSet rs = stmt.executeQuery();
+			int numCol = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				List<Object> row = new ArrayList<Object>(numCol);
+				for (int i = 1; i <= numCol; i++) row.add(rs.getObject(i));
+				rows.put(row.get(0), row);
+			}
+		}finally{
+			stmt.close();
+		}
+		return rows;
+	}
+
+	//compares as text, ignoring the padding of CHAR columns
+	private static boolean same(List<Object> found, Object... values) {
+		if (found == null || found.size() != values.length) return false;
+		for (int i = 0; i < values.length; i++) {
+			String a = found.get(i) == null ? null : found.get(i).toString().trim();
+			String b = values[i] == null ? null : values[i].toString().trim();
+			if (a == null ? b != null : !a.equals(b)) return false;
+		}
+		return true;
+	}
+
+	private void writeConflicts(List<String> conflicts) throws IOException {
+		FileWriter out = new FileWriter(_conflicts, true);
+		try {
+			for (String conflict : conflicts) {
+				out.write(conflict + "\n");
+				System.err.println("Offline change not applied: " + conflict);
+			}
+		}finally{
+			out.close();
+		}
+	}
+
+	private void writeSynced(long seq) throws IOException {
+		File tmp = new File(_dir, "synced.tmp");
+		Files.write(tmp.toPath(), (seq + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), _synced.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private long readSynced() throws IOException {
+		if (!_synced.exists()) return 0;
+		return Long.parseLong(new String(Files.readAllBytes(_synced.toPath()), StandardCharsets.UTF_8).trim());
+	}
+
+	//reads the log back, cutting off a torn last line
+	private void recover() throws IOException {
+		long synced = readSynced();
+		_nextSeq = synced + 1;
+		if (_log.exists()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(_log), StandardCharsets.UTF_8));
+			try {
+				String header = in.readLine();
+				if (header != null && header.startsWith(MAGIC + " ")) {
+					_nextSeq = Math.max(_nextSeq, Long.parseLong(header.substring(MAGIC.length() + 1).trim()));
+					String line;
+					while ((line = in.readLine()) != null) {
+						Change change = decode(line);
+						if (change == null) break;
+						if (change.seq > synced) _pending.add(change);
+						_nextSeq = Math.max(_nextSeq, change.seq + 1);
+					}
+				}
+			}finally{
+				in.close();
+			}
+		}
+		// rewritten with only the unshipped changes, which also drops a torn line
+		rewrite();
+	}
+
+	//called with no changes pending, so the log can start over
+	private void compact() throws IOException {
+		if (_channel.size() > (1 << 20)) rewrite();
+	}
+
+	private void rewrite() throws IOException {
+		if (_channel != null) _channel.close();
+		File tmp = new File(_dir, "changes.log.tmp");
+		StringBuilder text = new StringBuilder(MAGIC + " " + _nextSeq + "\n");
+		for (Change change : _pending) text.append(change.line).append('\t').append(IntakeJournal.crc(change.line)).append('\n');
+		FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+			while (bytes.hasRemaining()) channel.write(bytes);
+			channel.force(true);
+		}finally{
+			channel.close();
+		}
+		Files.move(tmp.toPath(), _log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		_channel = FileChannel.open(_log.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	//null for a line that is torn or corrupt
+	private static Change decode(String line) {
+		int tab = line.lastIndexOf('\t');
+		if (tab < 0 || !line.substring(tab + 1).equals(String.valueOf(IntakeJournal.crc(line.substring(0, tab))))) return null;
+		String text = line.substring(0, tab);
+		String[] f = text.split("\t", -1);
+		long seq = Long.parseLong(f[0]);
+		char kind = f[1].charAt(0);
+		if (kind == CUSTOMER && f.length == 7) {
+			return new Change(seq, kind, new Upserts.Customer(Integer.parseInt(f[2]), IntakeJournal.unescape(f[3]), IntakeJournal.unescape(f[4]),
+				IntakeJournal.unescape(f[5]), IntakeJournal.unescape(f[6])), text);
+		}
+		if (kind == CAR && f.length == 6) {
+			return new Change(seq, kind, new Upserts.Car(IntakeJournal.unescape(f[2]), IntakeJournal.unescape(f[3]), IntakeJournal.unescape(f[4]), Integer.parseInt(f[5])), text);
+		}
+		if (kind == REQUEST && f.length == 8) {
+			return new Change(seq, kind, new IntakeJournal.Ticket(Integer.parseInt(f[2]), Integer.parseInt(f[3]), IntakeJournal.unescape(f[4]), f[5],
+				Integer.parseInt(f[6]), IntakeJournal.unescape(f[7])), text);
+		}
+		return null;
+	}
+}
@@ -14,6 +14,7 @@
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -23,6 +24,13 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -31,15 +39,124 @@ import java.util.ArrayList;
  */
 
 public class MechanicShop{
+	//report queries; the %s in reports 6 and 10 takes the optional closing date range
+	static final String QUERY_CUSTOMERS_WITH_BILL_LESS_THAN_100 = "SELECT Customer.fname, Customer.lname, Closed_Request.bill FROM Customer, Closed_Request, Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Service_Request.customer_id = Customer.id%s;";
+	//one row per car, from the per-car odometer statistics
+	static final String QUERY_CARS_BEFORE_1995_WITH_50000_MILES = "SELECT Car.vin, Car.make, Car.model, Car.year, s.min_odometer AS odometer FROM Car, Car_Mileage_Stats s WHERE Car.vin = s.car_vin AND Car.year < 1995 AND s.min_odometer < 50000;";
+	/*
+	 * Service forecast: a car is due one average visit interval after its
+	 * last visit, or when it has covered the service interval in miles at
+	 * its average miles per day, whichever comes first. The %d take the
+	 * service interval in miles and the days ahead to list.
+	 */
+	static final String QUERY_SERVICE_FORECAST = "SELECT Car.vin, Car.make, Car.model, s.visits, s.last_date, s.last_odometer, round(m.per_day, 1) AS miles_per_day, s.rollbacks, f.next_service "
+		+ "FROM Car_Mileage_Stats s, Car, "
+		+ "LATERAL (SELECT CASE WHEN s.last_date > s.first_date AND s.last_odometer >= s.first_odometer THEN (s.last_odometer - s.first_odometer)::NUMERIC / (s.last_date - s.first_date) END AS per_day) AS m, "
+		+ "LATERAL (SELECT LEAST(CASE WHEN s.visits > 1 THEN s.last_date + (s.last_date - s.first_date) / (s.visits - 1) END, "
+		+ "CASE WHEN m.per_day > 0 THEN s.last_date + ceil(%d / m.per_day)::INTEGER END) AS next_service) AS f "
+		+ "WHERE Car.vin = s.car_vin AND f.next_service <= CURRENT_DATE + %d ORDER BY f.next_service, Car.vin;";
+	//report 7 with its N, a range scan of the counts Owns triggers keep
+	static final String QUERY_CUSTOMERS_WITH_MORE_THAN_N_CARS = "SELECT c.fname, c.lname, n.cars AS numCars FROM Customer_Car_Count n, Customer c WHERE n.cars > %d AND c.id = n.customer_id ORDER BY n.cars DESC, n.customer_id;";
+	//report 9 with its K
+	static final String QUERY_TOP_K_CARS_BY_SERVICES = "SELECT c.vin, c.make, c.model, c.year, s.services FROM Car c, (SELECT car_vin, COUNT(*) AS services FROM Service_Request GROUP BY car_vin ORDER BY services DESC, car_vin LIMIT %d) AS s WHERE c.vin = s.car_vin ORDER BY s.services DESC, c.vin;";
+	static final String QUERY_CUSTOMERS_BY_TOTAL_BILL = "SELECT * FROM customer c, (SELECT sr.customer_id, SUM(cr.bill) AS totalBill FROM service_request sr, closed_request cr WHERE sr.rid = cr.rid%s GROUP BY sr.customer_id) AS c2 WHERE c.id = c2.customer_id ORDER BY c2.totalBill DESC; ";
+	//K of report 9 where no one asks for it: warm-up, exports and the dashboard
+	static final int DEFAULT_TOP_K = 10;
+
+	//reports 6-10 over all history, in menu order
+	static String[] reportQueries() {
+		return new String[] {
+			String.format(QUERY_CUSTOMERS_WITH_BILL_LESS_THAN_100, ""),
+			String.format(QUERY_CUSTOMERS_WITH_MORE_THAN_N_CARS, 20),
+			QUERY_CARS_BEFORE_1995_WITH_50000_MILES,
+			String.format(QUERY_TOP_K_CARS_BY_SERVICES, DEFAULT_TOP_K),
+			String.format(QUERY_CUSTOMERS_BY_TOTAL_BILL, "")
+		};
+	}
+
+	//existence checks run on every CloseServiceRequest, prepared at startup
+	static final String LOOKUP_SERVICE_REQUEST = "SELECT 1 FROM Request_Rid WHERE rid = ?";
+	static final String LOOKUP_MECHANIC = "SELECT 1 FROM Mechanic WHERE id = ?";
+	static final String LOOKUP_CUSTOMER = "SELECT 1 FROM Customer WHERE id = ?";
+	static final String LOOKUP_CAR = "SELECT 1 FROM Car WHERE vin = ?";
+	//the lookup confirming each kind of KnownKeys
+	static final String[] LOOKUPS = { LOOKUP_CUSTOMER, LOOKUP_CAR, LOOKUP_MECHANIC, LOOKUP_SERVICE_REQUEST };
+
 	//reference to physical database connection
 	private Connection _connection = null;
+	//how the primary connection is reopened after it broke
+	private String _url;
+	private String _user;
+	private String _passwd;
+	//retries, backoff and circuit breaker shared by every operation on the primary
+	private final ExecutionPolicy _policy = new ExecutionPolicy();
+	//read replicas used by the reports, null when running against the primary only
+	private ReplicaRouter _replicas = null;
+	//change notices from other MechanicShop processes, null when not listening
+	private InvalidationBus _bus = null;
+	//report rows kept while the bus keeps them current, null when not listening
+	private ReportCache _reportCache = null;
+	//car counts held in-process while the bus keeps them current, null when not listening
+	private CarCountIndex _carCounts = null;
+	//customer profiles most recently shown at the desk
+	private final ProfileCache _profiles = new ProfileCache(256);
+	//which customer ids, VINs, mechanic ids and rids exist, answered in-process
+	private final KnownKeys _keys = new KnownKeys(4096);
+	//customers filed by blocking key, for the duplicate warnings of AddCustomer
+	private final CustomerDedup _dedup = new CustomerDedup();
+	//write-behind journal InsertServiceRequest appends to, null when writing through
+	private IntakeJournal _journal = null;
+	//extra connections to the primary for work spread over several backends
+	private ConnectionPool _pool = null;
+	private int _poolSize = Runtime.getRuntime().availableProcessors() + 1;
+	//runs report 10 over customer id ranges, null when it runs as one query
+	private ParallelReports _parallel = null;
+	//runs reports 6-10 at once for menu 22, made on first use
+	private ReportDashboard _dashboard = null;
+	//runs executeUpdateAsync and queryAsync, made on first use
+	private AsyncExecutor _async = null;
+	//this shop and the other shops reports 6-10 run against, null for this shop only
+	private FederatedReports _federation = null;
+	//per-day sketches the desk's writes feed, null when not kept
+	private volatile SketchBuckets _sketches = null;
+	//closed tickets moved out of the database, when started with --archive
+	private TicketArchive _archive = null;
+	//where AddCustomer, AddCar and InsertServiceRequest write
+	private final IntakeStore _store = new PostgresStore(this);
+	//kiosk mode: intake writes kept while the database is unreachable, null when not enabled
+	private LocalStore _offline = null;
+	//server-side prepared statements on the primary, by SQL text
+	private Map<String, PreparedStatement> _prepared = new HashMap<String, PreparedStatement>();
+	//monthly request partitions known to exist, as <table>_<yyyy-mm>
+	private Set<String> _partitionedMonths = new HashSet<String>();
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 	
 	public MechanicShop(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this("jdbc:postgresql://localhost:" + dbport + "/" + dbname, new ArrayList<String>(), 0, user, passwd);
+	}
+
+	/**
+	 * Connects to the primary and to the read replicas used by the reports.
+	 * 
+	 * @param url JDBC URL of the primary, which takes every write
+	 * @param replicaUrls JDBC URLs of the streaming replicas, may be empty
+	 * @param maxLagSeconds replay lag above which a replica is skipped
+	 */
+	public MechanicShop(String url, List<String> replicaUrls, double maxLagSeconds, String user, String passwd) throws SQLException {
+		this(url, replicaUrls, maxLagSeconds, user, passwd, false);
+	}
+
+	/**
+	 * @param mayStartOffline true to start without the primary when it cannot
+	 *        be reached, as kiosk mode does; it is connected on first use
+	 * @see #MechanicShop(String, List, double, String, String)
+	 */
+	public MechanicShop(String url, List<String> replicaUrls, double maxLagSeconds, String user, String passwd, boolean mayStartOffline) throws SQLException {
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
 		System.out.print("Connecting to database...");
 		try{
-			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
 			// obtain a physical connection
@@ -47,29 +164,388 @@ public class MechanicShop{
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
-	        System.out.println("Make sure you started postgres on this machine");
-	        System.exit(-1);
+			if (mayStartOffline) {
+				System.out.println("Starting offline; intake is kept locally until the database answers");
+			}else {
+		        System.out.println("Make sure you started postgres on this machine");
+		        System.exit(-1);
+			}
+		}
+		if (!replicaUrls.isEmpty()) {
+			this._replicas = new ReplicaRouter(replicaUrls, user, passwd, maxLagSeconds);
 		}
 	}
 	
+	/**
+	 * An operation on the primary connection.
+	 */
+	interface PrimaryAction<T> {
+		T run(Connection connection) throws SQLException;
+	}
+
+	/**
+	 * Method to start listening for the change notices published by the
+	 * database triggers. From then on report results are cached and dropped
+	 * whenever another process (or this one) changes a table they read.
+	 */
+	public void enableInvalidation () {
+		if (this._bus != null) return;
+		this._bus = new InvalidationBus(_url, _user, _passwd);
+		this._reportCache = new ReportCache();
+		this._bus.addListener(this._reportCache);
+		this._carCounts = new CarCountIndex();
+		this._bus.addListener(this._carCounts);
+		this._bus.addListener(this._profiles);
+		this._bus.addListener(this._keys);
+		this._bus.addListener(this._dedup);
+		this._keys.setComplete(true);
+		this._bus.start();
+	}
+
+	/**
+	 * Method to get the customer 360 view, from the profile cache when it
+	 * has it and otherwise in a single query on the primary.
+	 * 
+	 * @param id the customer id
+	 * @return the profile, or null when there is no such customer
+	 * @throws java.sql.SQLException when the profile could not be loaded
+	 */
+	public CustomerProfile getCustomerProfile (final int id) throws SQLException {
+		CustomerProfile cached = this._profiles.get(id);
+		if (cached != null) return cached;
+		return onPrimary(connection -> _profiles.load(connection, id));
+	}
+
+	/**
+	 * Method to switch InsertServiceRequest to write-behind: tickets are
+	 * acknowledged once they are in the journal file and reach the database
+	 * in the background. Tickets left over from an earlier run are replayed.
+	 * 
+	 * @param file the journal file, created when missing
+	 * @throws java.io.IOException when the journal cannot be used
+	 */
+	public void enableWriteBehind (File file) throws java.io.IOException {
+		this._journal = new IntakeJournal(file, _url, _user, _passwd);
+		// a ticket counts on the dashboard once it is in the database
+		this._journal.setListener(this::sketchRequestsFlushed);
+		this._journal.start();
+	}
+
+	/**
+	 * Method to get the pool of extra primary connections, opening it with
+	 * the configured size the first time.
+	 * 
+	 * @return the pool, owned by this object
+	 */
+	public synchronized ConnectionPool getPool () {
+		if (this._pool == null) {
+			this._pool = new ConnectionPool(_url, _user, _passwd, _poolSize);
+		}
+		return this._pool;
+	}
+
+	/**
+	 * Method to get the runner of menu 22, which shares the pool.
+	 */
+	public synchronized ReportDashboard getReportDashboard () {
+		if (this._dashboard == null) {
+			this._dashboard = new ReportDashboard(getPool());
+		}
+		return this._dashboard;
+	}
+
+	/**
+	 * Method to run report 10 split over customer id ranges on
+	 * several pooled connections sharing one snapshot.
+	 * 
+	 * @param workers ranges that run at the same time
+	 */
+	public void enableParallelReports (int workers) {
+		this._poolSize = Math.max(this._poolSize, workers + 1);
+		this._parallel = new ParallelReports(getPool(), workers);
+	}
+
+	/**
+	 * Method to list the customers owning more than a number of cars, from
+	 * the in-process index while listening and otherwise from an index
+	 * range scan of Customer_Car_Count on the report connection.
+	 * 
+	 * @param cars the number to exceed
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when the counts could not be read
+	 */
+	public int printCustomersWithMoreThan (int cars) throws SQLException {
+		if (this._carCounts == null) {
+			return executeReportAndPrintResult(String.format(QUERY_CUSTOMERS_WITH_MORE_THAN_N_CARS, cars));
+		}
+		if (this._carCounts.isStale()) {
+			onPrimary(connection -> {
+				_carCounts.load(connection);
+				return null;
+			});
+		}
+		return ReportCache.print(this._carCounts.moreThan(cars));
+	}
+
+	/**
+	 * Method to bring the customers the duplicate checks compare against up
+	 * to date, reading them on first use.
+	 * 
+	 * @return the duplicate finder
+	 * @throws java.sql.SQLException when the customers could not be read
+	 */
+	public CustomerDedup getDedup () throws SQLException {
+		if (this._dedup.isStale()) {
+			onPrimary(connection -> {
+				_dedup.refresh(connection);
+				return null;
+			});
+		}
+		return this._dedup;
+	}
+
+	/**
+	 * Method to run reports 6-10 against other shops' databases as well as
+	 * this one and print the combined rows.
+	 * 
+	 * @param shopUrls JDBC URLs of the other shops
+	 * @param timeoutMillis how long a report waits for the slowest shop
+	 *        before printing without it
+	 */
+	public void enableFederation (List<String> shopUrls, long timeoutMillis) {
+		List<String> urls = new ArrayList<String>();
+		urls.add(_url);
+		urls.addAll(shopUrls);
+		this._federation = new FederatedReports(urls, _user, _passwd, timeoutMillis);
+	}
+
+	/**
+	 * Method to keep dashboard sketches of the requests this desk opens and
+	 * closes, saved per day in a directory.
+	 * 
+	 * @param dir where the days are saved, read now when it exists
+	 * @throws java.io.IOException when a saved day cannot be read
+	 */
+	public void enableSketches (File dir) throws java.io.IOException {
+		this._sketches = new SketchBuckets(dir);
+	}
+
+	/**
+	 * Method to keep old closed tickets in archive files and let reports 6
+	 * and 10 read them back.
+	 * 
+	 * @param dir where the archive segments are kept, created when missing
+	 * @throws java.io.IOException when the archive index cannot be read
+	 */
+	public void enableArchive (File dir) throws java.io.IOException {
+		this._archive = new TicketArchive(dir);
+	}
+
+	/**
+	 * Method to keep the desk taking customers, cars and service requests
+	 * while the database cannot be reached. Those writes then go to a local
+	 * store and are shipped once the database answers again; changes left
+	 * from an earlier run are shipped too.
+	 * 
+	 * @param dir where the local store keeps its files, created when missing
+	 * @throws java.io.IOException when the local store cannot be used
+	 */
+	public void enableKiosk (File dir) throws java.io.IOException {
+		this._offline = new LocalStore(dir, _url, _user, _passwd);
+		this._offline.start();
+	}
+
+	/**
+	 * An intake write, on whichever store takes it.
+	 */
+	interface StoreAction {
+		int run(IntakeStore store) throws SQLException, java.io.IOException;
+	}
+
+	/*
+	 * Runs an intake write on the database. In kiosk mode it goes to the
+	 * local store instead when the database cannot be reached, and also while
+	 * earlier offline changes are waiting, so that changes reach the database
+	 * in the order they were made.
+	 */
+	private int intake (StoreAction action) throws SQLException, java.io.IOException {
+		if (this._offline == null) return action.run(this._store);
+		if (this._offline.pending() == 0) {
+			try {
+				return action.run(this._store);
+			}catch(SQLException e){
+				if (!isOffline(e)) throw e;
+				// a write cut off mid-commit is told apart from a new one when shipped
+			}
+		}
+		return action.run(this._offline);
+	}
+
+	private static boolean isOffline (SQLException e) {
+		return ExecutionPolicy.isUnavailable(e) || ExecutionPolicy.CIRCUIT_OPEN_STATE.equals(e.getSQLState());
+	}
+
+	/*
+	 * Feeds the sketches after a write went through. A sketch that cannot be
+	 * saved does not fail the write; the day is saved again with the next.
+	 */
+	private void sketchRequestOpened (String date, int customerId, String vin, String complaint) {
+		if (this._sketches == null) return;
+		this._sketches.requestOpened(date, customerId, vin, complaint);
+		saveSketches();
+	}
+
+	//feeds the tickets of a committed journal flush, on the flusher thread
+	private void sketchRequestsFlushed (List<IntakeJournal.Ticket> tickets) {
+		SketchBuckets sketches = this._sketches;
+		if (sketches == null) return;
+		for (IntakeJournal.Ticket ticket : tickets) sketches.requestOpened(ticket.date, ticket.customerId, ticket.carVin, ticket.complain);
+		saveSketches();
+	}
+
+	//closed on the database's CURRENT_DATE, the date the Closed_Request row got
+	private void sketchRequestClosed (int rid) {
+		if (this._sketches == null) return;
+		try {
+			List<List<String>> customer = executeQueryAndReturnResult("SELECT customer_id, CURRENT_DATE FROM Service_Request WHERE rid = " + rid + ";");
+			if (customer.isEmpty()) return;
+			this._sketches.requestClosed(customer.get(0).get(1), Integer.parseInt(customer.get(0).get(0)));
+			saveSketches();
+		}catch(SQLException e){
+			System.err.println("Could not update the dashboard sketches: " + e.getMessage());
+		}
+	}
+
+	private void saveSketches () {
+		try {
+			this._sketches.save();
+		}catch(java.io.IOException e){
+			System.err.println("Could not save the dashboard sketches: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to register another cache with the invalidation bus.
+	 * 
+	 * @param listener the cache
+	 * @return false when the bus is not running, so the cache must not be used
+	 */
+	public boolean addInvalidationListener (InvalidationBus.Listener listener) {
+		if (this._bus == null) return false;
+		this._bus.addListener(listener);
+		return true;
+	}
+
+	/**
+	 * Method to run an operation on the primary under the shared execution
+	 * policy. Transient failures are retried with backoff, a connection that
+	 * broke is reopened for the next attempt, and while the database is
+	 * down operations fail fast instead of waiting for a timeout each.
+	 * 
+	 * @param action the operation, which may run more than once
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException when the operation failed for good
+	 */
+	public <T> T onPrimary (final PrimaryAction<T> action) throws SQLException {
+		return onPrimary(action, true);
+	}
+
+	/**
+	 * Method to run a write that must not happen twice, such as a plain
+	 * INSERT, on the primary. It is retried only when it cannot have
+	 * reached the server (see ExecutionPolicy.isRetryableWrite).
+	 * 
+	 * @param action the write
+	 * @return what the write returned
+	 * @throws java.sql.SQLException when the write failed or its outcome is unknown
+	 */
+	public <T> T onPrimaryWrite (final PrimaryAction<T> action) throws SQLException {
+		return onPrimary(action, false);
+	}
+
+	private <T> T onPrimary (final PrimaryAction<T> action, boolean idempotent) throws SQLException {
+		return _policy.execute(() -> {
+			try {
+				return action.run(primary());
+			}catch(SQLException e){
+				if (ExecutionPolicy.isUnavailable(e)) dropPrimary();
+				throw e;
+			}
+		}, idempotent);
+	}
+
+	//the primary connection, reopened when the last failure broke it
+	private synchronized Connection primary () throws SQLException {
+		if (this._connection == null) {
+			this._connection = DriverManager.getConnection(_url, _user, _passwd);
+		}
+		return this._connection;
+	}
+
+	//forgets a broken primary connection and the statements prepared on it
+	private synchronized void dropPrimary () {
+		try {
+			if (this._connection != null) this._connection.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		this._connection = null;
+		_prepared.clear();
+	}
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP. It is not retried
+	 * once it may have reached the server.
 	 * 
 	 * @param sql the input SQL string
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public void executeUpdate (final String sql) throws SQLException { 
+		onPrimaryWrite(connection -> {
+			// creates a statement object
+			Statement stmt = connection.createStatement ();
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+			// issues the update instruction
+			stmt.executeUpdate (sql);
 
-		// close the instruction
-	    stmt.close ();
+			// close the instruction
+			stmt.close ();
+			return null;
+		});
 	}//end executeUpdate
 
+	/**
+	 * Method to execute an update SQL instruction without waiting for it.
+	 * It runs on a pooled connection, pipelined with other updates waiting
+	 * at the same time (see AsyncExecutor), so independent updates may run
+	 * in any order.
+	 * 
+	 * @param sql the input SQL string
+	 * @return the number of rows changed, or the SQLException it failed with
+	 */
+	public CompletableFuture<Integer> executeUpdateAsync (String sql) {
+		return getAsync().executeUpdateAsync(sql);
+	}
+
+	/**
+	 * Method to execute a query without waiting for it, on a pooled
+	 * connection.
+	 * 
+	 * @param query the input query string
+	 * @return the rows as executeQueryAndReturnResult returns them
+	 */
+	public CompletableFuture<List<List<String>>> queryAsync (String query) {
+		return getAsync().queryAsync(query);
+	}
+
+	private synchronized AsyncExecutor getAsync () {
+		if (this._async == null) {
+			this._async = new AsyncExecutor(getPool(), _poolSize);
+		}
+		return this._async;
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -79,9 +555,61 @@ public class MechanicShop{
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
+	public int executeQueryAndPrintResult (final String query) throws SQLException {
+		return onPrimary(connection -> printResult(connection, query));
+	}
+
+	/**
+	 * Method to run a read-only report and print its result. The report goes
+	 * to a replica when one is configured and within the lag limit, and to
+	 * the primary otherwise or when the replica fails. Lookups whose answer
+	 * must include this session's own writes use executeQuery instead.
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeReportAndPrintResult (final String query) throws SQLException {
+		if (this._reportCache != null) {
+			// cached rows must not come from a replica that has not replayed
+			// the change that invalidated them yet
+			return ReportCache.print(onPrimary(connection -> _reportCache.get(connection, query)));
+		}
+		Connection replica = readConnection();
+		if (replica != null) {
+			// read it all before printing, so a replica failing halfway
+			// does not leave rows on the screen that the primary prints again
+			ReportCache.Result result = null;
+			try {
+				result = ReportCache.load(replica, query);
+			}catch(SQLException e){
+				System.err.println("Replica failed, using primary: " + e.getMessage());
+				this._replicas.markFailed(replica);
+			}
+			if (result != null) return ReportCache.print(result);
+		}
+		return executeQueryAndPrintResult(query);
+	}
+
+	//a replica connection for a report, or null when the primary must be used
+	private Connection readConnection () {
+		return this._replicas == null ? null : this._replicas.pick();
+	}
+
+	/**
+	 * Method to get the connection read-only reports should run on: a
+	 * replica when one is usable, the primary otherwise.
+	 * 
+	 * @return a connection owned by this object, not to be closed
+	 */
+	public Connection getReportConnection () throws SQLException {
+		Connection replica = readConnection();
+		return replica != null ? replica : primary();
+	}
+
+	private static int printResult (Connection connection, String query) throws SQLException {
 		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		Statement stmt = connection.createStatement ();
 
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
@@ -122,9 +650,13 @@ public class MechanicShop{
 	 * @return the query result as a list of records
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+	public List<List<String>> executeQueryAndReturnResult (final String query) throws SQLException { 
+		return onPrimary(connection -> returnResult(connection, query));
+	}
+
+	private static List<List<String>> returnResult (Connection connection, String query) throws SQLException { 
 		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
+		Statement stmt = connection.createStatement (); 
 		
 		//issues the query instruction 
 		ResultSet rs = stmt.executeQuery (query); 
@@ -140,10 +672,12 @@ public class MechanicShop{
 		//iterates through the result set and saves the data returned by the query. 
 		boolean outputHeader = false;
 		List<List<String>> result  = new ArrayList<List<String>>(); 
+		//CHAR padding is trimmed and repeated values are shared
+		StringDictionary.Columns columns = StringDictionary.SHARED.columns(rsmd);
 		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
+			List<String> record = new ArrayList<String>(numCol); 
 			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
+				record.add(columns.get(rs, i)); 
 			result.add(record); 
 		}//end while 
 		stmt.close (); 
@@ -158,9 +692,13 @@ public class MechanicShop{
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-	public int executeQuery (String query) throws SQLException {
+	public int executeQuery (final String query) throws SQLException {
+		return onPrimary(connection -> countResult(connection, query));
+	}
+
+	private static int countResult (Connection connection, String query) throws SQLException {
 		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		Statement stmt = connection.createStatement ();
 
 		//issues the query instruction
 		ResultSet rs = stmt.executeQuery (query);
@@ -175,6 +713,136 @@ public class MechanicShop{
 		return rowCount;
 	}
 	
+	/**
+	 * Method to run a single-key existence check through a statement that
+	 * is prepared once per connection and kept server-side.
+	 * 
+	 * @param sql a query with one parameter, e.g. LOOKUP_MECHANIC
+	 * @param key the value bound to the parameter, an Integer or a String
+	 * @return true when the query returns a row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public boolean executeLookup (final String sql, final Object key) throws SQLException {
+		return onPrimary(connection -> {
+			PreparedStatement stmt = prepare(sql);
+			stmt.setObject(1, key);
+			ResultSet rs = stmt.executeQuery();
+			boolean found = rs.next();
+			rs.close();
+			return found;
+		});
+	}
+
+	/**
+	 * Method to check that a customer id, VIN, mechanic id or rid exists.
+	 * Keys confirmed recently, and while listening keys certainly absent,
+	 * are answered in-process; the rest are looked up and remembered.
+	 * 
+	 * @param kind one of the KnownKeys kinds
+	 * @param key the key, an Integer or a String
+	 * @return true when the key exists
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public boolean keyExists (int kind, Object key) throws SQLException {
+		String text = key.toString();
+		if (_offline != null && kind != KnownKeys.MECHANIC && _offline.contains(kind, text)) return true;
+		int known = _keys.check(kind, text);
+		if (known == KnownKeys.PRESENT) return true;
+		if (_keys.needsLoad(kind)) loadKnownKeys(kind);
+		if (known == KnownKeys.ABSENT) return false;
+		boolean found;
+		try {
+			found = executeLookup(LOOKUPS[kind], key);
+		}catch(SQLException e){
+			if (_offline == null || !isOffline(e) || kind == KnownKeys.MECHANIC) throw e;
+			// offline: a clash is found when the change is shipped and goes to the conflicts file
+			if (kind == KnownKeys.REQUEST) return false;
+			System.err.println("(offline: " + text + " is checked when the database is back)");
+			return true;
+		}
+		if (found) _keys.confirm(kind, text);
+		return found;
+	}
+
+	/*
+	 * Loads the keys of one kind on a pooled connection in the background;
+	 * until then the kind is answered by lookups.
+	 */
+	private void loadKnownKeys (final int kind) {
+		Thread loader = new Thread(() -> {
+			ConnectionPool pool = getPool();
+			try {
+				Connection connection = pool.borrow();
+				try {
+					_keys.load(connection, kind);
+				}finally{
+					pool.release(connection);
+				}
+			}catch(SQLException e){
+				System.err.println("Could not load known keys: " + e.getMessage());
+			}
+		}, "known-keys");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Method to get the cached prepared statement for a SQL text, preparing
+	 * it on the primary the first time. The driver is told to switch to a
+	 * named server-side statement on the first execution instead of the
+	 * fifth, so parse and plan are paid once.
+	 * 
+	 * @param sql the statement text
+	 * @return the prepared statement, owned by this object
+	 * @throws java.sql.SQLException when the statement could not be prepared
+	 */
+	public synchronized PreparedStatement prepare (String sql) throws SQLException {
+		PreparedStatement stmt = _prepared.get(sql);
+		if (stmt == null) {
+			stmt = primary().prepareStatement(sql);
+			stmt.unwrap(org.postgresql.PGStatement.class).setPrepareThreshold(1);
+			_prepared.put(sql, stmt);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to prepare the hot statements and run each once, so the first
+	 * CloseServiceRequest at the desk does not pay for parsing and planning.
+	 * 
+	 * @throws java.sql.SQLException when a statement could not be prepared
+	 */
+	public void prepareHotStatements () throws SQLException {
+		executeLookup(LOOKUP_SERVICE_REQUEST, -1);
+		executeLookup(LOOKUP_MECHANIC, -1);
+		executeLookup(LOOKUP_CUSTOMER, -1);
+		executeLookup(LOOKUP_CAR, "");
+		executeLookup(WorkQueue.IS_OPEN, -1);
+	}
+
+	/**
+	 * Method to run every report query once and throw the rows away. This
+	 * loads the tables and indexes into the buffer cache of the server the
+	 * reports run on and gets the result-reading code compiled by the JIT.
+	 * 
+	 * @return the time it took in milliseconds
+	 * @throws java.sql.SQLException when a report failed
+	 */
+	public long warmUp () throws SQLException {
+		long start = System.nanoTime();
+		String[] reports = reportQueries();
+		for (String report : reports) {
+			Statement stmt = getReportConnection().createStatement();
+			ResultSet rs = stmt.executeQuery(report);
+			int numCol = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				for (int i = 1; i <= numCol; ++i) rs.getString(i);
+			}
+			stmt.close();
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
 	/**
 	 * Method to fetch the last value from sequence. This
 	 * method issues the query to the DBMS and returns the current 
@@ -185,18 +853,83 @@ public class MechanicShop{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public int getCurrSeqVal(final String sequence) throws SQLException {
+		return onPrimary(connection -> {
+			Statement stmt = connection.createStatement ();
+			
+			ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+			if (rs.next()) return rs.getInt(1);
+			return -1;
+		});
+	}
+
+	/**
+	 * Method to make sure the monthly partition of Service_Request or
+	 * Closed_Request that holds the given date exists before a row is
+	 * written into it. Months already checked are remembered, so this costs
+	 * one round trip per table per month.
+	 * 
+	 * @param table Service_Request or Closed_Request
+	 * @param date the row date as yyyy-mm-dd
+	 * @throws java.sql.SQLException when the partition could not be created
+	 */
+	public void ensureRequestPartition(String table, String date) throws SQLException {
+		String key = table.toLowerCase() + "_" + date.substring(0, 7);
+		if (_partitionedMonths.contains(key)) return;
+		executeQuery(String.format("SELECT ensure_request_partition('%s', '%s')", table, date));
+		_partitionedMonths.add(key);
+	}
+
+	/**
+	 * Method to create the request partitions for the coming months so the
+	 * write paths rarely have to create one themselves.
+	 * 
+	 * @param days how far ahead of today partitions should exist
+	 * @throws java.sql.SQLException when the partitions could not be created
+	 */
+	public void createFutureRequestPartitions(int days) throws SQLException {
+		executeQuery("SELECT create_request_partitions(CURRENT_DATE, CURRENT_DATE + " + days + ");");
 	}
 
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
+		if (this._federation != null) {
+			this._federation.close();
+		}
+		if (this._parallel != null) {
+			this._parallel.shutdown();
+		}
+		if (this._dashboard != null) {
+			this._dashboard.shutdown();
+		}
+		if (this._async != null) {
+			this._async.shutdown();
+		}
+		if (this._pool != null) {
+			this._pool.close();
+		}
+		if (this._journal != null) {
+			// last chance to drain; whatever remains is replayed at the next start
+			this._journal.stop();
+		}
+		if (this._offline != null) {
+			this._offline.stop();
+		}
+		if (this._bus != null) {
+			this._bus.stop();
+		}
+		for (PreparedStatement stmt : _prepared.values()) {
+			try {
+				stmt.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+		if (this._replicas != null) {
+			this._replicas.cleanup();
+		}
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -212,34 +945,114 @@ public class MechanicShop{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		List<String> replicaUrls = new ArrayList<String>();
+		double maxLagSeconds = 5;
+		boolean backgroundConnect = false;
+		boolean warmup = false;
+		boolean listen = false;
+		String journal = null;
+		int parallel = 0;
+		List<String> shopUrls = new ArrayList<String>();
+		String sketchDir = null;
+		String archiveDir = null;
+		String kioskDir = null;
+		double shopTimeoutSeconds = 10;
+		boolean badOption = false;
+		for (int i = 3; i < args.length; i++) {
+			try {
+				if (args[i].startsWith("--replica=")) {
+					replicaUrls.add(args[i].substring("--replica=".length()));
+				}else if (args[i].startsWith("--max-lag=")) {
+					maxLagSeconds = Double.parseDouble(args[i].substring("--max-lag=".length()));
+				}else if (args[i].equals("--background-connect")) {
+					backgroundConnect = true;
+				}else if (args[i].equals("--warmup")) {
+					warmup = true;
+				}else if (args[i].equals("--listen")) {
+					listen = true;
+				}else if (args[i].startsWith("--parallel=")) {
+					parallel = Integer.parseInt(args[i].substring("--parallel=".length()));
+				}else if (args[i].startsWith("--shop=")) {
+					shopUrls.add(args[i].substring("--shop=".length()));
+				}else if (args[i].startsWith("--shop-timeout=")) {
+					shopTimeoutSeconds = Double.parseDouble(args[i].substring("--shop-timeout=".length()));
+				}else if (args[i].startsWith("--sketches=")) {
+					sketchDir = args[i].substring("--sketches=".length());
+				}else if (args[i].startsWith("--archive=")) {
+					archiveDir = args[i].substring("--archive=".length());
+				}else if (args[i].startsWith("--kiosk=")) {
+					kioskDir = args[i].substring("--kiosk=".length());
+				}else if (args[i].startsWith("--write-behind=")) {
+					journal = args[i].substring("--write-behind=".length());
+				}else {
+					badOption = true;
+				}
+			}catch(NumberFormatException e){
+				// --max-lag=abc and the like
+				badOption = true;
+			}
+		}
+		if (args.length < 3 || badOption) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + MechanicShop.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [--replica=<host:port>|<jdbc url>]... [--max-lag=<seconds>]" +
+		            " [--background-connect] [--warmup] [--listen] [--write-behind=<journal file>]" +
+		            " [--parallel=<connections>] [--shop=<host:port/dbname>|<jdbc url>]... [--shop-timeout=<seconds>]" +
+		            " [--sketches=<dir>] [--archive=<dir>] [--kiosk=<dir>]");
 			return;
 		}//end if
 		
+		final long startNanos = System.nanoTime();
 		MechanicShop esql = null;
+		FutureTask<MechanicShop> connecting = null;
 		
 		try{
-			System.out.println("(1)");
-			
-			try {
-				Class.forName("org.postgresql.Driver");
-			}catch(Exception e){
-
-				System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
-				e.printStackTrace();
-				return;
-			}
-			
-			System.out.println("(2)");
 			String dbname = args[0];
 			String dbport = args[1];
-			String user = args[2];
+			final String user = args[2];
 			
-			esql = new MechanicShop (dbname, dbport, user, "#BlackpinkLisa1");
+			final String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			for (int i = 0; i < replicaUrls.size(); i++) {
+				if (!replicaUrls.get(i).startsWith("jdbc:")) {
+					replicaUrls.set(i, "jdbc:postgresql://" + replicaUrls.get(i) + "/" + dbname);
+				}
+			}
+			final List<String> replicas = replicaUrls;
+			final double maxLag = maxLagSeconds;
+			final boolean warm = warmup;
+			final boolean cache = listen;
+			final String journalFile = journal;
+			final int workers = parallel;
+			for (int i = 0; i < shopUrls.size(); i++) {
+				if (!shopUrls.get(i).startsWith("jdbc:")) {
+					shopUrls.set(i, "jdbc:postgresql://" + shopUrls.get(i));
+				}
+			}
+			final List<String> shops = shopUrls;
+			final long shopTimeout = (long) (shopTimeoutSeconds * 1000);
+			final String sketches = sketchDir;
+			final String archive = archiveDir;
+			final String kiosk = kioskDir;
+			connecting = new FutureTask<MechanicShop>(() -> {
+				MechanicShop shop = openShop(url, replicas, maxLag, user, warm, cache, journalFile, workers, kiosk != null, startNanos);
+				if (!shops.isEmpty()) shop.enableFederation(shops, shopTimeout);
+				if (sketches != null) shop.enableSketches(new File(sketches));
+				if (archive != null) shop.enableArchive(new File(archive));
+				if (kiosk != null) shop.enableKiosk(new File(kiosk));
+				return shop;
+			});
+			if (backgroundConnect) {
+				// the menu is printed while the driver loads and the connection is made
+				Thread connector = new Thread(connecting, "connect");
+				connector.setDaemon(true);
+				connector.start();
+			}else {
+				connecting.run();
+				esql = awaitShop(connecting);
+			}
 			
+			boolean firstMenu = true;
+			boolean firstQuery = true;
 			boolean keepon = true;
 			while(keepon){
 				System.out.println("MAIN MENU");
@@ -254,12 +1067,38 @@ public class MechanicShop{
 				System.out.println("8. ListCarsBefore1995With50000Milles");
 				System.out.println("9. ListKCarsWithTheMostServices");
 				System.out.println("10. ListCustomersInDescendingOrderOfTheirTotalBill");
+				System.out.println("12. ArchiveOldRequestPartitions");
+				System.out.println("13. PaginatedReport");
+				System.out.println("14. ExportReport");
+				System.out.println("15. ImportFeed");
+				System.out.println("16. CustomerProfile");
+				System.out.println("17. ClaimNextTicket");
+				System.out.println("18. ReconcileCarCounts");
+				System.out.println("19. ServiceForecast");
+				System.out.println("20. Dashboard");
+				System.out.println("21. ArchiveClosedTickets");
+				System.out.println("22. RunAllReports");
+				System.out.println("23. FindDuplicateCustomers");
+				System.out.println("24. CheckIntegrity");
 				System.out.println("11. < EXIT");
+				if (firstMenu) {
+					System.out.println("(menu ready after " + (System.nanoTime() - startNanos) / 1000000 + " ms)");
+					firstMenu = false;
+				}
 				
+				int choice = readChoice();
+				if (choice == 11) {
+					keepon = false;
+					break;
+				}
+				if (esql == null) {
+					esql = awaitShop(connecting);
+				}
+				long choiceStart = System.nanoTime();
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
+				switch (choice){
 					case 1: AddCustomer(esql); break;
 					case 2: AddMechanic(esql); break;
 					case 3: AddCar(esql); break;
@@ -271,12 +1110,32 @@ public class MechanicShop{
 					case 9: ListKCarsWithTheMostServices(esql); break;
 					case 10: ListCustomersInDescendingOrderOfTheirTotalBill(esql); break;
 					case 11: keepon = false; break;
+					case 12: ArchiveOldRequestPartitions(esql); break;
+					case 13: PaginatedReport(esql); break;
+					case 14: ExportReport(esql); break;
+					case 15: ImportFeed(esql); break;
+					case 16: CustomerProfile(esql); break;
+					case 17: ClaimNextTicket(esql); break;
+					case 18: ReconcileCarCounts(esql); break;
+					case 19: ServiceForecast(esql); break;
+					case 20: Dashboard(esql); break;
+					case 21: ArchiveClosedTickets(esql); break;
+					case 22: RunAllReports(esql); break;
+					case 23: FindDuplicateCustomers(esql); break;
+					case 24: CheckIntegrity(esql); break;
+				}
+				if (firstQuery && choice >= 6 && choice <= 10) {
+					System.out.println("(first report took " + (System.nanoTime() - choiceStart) / 1000000 + " ms)");
+					firstQuery = false;
 				}
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
 			try{
+				if(esql == null && connecting != null && connecting.isDone()) {
+					esql = connecting.get();
+				}
 				if(esql != null) {
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
@@ -288,6 +1147,85 @@ public class MechanicShop{
 		}
 	}
 
+	/*
+	 * Loads the driver, connects and gets the session ready for the desk:
+	 * upcoming request partitions, the hot prepared statements, and when
+	 * asked the invalidation bus and a warm-up pass over the reports on
+	 * background threads. In kiosk mode a primary that cannot be reached
+	 * skips the preparation instead of stopping the program.
+	 */
+	private static MechanicShop openShop(String url, List<String> replicaUrls, double maxLagSeconds, String user, boolean warmup, boolean listen, String journal, int parallel, boolean kiosk, long startNanos) throws Exception {
+		try {
+			Class.forName("org.postgresql.Driver");
+		}catch(Exception e){
+			System.out.println("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+			throw e;
+		}
+		final MechanicShop esql = new MechanicShop (url, replicaUrls, maxLagSeconds, user, "#BlackpinkLisa1", kiosk);
+		// offline each of these would only wait out its retries
+		boolean online = esql._connection != null;
+		if (online) {
+			try {
+				esql.createFutureRequestPartitions(90);
+			}catch(SQLException e){
+				System.err.println("Could not create future request partitions: " + e.getMessage());
+			}
+			try {
+				esql.prepareHotStatements();
+			}catch(SQLException e){
+				System.err.println("Could not prepare statements: " + e.getMessage());
+			}
+		}
+		if (listen) {
+			esql.enableInvalidation();
+		}
+		if (online) {
+			try {
+				esql.onPrimary(connection -> {
+					esql._keys.loadAll(connection);
+					return null;
+				});
+			}catch(SQLException e){
+				System.err.println("Could not load known keys: " + e.getMessage());
+			}
+		}
+		if (journal != null) {
+			try {
+				esql.enableWriteBehind(new File(journal));
+			}catch(java.io.IOException e){
+				System.err.println("Write-behind intake not enabled: " + e.getMessage());
+			}
+		}
+		if (parallel > 0) {
+			esql.enableParallelReports(parallel);
+		}
+		System.out.println("(" + (online ? "connected" : "started offline") + " after " + (System.nanoTime() - startNanos) / 1000000 + " ms)");
+		if (warmup && online) {
+			Thread warmer = new Thread(() -> {
+				try {
+					System.out.println("(report warm-up took " + esql.warmUp() + " ms)");
+				}catch(SQLException e){
+					System.err.println("Warm-up failed: " + e.getMessage());
+				}
+			}, "warmup");
+			warmer.setDaemon(true);
+			warmer.start();
+		}
+		return esql;
+	}
+
+	//waits for openShop, reporting any failure as the exception or error it threw
+	private static MechanicShop awaitShop(FutureTask<MechanicShop> connecting) throws Exception {
+		try {
+			return connecting.get();
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -379,19 +1317,44 @@ public class MechanicShop{
 				continue; 
 			}
 		}
-		String query; 
-		query = "INSERT INTO Customer (id, fname, lname, phone, address) VALUES (" + id + ", \' " + fname + " \', \' " + lname + "\', \'" + phone + "\', \'" + address + "\');" ;
-		//System.out.println(query);
-		while (true) {
-			try {
-				esql.executeUpdate(query);
-				break;
+		CustomerDedup.Customer entered = new CustomerDedup.Customer(id, fname, lname, phone, address);
+		try {
+			long start = System.nanoTime();
+			List<CustomerDedup.Match> matches = esql.getDedup().candidates(entered);
+			long micros = (System.nanoTime() - start) / 1000;
+			if (!matches.isEmpty()) {
+				System.out.println("Possible duplicate of (checked in " + micros + " us):");
+				for (CustomerDedup.Match match : matches) {
+					System.out.println("  " + match.b.id + "\t" + match.b.fname + " " + match.b.lname + "\t" + match.b.phone + "\t" + match.b.address
+						+ "\t" + String.format("%.2f", match.score));
+				}
+				System.out.println("Add anyway? (y/n)");
+				if (!in.readLine().trim().equalsIgnoreCase("y")) return;
 			}
-			catch (Exception e) {
-				System.err.println(e.getMessage());
-				continue;
+		}
+		catch (Exception e) {
+			// the check only warns; the customer is added without it
+			System.err.println("Could not check for duplicates: " + e.getMessage());
+		}
+		final Upserts.Customer customer = new Upserts.Customer(id, fname, lname, phone, address);
+		try {
+			// transient failures are retried by the execution policy
+			int outcome = esql.intake(store -> store.addCustomer(customer));
+			esql._profiles.invalidateCustomer(id);
+			if (outcome == IntakeStore.QUEUED) {
+				esql._dedup.add(entered);
+				System.out.println("Customer " + id + " saved offline (" + esql._offline.pending() + " change(s) waiting for the database)");
+				return;
+			}
+			esql._keys.add(KnownKeys.CUSTOMER, Integer.toString(id), true);
+			if (outcome == Upserts.CREATED) esql._dedup.add(entered);
+			if (outcome != Upserts.CREATED) {
+				System.out.println("Customer " + id + " already exists");
 			}
 		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
 
 	}
 	
@@ -458,8 +1421,14 @@ public class MechanicShop{
 			}
 		}while(true);
 
+		final List<Upserts.Mechanic> rows = new ArrayList<Upserts.Mechanic>();
+		rows.add(new Upserts.Mechanic(id, fname, lname, experience));
 		try {	
-			esql.executeUpdate("INSERT INTO Mechanic (id, fname, lname, experience) VALUES (" + id + ", \'" + fname + "\', \'" + lname + "\', \'" + experience + "\');" );
+			int[] outcome = esql.onPrimary(connection -> Upserts.mechanics(connection, rows, false));
+			esql._keys.add(KnownKeys.MECHANIC, Integer.toString(id), true);
+			if (outcome[0] != Upserts.CREATED) {
+				System.out.println("Mechanic " + id + " already exists");
+			}
 		}catch (Exception e) {
 			System.err.println (e.getMessage());		
 		}
@@ -530,10 +1499,18 @@ public class MechanicShop{
 			}
 		}
 
-		String query = "INSERT INTO Car(vin, make, model, year ) VALUES (\'" + vin + "\', \'" + make + "\',\' " + model + "\', " + year + ");";
-		//System.out.println(query);
+		final Upserts.Car car = new Upserts.Car(vin, make, model, year);
 		try {
-			esql.executeUpdate(query); 
+			int outcome = esql.intake(store -> store.addCar(car));
+			esql._profiles.invalidateVin(vin);
+			if (outcome == IntakeStore.QUEUED) {
+				System.out.println("Car " + vin + " saved offline (" + esql._offline.pending() + " change(s) waiting for the database)");
+				return;
+			}
+			esql._keys.add(KnownKeys.CAR, vin, true);
+			if (outcome != Upserts.CREATED) {
+				System.out.println("Car " + vin + " already exists");
+			}
 		}
 		catch(Exception e ) {
 			System.err.println(e.getMessage());
@@ -552,6 +1529,9 @@ public class MechanicShop{
 			System.out.println("Enter rid for service request");
 			try {
 				rid = Integer.parseInt(in.readLine()); 
+				if (esql.keyExists(KnownKeys.REQUEST, rid)) {
+					throw new RuntimeException("Service request " + rid + " already exists");
+				}
 				break;
 			}
 			catch (Exception e) {
@@ -563,6 +1543,9 @@ public class MechanicShop{
 			System.out.println("Enter customer id for service request"); 
 			try {
 				customer_id = Integer.parseInt(in.readLine()); 
+				if (!esql.keyExists(KnownKeys.CUSTOMER, customer_id)) {
+					throw new RuntimeException("Customer " + customer_id + " does not exist");
+				}
 				break;
 			}
 			catch (Exception e) {
@@ -577,6 +1560,9 @@ public class MechanicShop{
 				if (car_vin.length() <= 0 || car_vin.length() > 16) {
 					throw new RuntimeException("VIN must have 1-16 characters"); 
 				}
+				if (!esql.keyExists(KnownKeys.CAR, car_vin)) {
+					throw new RuntimeException("Car " + car_vin + " does not exist");
+				}
 				break;
 			}
 			catch (Exception e) {
@@ -588,7 +1574,10 @@ public class MechanicShop{
 			System.out.println("Enter date of service request"); 
 			try {
 				date = in.readLine();
-				if (date.length() != 10 && date.charAt(4) != '-' && date.charAt(7) != '-'  ) {
+				try {
+					date = java.sql.Date.valueOf(date).toString();
+				}
+				catch (IllegalArgumentException e) {
 					throw new RuntimeException("date must be in the format year-month-day");
 				}
 				break;
@@ -623,10 +1612,28 @@ public class MechanicShop{
 				continue;
 			}
 		}
-		String query = "INSERT INTO Service_Request(rid, customer_id, car_vin, date, odometer, complain ) VALUES(" + rid + ", " + customer_id + ", \'" + car_vin + "\', \'" + date + "\', " + odometer + ", \'" + complain + "\');";
-		//System.out.println(query);
+		final IntakeJournal.Ticket ticket = new IntakeJournal.Ticket(rid, customer_id, car_vin, date, odometer, complain);
 		try {
-			esql.executeUpdate(query);
+			esql._profiles.invalidateCustomer(customer_id);
+			if (esql._journal != null) {
+				esql._journal.append(ticket);
+				esql._keys.add(KnownKeys.REQUEST, Integer.toString(rid), false);
+				System.out.println("Service request " + rid + " accepted (" + esql._journal.pending() + " waiting for the database)");
+				return;
+			}
+			int outcome = esql.intake(store -> store.insertServiceRequest(ticket));
+			esql._profiles.invalidateCustomer(customer_id);
+			if (outcome == IntakeStore.QUEUED) {
+				System.out.println("Service request " + rid + " saved offline (" + esql._offline.pending() + " change(s) waiting for the database)");
+				esql.sketchRequestOpened(date, customer_id, car_vin, complain);
+				return;
+			}
+			if (outcome != Upserts.CREATED) {
+				System.out.println("Service request " + rid + " already exists");
+				return;
+			}
+			esql._keys.add(KnownKeys.REQUEST, Integer.toString(rid), true);
+			esql.sketchRequestOpened(date, customer_id, car_vin, complain);
 		}
 		catch(Exception e) {
 			System.err.println(e.getMessage());
@@ -647,11 +1654,14 @@ public class MechanicShop{
 			System.out.print("Enter a service Request Number: ");
 			try {
 				rid = Integer.parseInt(in.readLine());	
-				temp = esql.executeQuery("SELECT * FROM Service_Request WHERE Service_Request.rid = " + rid + ";");
-				if (temp == 0) {
+				if (!esql.keyExists(KnownKeys.REQUEST, rid)) {
 					System.out.println("Service request number does not exist");
 					continue;
 				}		
+				if (!esql.executeLookup(WorkQueue.IS_OPEN, rid)) {
+					System.out.println("Service request is already closed");
+					continue;
+				}
 				break;
 			}catch (Exception e) {
 				System.out.println("Your input is Invalid!");
@@ -665,8 +1675,7 @@ public class MechanicShop{
 			System.out.print("Enter Mechanic ID: ");
 			try{
 				mid = Integer.parseInt(in.readLine());
-				temp = esql.executeQuery("SELECT * FROM Mechanic WHERE Mechanic.id = " + mid + ";");
-				if (temp == 0) {
+				if (!esql.keyExists(KnownKeys.MECHANIC, mid)) {
 					System.out.println("Mechanic ID does not exist.");
 					continue;
 				}
@@ -700,22 +1709,718 @@ public class MechanicShop{
 			}
 		}while(true);
 			
-		newWID = esql.executeQueryAndReturnResult("SELECT wid FROM Closed_Request").size() + 1;
+		newWID = Integer.parseInt(esql.executeQueryAndReturnResult("SELECT nextval('closed_request_wid_seq')").get(0).get(0));
 		
+		esql.ensureRequestPartition("Closed_Request", new java.sql.Date(System.currentTimeMillis()).toString());
 		esql.executeUpdate("INSERT INTO Closed_Request(wid, rid, mid, date, comment, bill) VALUES(" + newWID + ", " + rid + ", " + mid + ", CURRENT_DATE, \'" + comment + "\', " + bill +  ");"); 
+		esql._profiles.invalidateRequest(rid);
+		esql.sketchRequestClosed(rid);
 	}
 	
+	/*
+	 * Reads an optional closing date range and returns it as extra WHERE
+	 * conditions on the closing date, which lets Postgres prune the
+	 * Closed_Request partitions. Empty input means all history.
+	 */
+	public static String readClosedDateRange(String closed) {
+		return closedDateRange(readClosedDates(), closed);
+	}
+
+	//the first and last closing day as yyyy-mm-dd, null where left blank
+	private static String[] readClosedDates() {
+		String[] dates = new String[2];
+		while (true) {
+			System.out.println("Enter first closing date (yyyy-mm-dd, blank for all history)");
+			try {
+				String from = in.readLine().trim();
+				if (from.length() > 0) dates[0] = java.sql.Date.valueOf(from).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter last closing date (yyyy-mm-dd, blank for no limit)");
+			try {
+				String to = in.readLine().trim();
+				if (to.length() > 0) dates[1] = java.sql.Date.valueOf(to).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		return dates;
+	}
+
+	private static String closedDateRange(String[] dates, String closed) {
+		String range = "";
+		if (dates[0] != null) {
+			range += " AND " + closed + ".date >= \'" + dates[0] + "\'";
+		}
+		if (dates[1] != null) {
+			range += " AND " + closed + ".date <= \'" + dates[1] + "\'";
+		}
+		return range;
+	}
+
+	//asks whether a report should also read the archive files, when there are any
+	private static boolean readIncludeArchive(MechanicShop esql) {
+		if (esql._archive == null || esql._archive.segments().isEmpty()) return false;
+		while (true) {
+			System.out.println("Include archived tickets? (y/n, blank for n)");
+			try {
+				String answer = in.readLine().trim().toLowerCase();
+				if (answer.length() == 0 || answer.equals("n")) return false;
+				if (answer.equals("y")) return true;
+			}
+			catch (Exception e) {
+				continue;
+			}
+			System.err.println("answer y or n");
+		}
+	}
+
+	/*
+	 * Prints the archived customers of a report by id, in the given order,
+	 * with the name of each customer read from the database.
+	 */
+	private static int printArchivedCustomers(MechanicShop esql, List<String> columns, List<List<String>> rows) throws SQLException {
+		Map<String, List<String>> names = new HashMap<String, List<String>>();
+		StringBuilder ids = new StringBuilder();
+		for (List<String> row : rows) {
+			if (names.containsKey(row.get(0))) continue;
+			names.put(row.get(0), null);
+			ids.append(ids.length() == 0 ? "" : ", ").append(Integer.parseInt(row.get(0)));
+		}
+		if (ids.length() > 0) {
+			for (List<String> name : esql.executeQueryAndReturnResult("SELECT id, fname, lname FROM Customer WHERE id IN (" + ids + ");")) {
+				names.put(name.get(0), name);
+			}
+		}
+		List<List<String>> named = new ArrayList<List<String>>();
+		for (List<String> row : rows) {
+			List<String> name = names.get(row.get(0));
+			List<String> line = new ArrayList<String>();
+			line.add(name == null ? "" : name.get(1));
+			line.add(name == null ? "" : name.get(2));
+			line.addAll(row.subList(1, row.size()));
+			named.add(line);
+		}
+		return ReportCache.print(new ReportCache.Result(columns, named, null));
+	}
+
+	public static void ArchiveClosedTickets(MechanicShop esql){//21
+		if (esql._archive == null) {
+			System.out.println("Start with --archive=<dir> to keep archived tickets");
+			return;
+		}
+		String cutoff;
+		while (true) {
+			System.out.println("Archive tickets closed before (yyyy-mm-dd, blank for two years ago)");
+			try {
+				String line = in.readLine().trim();
+				cutoff = line.length() == 0 ? java.time.LocalDate.now().minusYears(2).toString() : java.sql.Date.valueOf(line).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		long start = System.nanoTime();
+		ConnectionPool pool = esql.getPool();
+		try {
+			Connection connection = pool.borrow();
+			long archived;
+			try {
+				archived = esql._archive.archive(connection, cutoff, 1000);
+			}finally{
+				pool.release(connection);
+			}
+			System.out.println("total ticket(s) archived: " + archived + " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+			// the archived rids and the reports over them are gone from the database
+			esql._keys.forget(KnownKeys.REQUEST);
+			esql._profiles.invalidate("service_request", null);
+			if (esql._reportCache != null) {
+				esql._reportCache.invalidate("closed_request", null);
+				esql._reportCache.invalidate("service_request", null);
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ArchiveOldRequestPartitions(MechanicShop esql){//12
+		String cutoff;
+		while (true) {
+			System.out.println("Detach monthly partitions ending on or before (yyyy-mm-dd)");
+			try {
+				cutoff = java.sql.Date.valueOf(in.readLine().trim()).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		try {
+			int rowCount = esql.executeQueryAndPrintResult("SELECT detach_request_partitions('Closed_Request', \'" + cutoff + "\') AS detached UNION ALL SELECT detach_request_partitions('Service_Request', \'" + cutoff + "\');");
+			System.out.println("total partition(s) moved to the archive schema: " + rowCount);
+			// the moved rids stay in Request_Rid, so the known rids still hold
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void PaginatedReport(MechanicShop esql){//13
+		int report;
+		int pageSize;
+		while (true) {
+			System.out.println("Enter the report to page through (6-10)");
+			try {
+				report = Integer.parseInt(in.readLine());
+				if (report < 6 || report > 10) {
+					throw new RuntimeException("report must be between 6 and 10");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter the number of rows per page");
+			try {
+				pageSize = Integer.parseInt(in.readLine());
+				if (pageSize <= 0) {
+					throw new RuntimeException("rows per page must be a positive number");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		ReportPager pager = null;
+		try {
+			pager = new ReportPager(esql.getReportConnection(), ReportPager.REPORTS[report - 6], pageSize);
+			pager.first();
+			pager.print();
+			while (true) {
+				System.out.println("[n]ext, [p]revious, [j]ump, [q]uit");
+				String command = in.readLine().trim();
+				if (command.equals("q")) {
+					break;
+				}
+				try {
+					if (command.equals("n")) {
+						if (pager.next() == 0) System.out.println("Already on the last page");
+					}else if (command.equals("p")) {
+						if (pager.previous() == 0) System.out.println("Already on the first page");
+					}else if (command.equals("j")) {
+						System.out.println("Jump to " + pager.getJumpLabel());
+						pager.jump(in.readLine().trim());
+					}else {
+						continue;
+					}
+					pager.print();
+				}
+				catch (NumberFormatException e) {
+					System.err.println("Your input is invalid!");
+				}
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+		finally {
+			if (pager != null) pager.close();
+		}
+	}
+
+	public static void ExportReport(MechanicShop esql){//14
+		String source;
+		String path;
+		int format;
+		boolean gzip;
+		while (true) {
+			System.out.println("Enter the report to export (6-10) or a table name");
+			try {
+				source = in.readLine().trim();
+				if (source.length() == 0) {
+					throw new RuntimeException("report or table name is required");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter the file to write");
+			try {
+				path = in.readLine().trim();
+				if (path.length() == 0) {
+					throw new RuntimeException("file name is required");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter the format (csv or json)");
+			try {
+				String answer = in.readLine().trim().toLowerCase();
+				if (!answer.equals("csv") && !answer.equals("json")) {
+					throw new RuntimeException("format must be csv or json");
+				}
+				format = answer.equals("csv") ? ReportExporter.CSV : ReportExporter.JSON_LINES;
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Compress with gzip? (y/n)");
+			try {
+				String answer = in.readLine().trim().toLowerCase();
+				if (!answer.equals("y") && !answer.equals("n")) {
+					throw new RuntimeException("answer y or n");
+				}
+				gzip = answer.equals("y");
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		String[] reports = reportQueries();
+		try {
+			long start = System.nanoTime();
+			File file = new File(path);
+			long rowCount;
+			if (source.matches("6|7|8|9|10")) {
+				rowCount = ReportExporter.export(esql.getReportConnection(), reports[Integer.parseInt(source) - 6], file, format, gzip);
+			}else {
+				rowCount = ReportExporter.exportTable(esql.getReportConnection(), source, file, format, gzip);
+			}
+			long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+			System.out.println("exported " + rowCount + " row(s), " + file.length() + " bytes in " + millis + " ms to " + file.getPath());
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/*
+	 * Re-syncs customers, cars or mechanics from a csv file laid out like the
+	 * files in code/data, one ON CONFLICT statement per batch of rows.
+	 */
+	public static void ImportFeed(MechanicShop esql){//15
+		final int batchSize = 1000;
+		String table;
+		String path;
+		boolean update;
+		while (true) {
+			System.out.println("Enter what the file holds (customer, car or mechanic)");
+			try {
+				table = in.readLine().trim().toLowerCase();
+				if (!table.equals("customer") && !table.equals("car") && !table.equals("mechanic")) {
+					throw new RuntimeException("must be customer, car or mechanic");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter the csv file to import");
+			try {
+				path = in.readLine().trim();
+				if (!new File(path).isFile()) {
+					throw new RuntimeException("no such file: " + path);
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Update rows that already exist? (y/n)");
+			try {
+				String answer = in.readLine().trim().toLowerCase();
+				if (!answer.equals("y") && !answer.equals("n")) {
+					throw new RuntimeException("answer y or n");
+				}
+				update = answer.equals("y");
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		int[] totals = new int[3];
+		long start = System.nanoTime();
+		try {
+			BufferedReader file = new BufferedReader(new FileReader(path));
+			try {
+				List<String[]> batch = new ArrayList<String[]>();
+				String line;
+				while (true) {
+					line = file.readLine();
+					if (line != null && line.trim().length() > 0) {
+						batch.add(line.split(",", -1));
+					}
+					if (batch.size() == batchSize || (line == null && !batch.isEmpty())) {
+						for (int outcome : importBatch(esql, table, batch, update)) {
+							totals[outcome]++;
+						}
+						batch.clear();
+					}
+					if (line == null) break;
+				}
+			}finally{
+				file.close();
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+		System.out.println("created " + totals[Upserts.CREATED] + ", updated " + totals[Upserts.UPDATED] + ", unchanged " + totals[Upserts.UNCHANGED] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	public static void CustomerProfile(MechanicShop esql){//16
+		int id;
+		while (true) {
+			System.out.println("Enter customer id");
+			try {
+				id = Integer.parseInt(in.readLine().trim());
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		try {
+			long start = System.nanoTime();
+			CustomerProfile profile = esql.getCustomerProfile(id);
+			if (profile == null) {
+				System.out.println("Customer " + id + " does not exist");
+				return;
+			}
+			profile.print();
+			System.out.println("(" + (System.nanoTime() - start) / 1000 + " us)");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ClaimNextTicket(MechanicShop esql){//17
+		int mid;
+		while (true) {
+			System.out.println("Enter Mechanic ID");
+			try {
+				mid = Integer.parseInt(in.readLine().trim());
+				if (!esql.keyExists(KnownKeys.MECHANIC, mid)) {
+					System.out.println("Mechanic ID does not exist.");
+					continue;
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		final int mechanic = mid;
+		try {
+			long start = System.nanoTime();
+			WorkQueue.Claim claim = esql.onPrimary(connection -> WorkQueue.claimNext(connection, mechanic));
+			long micros = (System.nanoTime() - start) / 1000;
+			if (claim == null) {
+				System.out.println("No unclaimed tickets");
+			}else {
+				System.out.println("Claimed " + claim + " (" + micros + " us)");
+			}
+			List<WorkQueue.Claim> held = esql.onPrimary(connection -> WorkQueue.claimedBy(connection, mechanic));
+			System.out.println("Tickets held by mechanic " + mechanic + " (close them with option 5)");
+			for (WorkQueue.Claim c : held) {
+				System.out.println("\t" + c);
+			}
+			if (held.isEmpty()) return;
+			System.out.println("Enter rid to give back to the queue (blank to keep them all)");
+			String line = in.readLine().trim();
+			if (line.length() == 0) return;
+			final int rid = Integer.parseInt(line);
+			if (!esql.onPrimary(connection -> WorkQueue.release(connection, rid, mechanic))) {
+				System.out.println("Ticket " + rid + " is not held by mechanic " + mechanic);
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ReconcileCarCounts(MechanicShop esql){//18
+		try {
+			long start = System.nanoTime();
+			int rowCount = esql.executeQueryAndPrintResult(CarCountIndex.MISMATCHES);
+			System.out.println(rowCount + " customer(s) with a car count that differs from Owns (" + (System.nanoTime() - start) / 1000000 + " ms)");
+			if (rowCount == 0) return;
+			System.out.println("Rewrite them from Owns? (y/n)");
+			if (!in.readLine().trim().equalsIgnoreCase("y")) return;
+			List<List<String>> fixed = esql.executeQueryAndReturnResult("SELECT reconcile_car_counts();");
+			System.out.println(fixed.get(0).get(0) + " count(s) rewritten");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ServiceForecast(MechanicShop esql){//19
+		int miles;
+		int days;
+		while (true) {
+			System.out.println("Enter service interval in miles (blank for 5000)");
+			try {
+				String line = in.readLine().trim();
+				miles = line.length() == 0 ? 5000 : Integer.parseInt(line);
+				if (miles <= 0) {
+					throw new RuntimeException("service interval must be positive");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("List cars due within how many days? (blank for 30, overdue cars included)");
+			try {
+				String line = in.readLine().trim();
+				days = line.length() == 0 ? 30 : Integer.parseInt(line);
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		try {
+			int rowCount = esql.executeReportAndPrintResult(String.format(QUERY_SERVICE_FORECAST, miles, days));
+			System.out.println("total car(s) due: " + rowCount);
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void Dashboard(MechanicShop esql){//20
+		if (esql._sketches == null) {
+			System.out.println("Start with --sketches=<dir> to keep the dashboard sketches");
+			return;
+		}
+		long day = 24L * 60 * 60 * 1000;
+		String first;
+		String last;
+		while (true) {
+			System.out.println("Enter first day (yyyy-mm-dd, blank for a week ago)");
+			try {
+				String line = in.readLine().trim();
+				first = line.length() == 0 ? new java.sql.Date(System.currentTimeMillis() - 6 * day).toString() : java.sql.Date.valueOf(line).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		while (true) {
+			System.out.println("Enter last day (yyyy-mm-dd, blank for today)");
+			try {
+				String line = in.readLine().trim();
+				last = line.length() == 0 ? new java.sql.Date(System.currentTimeMillis()).toString() : java.sql.Date.valueOf(line).toString();
+				break;
+			}
+			catch (Exception e) {
+				System.err.println("date must be in the format year-month-day");
+				continue;
+			}
+		}
+		long start = System.nanoTime();
+		esql._sketches.printDashboard(first, last, 10);
+		System.out.println("(" + (System.nanoTime() - start) / 1000 + " us)");
+	}
+
+	public static void RunAllReports(MechanicShop esql){//22
+		System.out.println("Running reports 6-10 over all history on one snapshot");
+		long start = System.nanoTime();
+		try {
+			ReportDashboard dashboard = esql.getReportDashboard();
+			dashboard.run((report, result, took) -> {
+				System.out.println("report " + report + " (" + took + " ms):");
+				System.out.println("total row(s): " + ReportCache.print(result));
+			});
+			long wall = (System.nanoTime() - start) / 1000000;
+			long sequential = dashboard.lastSequentialMillis();
+			if (sequential < 0) {
+				// measured once, after the concurrent run, so both see a warm cache
+				System.out.println("(timing a sequential run for comparison)");
+				sequential = dashboard.runSequential();
+			}
+			System.out.println("all reports in " + wall + " ms; sequential run " + sequential
+				+ " ms (" + String.format("%.2fx", (double) sequential / Math.max(1, wall)) + ")");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void FindDuplicateCustomers(MechanicShop esql){//23
+		try {
+			CustomerDedup dedup = esql.getDedup();
+			long start = System.nanoTime();
+			List<CustomerDedup.Match> matches = dedup.duplicates();
+			long millis = (System.nanoTime() - start) / 1000000;
+			List<List<String>> rows = new ArrayList<List<String>>();
+			for (CustomerDedup.Match match : matches) {
+				rows.add(java.util.Arrays.asList(Integer.toString(match.a.id), match.a.fname + " " + match.a.lname, match.a.phone,
+					Integer.toString(match.b.id), match.b.fname + " " + match.b.lname, match.b.phone, String.format("%.2f", match.score)));
+			}
+			int rowCount = ReportCache.print(new ReportCache.Result(java.util.Arrays.asList("id", "name", "phone", "duplicate_id", "duplicate_name", "duplicate_phone", "score"), rows, null));
+			System.out.println("total pair(s): " + rowCount + " (" + millis + " ms)");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void CheckIntegrity(MechanicShop esql){//24
+		String file;
+		try {
+			System.out.println("Write violations to (blank for violations.tsv)");
+			file = in.readLine().trim();
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		if (file.length() == 0) file = "violations.tsv";
+		try {
+			IntegrityCheck check = new IntegrityCheck(esql.getPool());
+			long start = System.nanoTime();
+			long[] counts = check.run(new File(file));
+			check.printSummary(counts);
+			long total = 0;
+			for (long count : counts) total += count;
+			System.out.println("total violation(s): " + total + " in " + file + " (" + (System.nanoTime() - start) / 1000000 + " ms)");
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	private static int[] importBatch(MechanicShop esql, String table, List<String[]> batch, final boolean update) throws SQLException {
+		if (table.equals("customer")) {
+			final List<Upserts.Customer> rows = new ArrayList<Upserts.Customer>();
+			Set<String> ids = new HashSet<String>();
+			for (String[] f : batch) {
+				rows.add(new Upserts.Customer(Integer.parseInt(f[0].trim()), f[1], f[2], f[3], f[4]));
+				esql._profiles.invalidateCustomer(Integer.parseInt(f[0].trim()));
+				ids.add(f[0].trim());
+			}
+			int[] outcome = esql.onPrimary(connection -> Upserts.customers(connection, rows, update));
+			// reread on the next duplicate check
+			esql._dedup.invalidate("customer", ids);
+			return outcome;
+		}else if (table.equals("car")) {
+			final List<Upserts.Car> rows = new ArrayList<Upserts.Car>();
+			for (String[] f : batch) {
+				rows.add(new Upserts.Car(f[0].trim(), f[1], f[2], Integer.parseInt(f[3].trim())));
+				esql._profiles.invalidateVin(f[0].trim());
+			}
+			return esql.onPrimary(connection -> Upserts.cars(connection, rows, update));
+		}else {
+			final List<Upserts.Mechanic> rows = new ArrayList<Upserts.Mechanic>();
+			for (String[] f : batch) {
+				rows.add(new Upserts.Mechanic(Integer.parseInt(f[0].trim()), f[1], f[2], Integer.parseInt(f[3].trim())));
+			}
+			return esql.onPrimary(connection -> Upserts.mechanics(connection, rows, update));
+		}
+	}
+
 	public static void ListCustomersWithBillLessThan100(MechanicShop esql){//6
+		String[] dates = readClosedDates();
+		String range = closedDateRange(dates, "Closed_Request");
+		boolean archived = readIncludeArchive(esql);
 		try {
-			esql.executeQueryAndPrintResult("SELECT Customer.fname, Customer.lname, Closed_Request.bill FROM Customer, Closed_Request, Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Service_Request.customer_id = Customer.id;" );
+			if (esql._federation != null) {
+				esql._federation.concatenate(String.format(QUERY_CUSTOMERS_WITH_BILL_LESS_THAN_100, range)).print();
+				return;
+			}
+			esql.executeReportAndPrintResult(String.format(QUERY_CUSTOMERS_WITH_BILL_LESS_THAN_100, range));
+			if (archived) {
+				List<List<String>> rows = new ArrayList<List<String>>();
+				for (int[] bill : esql._archive.billsBelow(dates[0], dates[1], 100)) {
+					List<String> row = new ArrayList<String>();
+					row.add(String.valueOf(bill[0]));
+					row.add(String.valueOf(bill[1]));
+					rows.add(row);
+				}
+				System.out.println("archived:");
+				printArchivedCustomers(esql, java.util.Arrays.asList("fname", "lname", "bill"), rows);
+			}
 		}catch (Exception e) {
 			System.err.println(e.getMessage());
 		}		
 	}
 	
 	public static void ListCustomersWithMoreThan20Cars(MechanicShop esql){//7
+		int cars;
+		while (true) {
+			System.out.println("List customers with more than how many cars? (blank for 20)");
+			try {
+				String line = in.readLine().trim();
+				cars = line.length() == 0 ? 20 : Integer.parseInt(line);
+				if (cars < 0) {
+					throw new RuntimeException("number of cars cannot be negative");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
 		try {
-			esql.executeQueryAndPrintResult("SELECT total.fname, total.lname, total.numCars FROM (SELECT Owns.customer_id, Customer.fname, Customer.lname, COUNT(*) numCars FROM Owns, Customer WHERE Customer.id = Owns.customer_id GROUP BY Owns.customer_id,Customer.fname,Customer.lname) AS total WHERE numCars > 20;");
+			if (esql._federation != null) {
+				esql._federation.concatenate(String.format(QUERY_CUSTOMERS_WITH_MORE_THAN_N_CARS, cars)).print();
+				return;
+			}
+			esql.printCustomersWithMoreThan(cars);
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
 		}	
@@ -723,18 +2428,41 @@ public class MechanicShop{
 	
 	public static void ListCarsBefore1995With50000Milles(MechanicShop esql){//8
 		try {
-			esql.executeQueryAndPrintResult("SELECT Car.vin, Car.make, Car.model, Car.year, Service_Request.odometer FROM Car, Service_Request WHERE Car.vin = Service_Request.car_vin AND Car.year < 1995 AND Service_Request.odometer < 50000;");
+			if (esql._federation != null) {
+				esql._federation.concatenate(QUERY_CARS_BEFORE_1995_WITH_50000_MILES).print();
+				return;
+			}
+			esql.executeReportAndPrintResult(QUERY_CARS_BEFORE_1995_WITH_50000_MILES);
 		}catch(Exception e) {
 			System.err.println(e.getMessage());
 		}	
 	}
 	
 	public static void ListKCarsWithTheMostServices(MechanicShop esql){//9
-		//
-		String query = "SELECT * FROM Car c,(SELECT s.car_vin, MAX(count.scount) FROM Service_Request s, (SELECT car_vin, COUNT(rid) AS scount FROM Service_Request GROUP BY car_vin) AS count GROUP BY s.car_vin ) AS s2 WHERE c.vin = s2.car_vin;"; 
+		int k;
+		while (true) {
+			System.out.println("Enter number of cars to list");
+			try {
+				k = Integer.parseInt(in.readLine().trim());
+				if (k <= 0) {
+					throw new RuntimeException("number of cars must be positive");
+				}
+				break;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				continue;
+			}
+		}
+		String query = String.format(QUERY_TOP_K_CARS_BY_SERVICES, k);
 		System.out.println("Listing Cars with the most services");
 		try{
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int rowCount;
+			if (esql._federation != null) {
+				rowCount = esql._federation.topCarsByServices(k).print();
+			}else {
+				rowCount = esql.executeReportAndPrintResult(query);
+			}
 			System.out.println("total row(s):" + rowCount);
 		}
 		catch (Exception e){
@@ -744,9 +2472,37 @@ public class MechanicShop{
 	
 	public static void ListCustomersInDescendingOrderOfTheirTotalBill(MechanicShop esql){//10
 		//
+		String[] dates = readClosedDates();
+		String range = closedDateRange(dates, "cr");
+		boolean archived = readIncludeArchive(esql);
 		try {
-			String query = "SELECT * FROM customer c, (SELECT sr.customer_id, SUM(cr.bill) AS totalBill FROM service_request sr, closed_request cr WHERE sr.rid = cr.rid GROUP BY sr.customer_id) AS c2 WHERE c.id = c2.customer_id ORDER BY c2.totalBill DESC; " ;
-			int rowCount = esql.executeQueryAndPrintResult(query);
+			int rowCount;
+			if (archived) {
+				// live and archived totals are added per customer before sorting
+				Map<Integer, Long> totals = esql._archive.totalBills(dates[0], dates[1]);
+				for (List<String> row : esql.executeQueryAndReturnResult("SELECT sr.customer_id, SUM(cr.bill) FROM service_request sr, closed_request cr WHERE sr.rid = cr.rid" + range + " GROUP BY sr.customer_id;")) {
+					totals.merge(Integer.parseInt(row.get(0)), Long.parseLong(row.get(1)), Long::sum);
+				}
+				List<Map.Entry<Integer, Long>> sorted = new ArrayList<Map.Entry<Integer, Long>>(totals.entrySet());
+				sorted.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey()) : b.getValue().compareTo(a.getValue()));
+				List<List<String>> rows = new ArrayList<List<String>>();
+				for (Map.Entry<Integer, Long> total : sorted) {
+					List<String> row = new ArrayList<String>();
+					row.add(String.valueOf(total.getKey()));
+					row.add(String.valueOf(total.getKey()));
+					row.add(String.valueOf(total.getValue()));
+					rows.add(row);
+				}
+				rowCount = printArchivedCustomers(esql, java.util.Arrays.asList("fname", "lname", "id", "totalbill"), rows);
+			}else if (esql._federation != null) {
+				// per shop sorted by total bill, the last column
+				rowCount = esql._federation.merge(String.format(QUERY_CUSTOMERS_BY_TOTAL_BILL, range), (a, b) ->
+					Long.compare(Long.parseLong(b.get(b.size() - 1)), Long.parseLong(a.get(a.size() - 1)))).print();
+			}else if (esql._parallel != null) {
+				rowCount = ReportCache.print(esql._parallel.customersByTotalBill(range));
+			}else {
+				rowCount = esql.executeReportAndPrintResult(String.format(QUERY_CUSTOMERS_BY_TOTAL_BILL, range));
+			}
 			System.out.println("total row(s): " + rowCount);
 		}
 		catch (Exception e) {
@@ -754,4 +2510,4 @@ public class MechanicShop{
 		}
 	}
 	
-}
\ No newline at end of file
+}
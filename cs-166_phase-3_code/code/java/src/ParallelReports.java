@@ -0,0 +1,242 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs the aggregate report 10 in parallel. The customer
+ * id space is cut into ranges and every range is aggregated by its own
+ * query on its own pooled connection, so the work spreads over as many
+ * backends as the pool has. All ranges read one exported snapshot (see
+ * SnapshotGroup), so the combined result is what a single query would have
+ * returned at that instant.
+ *
+ * A customer's tickets all fall into the customer's range, so every range
+ * produces final per-customer totals and nothing has to be re-aggregated:
+ * the ranges, each sorted by total bill, are k-way merged.
+ *
+ */
+public class ParallelReports{
+	//ranges per connection, so one slow range does not hold up the rest
+	private static final int RANGES_PER_WORKER = 4;
+
+	private static final String CUSTOMERS_BY_TOTAL_BILL = "SELECT * FROM customer c, (SELECT sr.customer_id, SUM(cr.bill) AS totalBill FROM service_request sr, closed_request cr WHERE sr.rid = cr.rid AND sr.customer_id BETWEEN ? AND ?%s GROUP BY sr.customer_id) AS c2 WHERE c.id = c2.customer_id ORDER BY c2.totalBill DESC, c.id";
+
+	private final ConnectionPool _pool;
+	private final int _workers;
+	private final ExecutorService _executor;
+
+	/**
+	 * @param pool connections to run on; it must hold at least workers + 1,
+	 *        since the snapshot is exported on a connection of its own
+	 * @param workers ranges that run at the same time
+	 */
+	public ParallelReports(ConnectionPool pool, int workers) {
+		_pool = pool;
+		_workers = workers;
+		_executor = Executors.newFixedThreadPool(workers, r -> {
+			Thread thread = new Thread(r, "parallel-report");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Method to run report 10 in parallel.
+	 *
+	 * @param range extra conditions on cr, as built by
+	 *        MechanicShop.readClosedDateRange, or ""
+	 * @return the customers with their total bill, highest first
+	 * @throws java.sql.SQLException when a range failed
+	 */
+	public ReportCache.Result customersByTotalBill(String range) throws SQLException {
+		List<ReportCache.Result> runs = runRanges(String.format(CUSTOMERS_BY_TOTAL_BILL, range));
+		final int bill = runs.get(0).columns.size() - 1;
+		final int id = 0;
+		List<List<String>> merged = mergeRuns(runs, (a, b) -> {
+			int c = Long.compare(Long.parseLong(b.get(bill)), Long.parseLong(a.get(bill)));
+			return c != 0 ? c : Integer.compare(Integer.parseInt(a.get(id)), Integer.parseInt(b.get(id)));
+		});
+		return new ReportCache.Result(runs.get(0).columns, merged, null);
+	}
+
+	/**
+	 * Method to stop the worker threads. The pool is left open.
+	 */
+	public void shutdown() {
+		_executor.shutdownNow();
+	}
+
+	/*
+	 * Runs a query with two range parameters once per customer id range,
+	 * all inside one snapshot, and returns the results in range order.
+	 */
+	private List<ReportCache.Result> runRanges(final String query) throws SQLException {
+		final SnapshotGroup group = new SnapshotGroup(_pool);
+		try {
+			List<long[]> ranges = customerRanges(group.exporter(), _workers * RANGES_PER_WORKER);
+			List<Future<ReportCache.Result>> parts = new ArrayList<Future<ReportCache.Result>>();
+			for (final long[] range : ranges) {
+				parts.add(_executor.submit(new Callable<ReportCache.Result>() {
+					public ReportCache.Result call() throws SQLException {
+						Connection connection = group.join();
+						try {
+							return runRange(connection, query, range);
+						}finally{
+							group.leave(connection);
+						}
+					}
+				}));
+			}
+			List<ReportCache.Result> runs = new ArrayList<ReportCache.Result>();
+			for (Future<ReportCache.Result> part : parts) {
+				runs.add(part.get());
+			}
+			return runs;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a range", "57014");
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}finally{
+			group.close();
+		}
+	}
+
+	//equal-width ranges covering every customer id in the snapshot
+	private static List<long[]> customerRanges(Connection connection, int parts) throws SQLException {
+		Statement stmt = connection.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT min(id), max(id) FROM Customer");
+		rs.next();
+		long lo = rs.getLong(1);
+		long hi = rs.getLong(2);
+		stmt.close();
+		List<long[]> ranges = new ArrayList<long[]>();
+		long width = Math.max(1, (hi - lo + parts) / parts);
+		for (long start = lo; start <= hi; start += width) {
+			ranges.add(new long[] { start, Math.min(hi, start + width - 1) });
+		}
+		if (ranges.isEmpty()) ranges.add(new long[] { 0, -1 });
+		return ranges;
+	}
+
+	private static ReportCache.Result runRange(Connection connection, String query, long[] range) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(query);
+		try {
+			stmt.setLong(1, range[0]);
+			stmt.setLong(2, range[1]);
+			ResultSet rs = stmt.executeQuery();
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			List<String> columns = new ArrayList<String>();
+			for (int i = 1; i <= numCol; i++) columns.add(rsmd.getColumnName(i));
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while (rs.next()) {
+				List<String> row = new ArrayList<String>(numCol);
+				for (int i = 1; i <= numCol; i++) row.add(rs.getString(i));
+				rows.add(row);
+			}
+			return new ReportCache.Result(columns, rows, null);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//k-way merge of runs that are each sorted by order
+	static List<List<String>> mergeRuns(final List<ReportCache.Result> runs, final Comparator<List<String>> order) {
+		PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, runs.size()), (a, b) -> order.compare(runs.get(a[0]).rows.get(a[1]), runs.get(b[0]).rows.get(b[1])));
+		int total = 0;
+		for (int r = 0; r < runs.size(); r++) {
+			total += runs.get(r).rows.size();
+			if (!runs.get(r).rows.isEmpty()) heads.add(new int[] { r, 0 });
+		}
+		List<List<String>> merged = new ArrayList<List<String>>(total);
+		while (!heads.isEmpty()) {
+			int[] head = heads.poll();
+			List<List<String>> rows = runs.get(head[0]).rows;
+			merged.add(rows.get(head[1]));
+			if (++head[1] < rows.size()) heads.add(head);
+		}
+		return merged;
+	}
+
+	/**
+	 * Benchmark of report 10: the single-query version against the
+	 * parallel one with 1, 2, 4, ... connections up to the given maximum,
+	 * best of a few runs each. The table sizes are printed with the timings
+	 * so runs on growing data can be compared.
+	 *
+	 * @param args <dbname> <port> <user> [max connections] [runs]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] ParallelReports <dbname> <port> <user> [max connections] [runs]");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		String user = args[2];
+		String passwd = "#BlackpinkLisa1";
+		int maxWorkers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		int runs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+		Class.forName("org.postgresql.Driver");
+
+		Connection single = DriverManager.getConnection(url, user, passwd);
+		Statement stmt = single.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT (SELECT count(*) FROM Customer), (SELECT count(*) FROM Owns), (SELECT count(*) FROM Service_Request), (SELECT count(*) FROM Closed_Request)");
+		rs.next();
+		System.out.println("cores " + Runtime.getRuntime().availableProcessors() + ", customers " + rs.getLong(1) + ", owns " + rs.getLong(2) + ", service requests " + rs.getLong(3) + ", closed requests " + rs.getLong(4));
+		long bill1 = best(runs, () -> drain(single, String.format(MechanicShop.QUERY_CUSTOMERS_BY_TOTAL_BILL, "")));
+		single.close();
+		System.out.println("connections\treport 10 ms\tspeedup");
+		System.out.println("single query\t" + bill1 + "\t1.00");
+		for (int workers = 1; workers <= maxWorkers; workers *= 2) {
+			ConnectionPool pool = new ConnectionPool(url, user, passwd, workers + 1);
+			final ParallelReports reports = new ParallelReports(pool, workers);
+			reports.customersByTotalBill("");
+			long bill = best(runs, () -> reports.customersByTotalBill(""));
+			System.out.println(workers + "\t" + bill + "\t" + String.format("%.2f", (double) bill1 / Math.max(1, bill)));
+			reports.shutdown();
+			pool.close();
+		}
+	}
+
+	private interface Timed {
+		Object run() throws SQLException;
+	}
+
+	private static long best(int runs, Timed timed) throws SQLException {
+		long[] millis = new long[runs];
+		for (int i = 0; i < runs; i++) {
+			long start = System.nanoTime();
+			timed.run();
+			millis[i] = (System.nanoTime() - start) / 1000000;
+		}
+		Arrays.sort(millis);
+		return millis[0];
+	}
+
+	private static Object drain(Connection connection, String query) throws SQLException {
+		Statement stmt = connection.createStatement();
+		ResultSet rs = stmt.executeQuery(query);
+		int numCol = rs.getMetaData().getColumnCount();
+		while (rs.next()) {
+			for (int i = 1; i <= numCol; i++) rs.getString(i);
+		}
+		stmt.close();
+		return null;
+	}
+}
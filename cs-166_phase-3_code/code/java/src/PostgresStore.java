@@ -0,0 +1,37 @@
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+
+/**
+ * The intake writes sent straight to the primary, under the shop's
+ * execution policy.
+ *
+ */
+public class PostgresStore implements IntakeStore{
+	private final MechanicShop _shop;
+
+	public PostgresStore(MechanicShop shop) {
+		_shop = shop;
+	}
+
+	public int addCustomer(final Upserts.Customer customer) throws SQLException {
+		return _shop.onPrimary(connection -> Upserts.customers(connection, Collections.singletonList(customer), false))[0];
+	}
+
+	public int addCar(final Upserts.Car car) throws SQLException {
+		return _shop.onPrimary(connection -> Upserts.cars(connection, Collections.singletonList(car), false))[0];
+	}
+
+	public int insertServiceRequest(final IntakeJournal.Ticket ticket) throws SQLException {
+		_shop.ensureRequestPartition("Service_Request", ticket.date);
+		return _shop.onPrimary(connection -> {
+			PreparedStatement stmt = connection.prepareStatement(IntakeJournal.INSERT);
+			try {
+				IntakeJournal.bind(stmt, ticket);
+				return stmt.executeUpdate() == 1 ? Upserts.CREATED : Upserts.UNCHANGED;
+			}finally{
+				stmt.close();
+			}
+		});
+	}
+}
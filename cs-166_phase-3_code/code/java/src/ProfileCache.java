@@ -0,0 +1,104 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * This class keeps the most recently viewed customer profiles. Entries are
+ * dropped by the write methods of this process as they change a customer,
+ * and by the InvalidationBus for writes made by other processes; without
+ * the bus a profile may miss other desks' changes until it is evicted.
+ *
+ */
+public class ProfileCache implements InvalidationBus.Listener{
+	private final int _capacity;
+	private final Map<Integer, CustomerProfile> _profiles;
+	//bumped by every invalidation, so a load racing with one is not cached
+	private long _generation = 0;
+
+	public ProfileCache(final int capacity) {
+		_capacity = capacity;
+		_profiles = new LinkedHashMap<Integer, CustomerProfile>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, CustomerProfile> eldest) {
+				return size() > _capacity;
+			}
+		};
+	}
+
+	/**
+	 * Method to get a cached profile.
+	 *
+	 * @return the profile, or null when it has to be loaded
+	 */
+	public synchronized CustomerProfile get(int id) {
+		return _profiles.get(id);
+	}
+
+	/**
+	 * Method to get a profile, loading and caching it on a miss.
+	 *
+	 * @return the profile, or null when there is no such customer
+	 * @throws java.sql.SQLException when the profile could not be loaded
+	 */
+	public CustomerProfile load(Connection connection, int id) throws SQLException {
+		long generation;
+		synchronized (this) {
+			CustomerProfile cached = _profiles.get(id);
+			if (cached != null) return cached;
+			generation = _generation;
+		}
+		CustomerProfile profile = CustomerProfile.load(connection, id);
+		synchronized (this) {
+			if (profile != null && generation == _generation) _profiles.put(id, profile);
+		}
+		return profile;
+	}
+
+	public synchronized void invalidateCustomer(int id) {
+		_generation++;
+		_profiles.remove(id);
+	}
+
+	public synchronized void invalidateVin(String vin) {
+		_generation++;
+		Iterator<CustomerProfile> it = _profiles.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().mentionsVin(vin)) it.remove();
+		}
+	}
+
+	public synchronized void invalidateRequest(int rid) {
+		_generation++;
+		Iterator<CustomerProfile> it = _profiles.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().mentionsRequest(rid)) it.remove();
+		}
+	}
+
+	public synchronized void invalidate(String table, Set<String> keys) {
+		// profiles only show mechanic ids
+		if (table.equals("mechanic")) return;
+		if (keys == null) {
+			_generation++;
+			_profiles.clear();
+			return;
+		}
+		for (String key : keys) {
+			if (table.equals("car")) {
+				invalidateVin(key);
+			}else if (table.equals("request")) {
+				invalidateRequest(Integer.parseInt(key));
+			}else {
+				// every other table's notices are keyed by customer id
+				try {
+					invalidateCustomer(Integer.parseInt(key));
+				}catch(NumberFormatException e){
+					_generation++;
+					_profiles.clear();
+				}
+			}
+		}
+	}
+}
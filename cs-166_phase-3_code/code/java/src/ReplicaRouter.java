@@ -0,0 +1,132 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * This class keeps the connections to the read replicas of the shop database
+ * and picks one for each read-only report. Replicas are used round-robin;
+ * a replica whose replay lag is above the configured limit, or whose
+ * connection broke, is skipped until its next lag check says it is usable
+ * again. When no replica qualifies the caller falls back to the primary.
+ *
+ */
+public class ReplicaRouter{
+	//how often the replay lag of a replica is sampled
+	private static final long LAG_CHECK_INTERVAL_MS = 1000;
+
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final double _maxLagSeconds;
+	private final String _user;
+	private final String _passwd;
+	private int _next = 0;
+
+	private static class Replica {
+		String url;
+		Connection connection;
+		double lagSeconds;
+		long lagCheckedAt;
+		boolean healthy;
+	}
+
+	public ReplicaRouter(List<String> urls, String user, String passwd, double maxLagSeconds) {
+		_maxLagSeconds = maxLagSeconds;
+		_user = user;
+		_passwd = passwd;
+		for (String url : urls) {
+			Replica replica = new Replica();
+			replica.url = url;
+			try {
+				System.out.println("Connecting to replica " + url);
+				replica.connection = DriverManager.getConnection(url, user, passwd);
+				replica.connection.setReadOnly(true);
+				replica.healthy = true;
+			}catch(SQLException e){
+				System.err.println("Error - Unable to Connect to replica: " + e.getMessage());
+			}
+			_replicas.add(replica);
+		}
+	}
+
+	/**
+	 * Method to pick the replica connection for the next read-only query.
+	 *
+	 * @return a replica connection, or null when the primary has to be used
+	 */
+	public synchronized Connection pick() {
+		for (int tried = 0; tried < _replicas.size(); tried++) {
+			Replica replica = _replicas.get(_next);
+			_next = (_next + 1) % _replicas.size();
+			refreshLag(replica);
+			if (replica.healthy && replica.lagSeconds <= _maxLagSeconds) {
+				return replica.connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Method to take a replica out of rotation after a query on it failed.
+	 * It is probed again at its next lag check.
+	 *
+	 * @param connection the connection returned by pick()
+	 */
+	public synchronized void markFailed(Connection connection) {
+		for (Replica replica : _replicas) {
+			if (replica.connection == connection) {
+				replica.healthy = false;
+				replica.lagCheckedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	public int size() {
+		return _replicas.size();
+	}
+
+	/*
+	 * Samples how far the replica's replay is behind. A replica that has
+	 * replayed everything it received counts as zero lag even when the
+	 * primary has been idle for a long time.
+	 */
+	private void refreshLag(Replica replica) {
+		long now = System.currentTimeMillis();
+		if (now - replica.lagCheckedAt < LAG_CHECK_INTERVAL_MS) return;
+		replica.lagCheckedAt = now;
+		try {
+			if (replica.connection == null || replica.connection.isClosed()) {
+				replica.connection = DriverManager.getConnection(replica.url, _user, _passwd);
+				replica.connection.setReadOnly(true);
+			}
+		}catch(SQLException e){
+			replica.healthy = false;
+			return;
+		}
+		try {
+			Statement stmt = replica.connection.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) END");
+			rs.next();
+			replica.lagSeconds = rs.getDouble(1);
+			replica.healthy = true;
+			stmt.close();
+		}catch(SQLException e){
+			replica.healthy = false;
+		}
+	}
+
+	/**
+	 * Method to close every replica connection.
+	 */
+	public void cleanup() {
+		for (Replica replica : _replicas) {
+			try {
+				if (replica.connection != null) replica.connection.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}
+}
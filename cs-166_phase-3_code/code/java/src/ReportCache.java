@@ -0,0 +1,140 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * This class keeps the rows of recently run reports so running a report
+ * again costs no round trip. It is only correct while an InvalidationBus
+ * feeds it: a change to any table a report reads drops that report. A
+ * report that was being fetched while a change arrived is not cached, since
+ * its rows may predate the change.
+ *
+ */
+public class ReportCache implements InvalidationBus.Listener{
+	private static final int MAX_REPORTS = 32;
+
+	/**
+	 * The rows of one report as strings, with the column names.
+	 */
+	public static class Result {
+		final List<String> columns;
+		final List<List<String>> rows;
+		final Set<String> tables;
+
+		Result(List<String> columns, List<List<String>> rows, Set<String> tables) {
+			this.columns = columns;
+			this.rows = rows;
+			this.tables = tables;
+		}
+	}
+
+	private final Map<String, Result> _reports = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+			return size() > MAX_REPORTS;
+		}
+	};
+	//bumped by every invalidation
+	private long _generation = 0;
+
+	/**
+	 * Method to get the rows of a report, from the cache when possible.
+	 *
+	 * @param connection where to run the report on a miss
+	 * @param query the report query
+	 * @return the report rows
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public Result get(Connection connection, String query) throws SQLException {
+		long generation;
+		synchronized (this) {
+			Result cached = _reports.get(query);
+			if (cached != null) return cached;
+			generation = _generation;
+		}
+		Result result = load(connection, query);
+		synchronized (this) {
+			if (generation == _generation) _reports.put(query, result);
+		}
+		return result;
+	}
+
+	public synchronized void invalidate(String table, Set<String> keys) {
+		_generation++;
+		Iterator<Result> it = _reports.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().tables.contains(table)) it.remove();
+		}
+	}
+
+	/**
+	 * Method to print a report in the layout of executeQueryAndPrintResult.
+	 *
+	 * @return the number of rows printed
+	 */
+	public static int print(Result result) {
+		if (!result.rows.isEmpty()) {
+			for (String column : result.columns) System.out.print(column + "\t");
+			System.out.println();
+		}
+		for (List<String> row : result.rows) {
+			for (String value : row) System.out.print(value + "\t");
+			System.out.println();
+		}
+		return result.rows.size();
+	}
+
+	static Result load(Connection connection, String query) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(query);
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			List<String> columns = new ArrayList<String>();
+			for (int i = 1; i <= numCol; i++) columns.add(rsmd.getColumnName(i));
+			StringDictionary.Columns values = StringDictionary.SHARED.columns(rsmd);
+			List<List<String>> rows = new ArrayList<List<String>>();
+			while (rs.next()) {
+				List<String> row = new ArrayList<String>(numCol);
+				for (int i = 1; i <= numCol; i++) row.add(values.get(rs, i));
+				rows.add(row);
+			}
+			return new Result(columns, rows, tablesRead(query));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//summary tables kept by triggers, and the table whose changes move them
+	private static final String[][] SUMMARIES = {
+		// report 7 reads Customer_Car_Count since it stopped counting Owns itself
+		{ "customer_car_count", "owns" },
+		{ "car_mileage_stats", "service_request" },
+	};
+
+	/*
+	 * The tables a report reads, found by name in its text. A column such as
+	 * customer_id also counts as reading Customer, which can only cause an
+	 * extra invalidation, never a missed one. A summary table counts as
+	 * reading the table it is computed from.
+	 */
+	private static Set<String> tablesRead(String query) {
+		String text = query.toLowerCase();
+		Set<String> tables = new HashSet<String>();
+		for (String table : InvalidationBus.TABLES) {
+			if (text.contains(table)) tables.add(table);
+		}
+		for (String[] summary : SUMMARIES) {
+			if (text.contains(summary[0])) tables.add(summary[1]);
+		}
+		return tables;
+	}
+}
@@ -0,0 +1,189 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs reports 6-10 at the same time, each on its own pooled
+ * connection. All five read one exported snapshot (see SnapshotGroup), so
+ * they agree with each other even while tickets keep closing, and the run
+ * takes about as long as the slowest report instead of the sum of all five.
+ * Each report is handed to the caller as soon as it finishes.
+ *
+ * The exporting connection runs one of the reports itself, so a pool of
+ * two connections is enough; a smaller pool than six only makes some
+ * reports wait for a connection.
+ *
+ */
+public class ReportDashboard{
+	/**
+	 * Receives the reports in the order they finish, on the calling thread.
+	 */
+	public interface Listener {
+		void finished(int report, ReportCache.Result result, long millis);
+	}
+
+	private final ConnectionPool _pool;
+	private final ExecutorService _executor;
+	//milliseconds of the last runSequential, -1 before the first
+	private volatile long _sequentialMillis = -1;
+
+	public ReportDashboard(ConnectionPool pool) {
+		_pool = pool;
+		_executor = Executors.newFixedThreadPool(MechanicShop.reportQueries().length, r -> {
+			Thread thread = new Thread(r, "dashboard-report");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Method to run every report once.
+	 *
+	 * @param listener gets each report as it finishes
+	 * @return the milliseconds each report took, in menu order
+	 * @throws java.sql.SQLException when a report failed; the reports that
+	 *         finished before it have been handed over
+	 */
+	public long[] run(Listener listener) throws SQLException {
+		final String[] queries = MechanicShop.reportQueries();
+		final SnapshotGroup group = new SnapshotGroup(_pool);
+		CompletionService<Object[]> done = new ExecutorCompletionService<Object[]>(_executor);
+		long[] millis = new long[queries.length];
+		int pending = 0;
+		try {
+			for (int i = 0; i < queries.length; i++) {
+				final int report = i;
+				done.submit(new Callable<Object[]>() {
+					public Object[] call() throws SQLException {
+						long start = System.nanoTime();
+						ReportCache.Result result;
+						if (report == 0) {
+							result = ReportCache.load(group.exporter(), queries[report]);
+						}else {
+							Connection connection = group.join();
+							try {
+								result = ReportCache.load(connection, queries[report]);
+							}finally{
+								group.leave(connection);
+							}
+						}
+						return new Object[] { report, result, (System.nanoTime() - start) / 1000000 };
+					}
+				});
+				pending++;
+			}
+			while (pending > 0) {
+				Object[] finished = done.take().get();
+				pending--;
+				int report = (Integer) finished[0];
+				millis[report] = (Long) finished[2];
+				listener.finished(report + 6, (ReportCache.Result) finished[1], millis[report]);
+			}
+			return millis;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("interrupted while waiting for a report", "57014");
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}finally{
+			// the remaining reports must be off the exporter before it is released
+			for (; pending > 0; pending--) {
+				try {
+					done.take();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			group.close();
+		}
+	}
+
+	/**
+	 * Method to run every report one after another on one pooled
+	 * connection, the baseline the concurrent run is measured against. The
+	 * time is kept for lastSequentialMillis.
+	 *
+	 * @return the milliseconds the five reports took together
+	 * @throws java.sql.SQLException when a report failed
+	 */
+	public long runSequential() throws SQLException {
+		Connection connection = _pool.borrow();
+		try {
+			long start = System.nanoTime();
+			for (String query : MechanicShop.reportQueries()) ReportCache.load(connection, query);
+			_sequentialMillis = (System.nanoTime() - start) / 1000000;
+			return _sequentialMillis;
+		}finally{
+			_pool.release(connection);
+		}
+	}
+
+	/**
+	 * @return the milliseconds of the last sequential run, or -1 when there
+	 *         was none yet
+	 */
+	public long lastSequentialMillis() {
+		return _sequentialMillis;
+	}
+
+	/**
+	 * Method to stop the worker threads. The pool is left open.
+	 */
+	public void shutdown() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Benchmark of the dashboard: the five reports one after another on one
+	 * connection against the concurrent run, best of a few runs each.
+	 *
+	 * @param args <dbname> <port> <user> [runs]
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] ReportDashboard <dbname> <port> <user> [runs]");
+			return;
+		}
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		String user = args[2];
+		String passwd = "#BlackpinkLisa1";
+		int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		Class.forName("org.postgresql.Driver");
+
+		String[] queries = MechanicShop.reportQueries();
+		long[] sequential = new long[runs];
+		Connection single = DriverManager.getConnection(url, user, passwd);
+		for (int r = 0; r < runs; r++) {
+			long start = System.nanoTime();
+			for (String query : queries) ReportCache.load(single, query);
+			sequential[r] = (System.nanoTime() - start) / 1000000;
+		}
+		single.close();
+
+		ConnectionPool pool = new ConnectionPool(url, user, passwd, queries.length);
+		ReportDashboard dashboard = new ReportDashboard(pool);
+		long[] concurrent = new long[runs];
+		for (int r = 0; r < runs; r++) {
+			long start = System.nanoTime();
+			dashboard.run((report, result, millis) -> { });
+			concurrent[r] = (System.nanoTime() - start) / 1000000;
+		}
+		dashboard.shutdown();
+		pool.close();
+
+		Arrays.sort(sequential);
+		Arrays.sort(concurrent);
+		System.out.println("sequential " + sequential[0] + " ms, concurrent " + concurrent[0] + " ms, speedup "
+			+ String.format("%.2f", (double) sequential[0] / Math.max(1, concurrent[0])));
+	}
+}
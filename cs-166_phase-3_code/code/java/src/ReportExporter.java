@@ -0,0 +1,81 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.BufferedOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class exports the result of a report, or a whole table, to a file.
+ * The rows are produced by the server with COPY (query) TO STDOUT and
+ * streamed by the driver's CopyManager straight into the file channel, so
+ * no row is ever turned into Java objects and memory use does not depend on
+ * the size of the export.
+ *
+ */
+public class ReportExporter{
+	//write buffer between the copy stream and the file channel
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public static final int CSV = 0;
+	public static final int JSON_LINES = 1;
+
+	/**
+	 * Method to export the rows of a query to a file.
+	 *
+	 * @param connection the connection the query runs on
+	 * @param query a SELECT statement, with or without the trailing semicolon
+	 * @param file the file to create or overwrite
+	 * @param format CSV (with a header line) or JSON_LINES (one object per row)
+	 * @param gzip whether to gzip the file
+	 * @return the number of rows exported
+	 * @throws java.sql.SQLException when the query failed
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public static long export(Connection connection, String query, File file, int format, boolean gzip) throws SQLException, IOException {
+		query = query.trim();
+		if (query.endsWith(";")) {
+			query = query.substring(0, query.length() - 1);
+		}
+		String copy;
+		if (format == JSON_LINES) {
+			// one json column; csv with quote and delimiter bytes that json never
+			// contains unescaped, so each object is written exactly as produced
+			copy = "COPY (SELECT row_to_json(r) FROM (" + query + ") AS r) TO STDOUT WITH (FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02')";
+		}else {
+			copy = "COPY (" + query + ") TO STDOUT WITH (FORMAT csv, HEADER)";
+		}
+		CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		OutputStream out = Channels.newOutputStream(channel);
+		try {
+			if (gzip) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			out = new BufferedOutputStream(out, BUFFER_SIZE);
+			return copyManager.copyOut(copy, out);
+		}finally{
+			out.close();
+		}
+	}
+
+	/**
+	 * Method to export a whole table.
+	 *
+	 * @param table a table name; partitioned tables are exported through
+	 *        all of their partitions
+	 * @see #export(Connection, String, File, int, boolean)
+	 */
+	public static long exportTable(Connection connection, String table, File file, int format, boolean gzip) throws SQLException, IOException {
+		if (!table.matches("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?")) {
+			throw new IllegalArgumentException("not a table name: " + table);
+		}
+		return export(connection, "SELECT * FROM " + table, file, format, gzip);
+	}
+}
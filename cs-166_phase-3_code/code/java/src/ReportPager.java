@@ -0,0 +1,228 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * This class shows one of the reports a page at a time using keyset (seek)
+ * pagination. Every report is written with its sort key exposed as columns
+ * named sort_1, sort_2, ...; a page is fetched by seeking past the key of
+ * the last row shown (or before the key of the first row when going back),
+ * so each fetch reads at most one page worth of rows from the index instead
+ * of computing and skipping everything in front of it as OFFSET would.
+ *
+ */
+public class ReportPager{
+	//columns whose name starts with this are the sort key and are not printed
+	private static final String SORT_PREFIX = "sort_";
+
+	/*
+	 * A report that can be paginated. The key columns must be unique
+	 * together so seeking never skips or repeats a row. A descending sort is
+	 * expressed by negating the key so every seek compares ascending. The
+	 * jump value is typed as text for a textual leading key, as a number
+	 * (negated for a descending key) otherwise.
+	 */
+	static class Report {
+		final String title;
+		final String query;
+		final int keyCount;
+		final String jumpLabel;
+		final boolean jumpText;
+		final boolean jumpNegated;
+
+		Report(String title, String query, int keyCount, String jumpLabel, boolean jumpText, boolean jumpNegated) {
+			this.title = title;
+			this.query = query;
+			this.keyCount = keyCount;
+			this.jumpLabel = jumpLabel;
+			this.jumpText = jumpText;
+			this.jumpNegated = jumpNegated;
+		}
+	}
+
+	//reports 6-10 of the main menu, in order
+	static final Report[] REPORTS = {
+		new Report("ListCustomersWithBillLessThan100",
+			"SELECT Customer.fname, Customer.lname, Closed_Request.bill, Closed_Request.bill AS sort_1, Closed_Request.wid AS sort_2 FROM Customer, Closed_Request, Service_Request WHERE Closed_Request.bill < 100 AND Closed_Request.rid = Service_Request.rid AND Service_Request.customer_id = Customer.id",
+			2, "bill", false, false),
+		new Report("ListCustomersWithMoreThan20Cars",
+			"SELECT Customer.fname, Customer.lname, total.cars AS numCars, total.customer_id AS sort_1 FROM Customer, Customer_Car_Count total WHERE total.cars > 20 AND Customer.id = total.customer_id",
+			1, "customer id", false, false),
+		new Report("ListCarsBefore1995With50000Milles",
+			"SELECT Car.vin, Car.make, Car.model, Car.year, s.min_odometer AS odometer, Car.vin AS sort_1 FROM Car, Car_Mileage_Stats s WHERE Car.vin = s.car_vin AND Car.year < 1995 AND s.min_odometer < 50000",
+			1, "vin", true, false),
+		new Report("ListKCarsWithTheMostServices",
+			"SELECT c.vin, c.make, c.model, c.year, s.scount, -s.scount AS sort_1, c.vin AS sort_2 FROM Car c, (SELECT car_vin, COUNT(rid) AS scount FROM Service_Request GROUP BY car_vin) AS s WHERE c.vin = s.car_vin",
+			2, "number of services (at most)", false, true),
+		new Report("ListCustomersInDescendingOrderOfTheirTotalBill",
+			"SELECT c.fname, c.lname, c2.totalBill, -c2.totalBill AS sort_1, c.id AS sort_2 FROM customer c, (SELECT sr.customer_id, SUM(cr.bill) AS totalBill FROM service_request sr, closed_request cr WHERE sr.rid = cr.rid GROUP BY sr.customer_id) AS c2 WHERE c.id = c2.customer_id",
+			2, "total bill (at most)", false, true)
+	};
+
+	private final Report _report;
+	private final int _pageSize;
+	private final PreparedStatement _first;
+	private final PreparedStatement _forward;
+	private final PreparedStatement _backward;
+	private final PreparedStatement _jump;
+
+	private List<Object[]> _rows = new ArrayList<Object[]>();
+	private List<String> _columns = new ArrayList<String>();
+	private int _pageNumber = 0;
+
+	public ReportPager(Connection connection, Report report, int pageSize) throws SQLException {
+		_report = report;
+		_pageSize = pageSize;
+		String keys = "";
+		String keysDesc = "";
+		String params = "";
+		for (int i = 1; i <= report.keyCount; i++) {
+			keys += (i > 1 ? ", " : "") + "page." + SORT_PREFIX + i;
+			keysDesc += (i > 1 ? ", " : "") + "page." + SORT_PREFIX + i + " DESC";
+			params += (i > 1 ? ", " : "") + "?";
+		}
+		String from = "SELECT * FROM (" + report.query + ") AS page";
+		_first = connection.prepareStatement(from + " ORDER BY " + keys + " LIMIT " + pageSize);
+		_forward = connection.prepareStatement(from + " WHERE (" + keys + ") > (" + params + ") ORDER BY " + keys + " LIMIT " + pageSize);
+		_backward = connection.prepareStatement(from + " WHERE (" + keys + ") < (" + params + ") ORDER BY " + keysDesc + " LIMIT " + pageSize);
+		_jump = connection.prepareStatement(from + " WHERE page." + SORT_PREFIX + "1 >= ? ORDER BY " + keys + " LIMIT " + pageSize);
+	}
+
+	public String getTitle() {
+		return _report.title;
+	}
+
+	public String getJumpLabel() {
+		return _report.jumpLabel;
+	}
+
+	/**
+	 * Method to show the first page.
+	 *
+	 * @return the number of rows on the page
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int first() throws SQLException {
+		_pageNumber = 1;
+		return load(_first, false);
+	}
+
+	/**
+	 * Method to move to the page after the one shown. Stays put when the
+	 * current page is the last one.
+	 *
+	 * @return the number of rows on the new page, 0 when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int next() throws SQLException {
+		if (_rows.isEmpty()) return first();
+		bindKey(_forward, _rows.get(_rows.size() - 1));
+		return move(_forward, false, 1);
+	}
+
+	/**
+	 * Method to move to the page before the one shown. Stays put when the
+	 * current page is the first one.
+	 *
+	 * @return the number of rows on the new page, 0 when there is none
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int previous() throws SQLException {
+		if (_rows.isEmpty()) return first();
+		bindKey(_backward, _rows.get(0));
+		return move(_backward, true, -1);
+	}
+
+	/**
+	 * Method to jump to the first row whose leading sort key is at or after
+	 * the given value, e.g. a vin prefix for report 8.
+	 *
+	 * @param value the value typed by the user for getJumpLabel()
+	 * @return the number of rows on the new page
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int jump(String value) throws SQLException {
+		if (_report.jumpText) {
+			_jump.setString(1, value);
+		}else {
+			_jump.setLong(1, _report.jumpNegated ? -Long.parseLong(value) : Long.parseLong(value));
+		}
+		_pageNumber = 0;
+		return load(_jump, false);
+	}
+
+	/**
+	 * Method to print the page shown in the same layout as
+	 * executeQueryAndPrintResult, leaving out the sort key columns.
+	 */
+	public void print() {
+		System.out.println("-- " + _report.title + ", page " + (_pageNumber > 0 ? String.valueOf(_pageNumber) : "?") + " --");
+		for (String column : _columns) {
+			if (!column.startsWith(SORT_PREFIX)) System.out.print(column + "\t");
+		}
+		System.out.println();
+		for (Object[] row : _rows) {
+			for (int i = 0; i < _columns.size(); i++) {
+				if (!_columns.get(i).startsWith(SORT_PREFIX)) System.out.print(row[i] + "\t");
+			}
+			System.out.println();
+		}
+		if (_rows.isEmpty()) System.out.println("(no rows)");
+	}
+
+	/**
+	 * Method to release the statements.
+	 */
+	public void close() {
+		for (PreparedStatement stmt : new PreparedStatement[] { _first, _forward, _backward, _jump }) {
+			try {
+				stmt.close();
+			}catch(SQLException e){
+				// ignored.
+			}
+		}
+	}
+
+	//binds the sort key of a row shown on the current page
+	private void bindKey(PreparedStatement stmt, Object[] row) throws SQLException {
+		for (int i = 1; i <= _report.keyCount; i++) {
+			stmt.setObject(i, row[_columns.indexOf(SORT_PREFIX + i)]);
+		}
+	}
+
+	//fetches an adjacent page, keeping the current one when there is none
+	private int move(PreparedStatement stmt, boolean reversed, int step) throws SQLException {
+		List<Object[]> current = _rows;
+		int rowCount = load(stmt, reversed);
+		if (rowCount == 0) {
+			_rows = current;
+			return 0;
+		}
+		if (_pageNumber > 0) _pageNumber += step;
+		return rowCount;
+	}
+
+	private int load(PreparedStatement stmt, boolean reversed) throws SQLException {
+		ResultSet rs = stmt.executeQuery();
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		List<String> columns = new ArrayList<String>();
+		for (int i = 1; i <= numCol; i++) columns.add(rsmd.getColumnName(i));
+		List<Object[]> rows = new ArrayList<Object[]>();
+		while (rs.next()) {
+			Object[] row = new Object[numCol];
+			for (int i = 1; i <= numCol; i++) row[i - 1] = rs.getObject(i);
+			rows.add(row);
+		}
+		rs.close();
+		if (reversed) Collections.reverse(rows);
+		_columns = columns;
+		_rows = rows;
+		return rows.size();
+	}
+}
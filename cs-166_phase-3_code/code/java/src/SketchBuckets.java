@@ -0,0 +1,258 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class keeps one set of sketches per day for the live dashboard:
+ * distinct customers who opened a request, distinct customers whose
+ * request was closed, and the frequency of complaints and of VINs. The
+ * writes of this desk feed them as they happen, so a dashboard over any
+ * range of days merges a few small sketches instead of scanning
+ * Service_Request. The error bounds are those of HyperLogLog and
+ * CountMinSketch, whatever the number of days merged.
+ *
+ * Each day is saved as <dir>/<yyyy-mm-dd>.sketch. Days saved by other
+ * desks or shops are merged in with the merge command of main, which
+ * also builds the days of the existing history from the database.
+ *
+ */
+public class SketchBuckets{
+	private static final int VERSION = 1;
+
+	/**
+	 * The sketches of one day.
+	 */
+	static class Bucket {
+		final HyperLogLog customers;
+		final HyperLogLog served;
+		final CountMinSketch complaints;
+		final CountMinSketch vins;
+		boolean dirty = false;
+
+		Bucket() {
+			this(new HyperLogLog(HyperLogLog.DEFAULT_PRECISION), new HyperLogLog(HyperLogLog.DEFAULT_PRECISION), new CountMinSketch(), new CountMinSketch());
+		}
+
+		Bucket(HyperLogLog customers, HyperLogLog served, CountMinSketch complaints, CountMinSketch vins) {
+			this.customers = customers;
+			this.served = served;
+			this.complaints = complaints;
+			this.vins = vins;
+		}
+
+		void merge(Bucket other) {
+			customers.merge(other.customers);
+			served.merge(other.served);
+			complaints.merge(other.complaints);
+			vins.merge(other.vins);
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(VERSION);
+			customers.write(out);
+			served.write(out);
+			complaints.write(out);
+			vins.write(out);
+		}
+
+		static Bucket read(DataInputStream in) throws IOException {
+			if (in.readInt() != VERSION) throw new IOException("unknown sketch file version");
+			return new Bucket(HyperLogLog.read(in), HyperLogLog.read(in), CountMinSketch.read(in), CountMinSketch.read(in));
+		}
+	}
+
+	private final File _dir;
+	private final TreeMap<String, Bucket> _days = new TreeMap<String, Bucket>();
+
+	/**
+	 * @param dir where the days are saved, read now when it exists
+	 * @throws java.io.IOException when a saved day cannot be read
+	 */
+	public SketchBuckets(File dir) throws IOException {
+		_dir = dir;
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".sketch"));
+		if (files == null) return;
+		for (File file : files) {
+			_days.put(file.getName().substring(0, file.getName().length() - ".sketch".length()), readBucket(file));
+		}
+	}
+
+	/**
+	 * Method to count a new service request.
+	 *
+	 * @param date the request date, yyyy-mm-dd
+	 */
+	public synchronized void requestOpened(String date, int customerId, String vin, String complaint) {
+		Bucket bucket = day(date);
+		bucket.customers.add(Integer.toString(customerId));
+		bucket.vins.add(vin);
+		if (complaint != null && complaint.trim().length() > 0) bucket.complaints.add(complaint.trim());
+		bucket.dirty = true;
+	}
+
+	/**
+	 * Method to count a closed service request.
+	 *
+	 * @param date the closing date, yyyy-mm-dd
+	 */
+	public synchronized void requestClosed(String date, int customerId) {
+		Bucket bucket = day(date);
+		bucket.served.add(Integer.toString(customerId));
+		bucket.dirty = true;
+	}
+
+	/**
+	 * Method to merge the days of a range into one set of sketches.
+	 *
+	 * @param first first day, yyyy-mm-dd
+	 * @param last last day, yyyy-mm-dd
+	 */
+	public synchronized Bucket range(String first, String last) {
+		Bucket total = new Bucket();
+		for (Bucket bucket : _days.subMap(first, true, last, true).values()) total.merge(bucket);
+		return total;
+	}
+
+	/**
+	 * Method to write the days changed since the last save.
+	 *
+	 * @throws java.io.IOException when a day could not be written
+	 */
+	public synchronized void save() throws IOException {
+		if (!_dir.isDirectory() && !_dir.mkdirs()) throw new IOException("cannot create " + _dir);
+		for (Map.Entry<String, Bucket> day : _days.entrySet()) {
+			if (!day.getValue().dirty) continue;
+			writeBucket(new File(_dir, day.getKey() + ".sketch"), day.getValue());
+			day.getValue().dirty = false;
+		}
+	}
+
+	private Bucket day(String date) {
+		Bucket bucket = _days.get(date);
+		if (bucket == null) {
+			bucket = new Bucket();
+			_days.put(date, bucket);
+		}
+		return bucket;
+	}
+
+	static Bucket readBucket(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return Bucket.read(in);
+		}finally{
+			in.close();
+		}
+	}
+
+	static void writeBucket(File file, Bucket bucket) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			bucket.write(out);
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Method to print the dashboard for a range of days.
+	 */
+	public void printDashboard(String first, String last, int k) {
+		Bucket total = range(first, last);
+		System.out.println("Dashboard " + first + " to " + last + " (approximate)");
+		System.out.println("distinct customers with a new request: " + total.customers.estimate()
+			+ " (+/- " + String.format("%.1f", 2 * 100 * total.customers.standardError()) + "%)");
+		System.out.println("distinct customers served: " + total.served.estimate()
+			+ " (+/- " + String.format("%.1f", 2 * 100 * total.served.standardError()) + "%)");
+		System.out.println("most common complaints of " + total.complaints.total() + " (each may be over by up to " + total.complaints.errorBound() + ")");
+		for (Map.Entry<String, Integer> entry : total.complaints.top(k)) {
+			System.out.println("\t" + entry.getValue() + "\t" + entry.getKey());
+		}
+		System.out.println("busiest VINs of " + total.vins.total() + " (each may be over by up to " + total.vins.errorBound() + ")");
+		for (Map.Entry<String, Integer> entry : total.vins.top(k)) {
+			System.out.println("\t" + entry.getValue() + "\t" + entry.getKey());
+		}
+	}
+
+	/*
+	 * build <dbname> <port> <user> <dir>: sketches every day of the history
+	 *   in the database, replacing the days in dir.
+	 * merge <dir> <other dir>...: merges the days saved by other desks or
+	 *   shops into dir.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 5 && args[0].equals("build")) {
+			build(args[1], args[2], args[3], new File(args[4]));
+		}else if (args.length >= 3 && args[0].equals("merge")) {
+			File dir = new File(args[1]);
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+			int merged = 0;
+			for (int i = 2; i < args.length; i++) {
+				File[] files = new File(args[i]).listFiles((d, name) -> name.endsWith(".sketch"));
+				if (files == null) continue;
+				for (File file : files) {
+					File target = new File(dir, file.getName());
+					Bucket bucket = readBucket(file);
+					if (target.exists()) {
+						Bucket existing = readBucket(target);
+						existing.merge(bucket);
+						bucket = existing;
+					}
+					writeBucket(target, bucket);
+					merged++;
+				}
+			}
+			System.out.println(merged + " day(s) merged into " + dir);
+		}else {
+			System.err.println("Usage: java [-classpath <classpath>] SketchBuckets build <dbname> <port> <user> <dir>");
+			System.err.println("       java [-classpath <classpath>] SketchBuckets merge <dir> <other dir>...");
+		}
+	}
+
+	private static void build(String dbname, String port, String user, File dir) throws IOException, SQLException {
+		Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost:" + port + "/" + dbname, user, "#BlackpinkLisa1");
+		try {
+			// the driver only streams with fetchSize inside a transaction
+			connection.setAutoCommit(false);
+			SketchBuckets sketches = new SketchBuckets(dir);
+			// the history replaces whatever was saved for its days
+			sketches._days.clear();
+			long start = System.nanoTime();
+			Statement stmt = connection.createStatement();
+			stmt.setFetchSize(1000);
+			ResultSet rs = stmt.executeQuery("SELECT date, customer_id, car_vin, complain FROM Service_Request");
+			long rows = 0;
+			while (rs.next()) {
+				sketches.requestOpened(rs.getString(1), rs.getInt(2), rs.getString(3), rs.getString(4));
+				rows++;
+			}
+			rs = stmt.executeQuery("SELECT cr.date, sr.customer_id FROM Closed_Request cr, Service_Request sr WHERE sr.rid = cr.rid");
+			while (rs.next()) {
+				sketches.requestClosed(rs.getString(1), rs.getInt(2));
+				rows++;
+			}
+			stmt.close();
+			connection.commit();
+			sketches.save();
+			System.out.println(rows + " row(s) sketched into " + sketches._days.size() + " day(s) in " + (System.nanoTime() - start) / 1000000 + " ms");
+		}finally{
+			connection.close();
+		}
+	}
+}
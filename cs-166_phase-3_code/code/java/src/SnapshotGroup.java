@@ -0,0 +1,86 @@
+import java.sql.Connection;
+import java.sql.Statement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This class lets several pooled connections read the database as of the
+ * same instant. The first connection opens a repeatable-read transaction
+ * and exports its snapshot with pg_export_snapshot(); every connection that
+ * joins starts its own repeatable-read transaction on that snapshot, so
+ * queries split across them see one consistent state even while other
+ * sessions keep writing. The exporting transaction stays open until close().
+ *
+ */
+public class SnapshotGroup{
+	private final ConnectionPool _pool;
+	private final Connection _exporter;
+	private final String _snapshot;
+
+	/**
+	 * Takes a pooled connection and exports its snapshot.
+	 *
+	 * @throws java.sql.SQLException when no snapshot could be exported
+	 */
+	public SnapshotGroup(ConnectionPool pool) throws SQLException {
+		_pool = pool;
+		_exporter = pool.borrow();
+		try {
+			_exporter.setAutoCommit(false);
+			_exporter.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = _exporter.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()");
+			rs.next();
+			_snapshot = rs.getString(1);
+			stmt.close();
+		}catch(SQLException e){
+			pool.release(_exporter);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to get the connection that exported the snapshot. It can run
+	 * queries as a member of the group too; do not give it back.
+	 */
+	public Connection exporter() {
+		return _exporter;
+	}
+
+	/**
+	 * Method to take a pooled connection reading the group's snapshot.
+	 *
+	 * @return a connection inside a repeatable-read transaction, to be
+	 *         handed back with leave()
+	 * @throws java.sql.SQLException when the snapshot could not be imported
+	 */
+	public Connection join() throws SQLException {
+		Connection connection = _pool.borrow();
+		try {
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			Statement stmt = connection.createStatement();
+			stmt.execute("SET TRANSACTION SNAPSHOT '" + _snapshot + "'");
+			stmt.close();
+			return connection;
+		}catch(SQLException e){
+			_pool.release(connection);
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to end a member's transaction and hand its connection back.
+	 */
+	public void leave(Connection connection) {
+		_pool.release(connection);
+	}
+
+	/**
+	 * Method to end the exporting transaction. Call it after every member
+	 * has joined.
+	 */
+	public void close() {
+		_pool.release(_exporter);
+	}
+}
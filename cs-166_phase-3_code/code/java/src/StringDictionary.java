@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class cuts the memory taken by query results kept in the process.
+ * Values of CHAR columns lose their blank padding, and text values that
+ * repeat (makes, models, complaints, comments) are shared through a
+ * dictionary so each distinct one is held once. Only text columns are
+ * looked up, and only once their first values turned out to repeat: a
+ * column of mostly distinct values (VINs, phone numbers) never adds to the
+ * dictionary. The dictionary is bounded: once full it is emptied and
+ * refilled, so it does not hold on to the values of long-gone results.
+ *
+ */
+public class StringDictionary{
+	//shared by the results of every query of this process
+	public static final StringDictionary SHARED = new StringDictionary(1 << 16);
+	//values of a column read before deciding whether to keep interning it
+	static final int SAMPLE = 256;
+
+	private final int _capacity;
+	private final ConcurrentHashMap<String, String> _values = new ConcurrentHashMap<String, String>();
+
+	public StringDictionary(int capacity) {
+		_capacity = capacity;
+	}
+
+	public int size() {
+		return _values.size();
+	}
+
+	/**
+	 * Method to get the shared copy of a value.
+	 *
+	 * @return the copy already in the dictionary, else the value itself
+	 */
+	public String intern(String value) {
+		if (value == null) return null;
+		String shared = _values.get(value);
+		if (shared != null) return shared;
+		// values already handed out stay shared; only new ones start over
+		if (_values.size() >= _capacity) _values.clear();
+		shared = _values.putIfAbsent(value, value);
+		return shared == null ? value : shared;
+	}
+
+	/**
+	 * Method to start reading the rows of one result.
+	 *
+	 * @param rsmd metadata of the result, which tells the text columns
+	 * @return the reader for that result
+	 */
+	public Columns columns(ResultSetMetaData rsmd) throws SQLException {
+		boolean[] padded = new boolean[rsmd.getColumnCount()];
+		boolean[] text = new boolean[padded.length];
+		for (int i = 0; i < padded.length; i++) {
+			String type = rsmd.getColumnTypeName(i + 1);
+			padded[i] = "bpchar".equals(type);
+			text[i] = padded[i] || "varchar".equals(type) || "text".equals(type);
+		}
+		return new Columns(padded, text);
+	}
+
+	/**
+	 * Reads the values of one result, keeping per column whether interning
+	 * pays off.
+	 */
+	public class Columns {
+		private final boolean[] _padded;
+		private final boolean[] _skip;
+		private final int[] _seen;
+		private final int[] _hits;
+		//distinct values of each column's sample, dropped once it is decided
+		private final List<Set<String>> _sample = new ArrayList<Set<String>>();
+
+		Columns(boolean[] padded, boolean[] text) {
+			_padded = padded;
+			_skip = new boolean[padded.length];
+			_seen = new int[padded.length];
+			_hits = new int[padded.length];
+			for (int i = 0; i < padded.length; i++) {
+				_skip[i] = !text[i];
+				_sample.add(text[i] ? new HashSet<String>() : null);
+			}
+		}
+
+		public int size() {
+			return _padded.length;
+		}
+
+		/**
+		 * Method to read a column of the current row.
+		 *
+		 * @param column the column, from 1
+		 */
+		public String get(ResultSet rs, int column) throws SQLException {
+			return decode(column - 1, rs.getString(column));
+		}
+
+		String decode(int i, String value) {
+			if (value == null) return null;
+			if (_padded[i]) value = trimEnd(value);
+			if (_skip[i]) return value;
+			if (_seen[i] < SAMPLE) {
+				// sampled without adding to the dictionary
+				if (!_sample.get(i).add(value)) _hits[i]++;
+				if (++_seen[i] == SAMPLE) {
+					_skip[i] = _hits[i] < SAMPLE / 4;
+					_sample.set(i, null);
+				}
+				String shared = _values.get(value);
+				return shared != null ? shared : value;
+			}
+			return intern(value);
+		}
+	}
+
+	static String trimEnd(String value) {
+		int end = value.length();
+		while (end > 0 && value.charAt(end - 1) == ' ') end--;
+		return end == value.length() ? value : value.substring(0, end);
+	}
+
+	/*
+	 * Heap benchmark on the bundled csv files: every table is held once the
+	 * way the driver hands values over (a fresh String per value, CHAR
+	 * columns padded to their declared width) and once decoded through a
+	 * dictionary, and the live heap after a full collection is compared.
+	 */
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : "../data");
+		String[] tables = { "customer", "mechanic", "car", "owns", "service_request", "closed_request" };
+		//declared CHAR widths per column, 0 for every other type
+		int[][] widths = {
+			{ 0, 32, 32, 13, 256 },
+			{ 0, 32, 32, 0 },
+			{ 0, 0, 0, 0 },
+			{ 0, 0, 0 },
+			{ 0, 0, 0, 0, 0, 0 },
+			{ 0, 0, 0, 0, 0, 0 },
+		};
+		System.out.println("table\trows\tplain KB\tdictionary KB\tsaved");
+		long plainTotal = 0;
+		long sharedTotal = 0;
+		for (int t = 0; t < tables.length; t++) {
+			List<String[]> lines = readCsv(new File(dir, tables[t] + ".csv"), widths[t].length);
+			//both copies stay reachable until both are measured
+			long before = usedHeap();
+			List<List<String>> plain = load(lines, widths[t], null);
+			long middle = usedHeap();
+			StringDictionary dictionary = new StringDictionary(1 << 16);
+			List<List<String>> shared = load(lines, widths[t], dictionary);
+			long after = usedHeap();
+			long plainBytes = middle - before;
+			long sharedBytes = after - middle;
+			System.out.println(tables[t] + "\t" + plain.size() + "\t" + plainBytes / 1024 + "\t" + sharedBytes / 1024
+				+ "\t" + String.format("%.0f%%", 100.0 * (plainBytes - sharedBytes) / Math.max(1, plainBytes)));
+			plainTotal += plainBytes;
+			sharedTotal += sharedBytes;
+			if (shared.size() != plain.size()) throw new IllegalStateException("row count differs");
+		}
+		System.out.println("all\t\t" + plainTotal / 1024 + "\t" + sharedTotal / 1024
+			+ "\t" + String.format("%.0f%%", 100.0 * (plainTotal - sharedTotal) / Math.max(1, plainTotal)));
+	}
+
+	private static List<String[]> readCsv(File file, int numCol) throws Exception {
+		List<String[]> lines = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() > 0) lines.add(line.split(",", numCol));
+			}
+		}finally{
+			reader.close();
+		}
+		return lines;
+	}
+
+	/*
+	 * Builds the rows the way returnResult does. Each value is first copied
+	 * into a fresh String, padded as Postgres returns CHAR values, to stand
+	 * in for the String the driver decodes from the wire.
+	 */
+	private static List<List<String>> load(List<String[]> lines, int[] widths, StringDictionary dictionary) {
+		boolean[] padded = new boolean[widths.length];
+		for (int i = 0; i < widths.length; i++) padded[i] = widths[i] > 0;
+		// the csv gives no types, so every column is sampled as text
+		boolean[] text = new boolean[widths.length];
+		java.util.Arrays.fill(text, true);
+		Columns columns = dictionary == null ? null : dictionary.new Columns(padded, text);
+		List<List<String>> rows = new ArrayList<List<String>>();
+		StringBuilder pad = new StringBuilder();
+		for (String[] fields : lines) {
+			List<String> row = new ArrayList<String>(widths.length);
+			for (int i = 0; i < widths.length && i < fields.length; i++) {
+				pad.setLength(0);
+				pad.append(fields[i]);
+				while (pad.length() < widths[i]) pad.append(' ');
+				String value = pad.toString();
+				row.add(columns == null ? value : columns.decode(i, value));
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
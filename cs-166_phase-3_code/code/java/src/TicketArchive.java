@@ -0,0 +1,474 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class moves closed tickets older than a cutoff out of the database
+ * into compressed columnar files. Each batch of tickets (a Closed_Request
+ * row with its Service_Request row) becomes one segment file: a header
+ * with the row count and the first and last closing day, then every column
+ * compressed on its own, text columns dictionary-encoded. A reader
+ * decompresses only the columns it asks for, and the index file lists the
+ * closing-day range of each segment so a date range only opens the
+ * segments that overlap it.
+ *
+ * A batch is written to a .tmp file and synced, deleted from the database,
+ * committed, and only then renamed into place. After a crash, recover()
+ * settles every .tmp file by whether its rows are still in the database.
+ *
+ */
+public class TicketArchive{
+	public static final String[] COLUMNS = { "wid", "rid", "mid", "closed", "comment", "bill", "customer_id", "car_vin", "requested", "odometer", "complain" };
+	private static final boolean[] TEXT = { false, false, false, false, true, false, false, true, false, false, true };
+	private static final int MAGIC = 0x54415243;
+	//each close with the one request it closed: the latest one of its rid opened by then
+	private static final String SELECT_BATCH = "SELECT cr.wid, cr.rid, cr.mid, cr.date, cr.comment, cr.bill, sr.customer_id, sr.car_vin, sr.date, sr.odometer, sr.complain "
+		+ "FROM Closed_Request cr CROSS JOIN LATERAL (SELECT * FROM Service_Request s WHERE s.rid = cr.rid AND s.date <= cr.date "
+		+ "ORDER BY s.date DESC LIMIT 1 FOR UPDATE) AS sr WHERE cr.date < ? "
+		+ "ORDER BY cr.date, cr.wid LIMIT ? FOR UPDATE OF cr";
+	private static final String DELETE_CLOSED = "DELETE FROM Closed_Request WHERE (wid, date) IN (SELECT * FROM unnest(?::INTEGER[], ?::DATE[]))";
+	private static final String DELETE_REQUESTS = "DELETE FROM Service_Request WHERE (rid, date) IN (SELECT * FROM unnest(?::INTEGER[], ?::DATE[]))";
+	private static final String STILL_THERE = "SELECT 1 FROM Closed_Request WHERE wid = ? AND date = ?";
+
+	/**
+	 * The closing-day range of one segment file.
+	 */
+	static class Segment {
+		final File file;
+		final int rows;
+		final String first;
+		final String last;
+
+		Segment(File file, int rows, String first, String last) {
+			this.file = file;
+			this.rows = rows;
+			this.first = first;
+			this.last = last;
+		}
+	}
+
+	private final File _dir;
+	private final File _index;
+	private final List<Segment> _segments = new ArrayList<Segment>();
+
+	/**
+	 * @param dir where the segments and their index are kept, created when
+	 *        missing
+	 * @throws java.io.IOException when the index cannot be read or rebuilt
+	 */
+	public TicketArchive(File dir) throws IOException {
+		_dir = dir;
+		_index = new File(dir, "index");
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+		Map<String, Segment> indexed = new HashMap<String, Segment>();
+		if (_index.exists()) {
+			for (String line : Files.readAllLines(_index.toPath(), StandardCharsets.UTF_8)) {
+				String[] f = line.split(" ");
+				if (f.length == 4) indexed.put(f[0], new Segment(new File(dir, f[0]), Integer.parseInt(f[1]), f[2], f[3]));
+			}
+		}
+		// a segment renamed into place just before a crash may be missing from the index
+		boolean rebuilt = false;
+		for (File file : segmentFiles(".col")) {
+			Segment segment = indexed.get(file.getName());
+			if (segment == null) {
+				segment = readHeader(file);
+				rebuilt = true;
+			}
+			_segments.add(segment);
+		}
+		if (rebuilt || indexed.size() != _segments.size()) writeIndex();
+	}
+
+	public synchronized List<Segment> segments() {
+		return new ArrayList<Segment>(_segments);
+	}
+
+	/**
+	 * Method to settle the .tmp files left by a run that stopped between
+	 * writing a batch and renaming it: a batch whose first ticket is still
+	 * in the database was rolled back and is discarded, any other was
+	 * committed and is kept.
+	 *
+	 * @return the number of batches kept
+	 * @throws java.sql.SQLException when the database cannot be asked
+	 */
+	public synchronized int recover(Connection connection) throws SQLException, IOException {
+		int kept = 0;
+		for (File tmp : segmentFiles(".col.tmp")) {
+			Segment segment;
+			int[] wid;
+			int[] closed;
+			try {
+				segment = readHeader(tmp);
+				Map<String, Object> columns = read(tmp, "wid", "closed");
+				wid = (int[]) columns.get("wid");
+				closed = (int[]) columns.get("closed");
+			}catch(IOException e){
+				// cut short before the sync, so never committed
+				Files.delete(tmp.toPath());
+				continue;
+			}
+			PreparedStatement stmt = connection.prepareStatement(STILL_THERE);
+			boolean stillThere;
+			try {
+				stmt.setInt(1, wid[0]);
+				stmt.setDate(2, java.sql.Date.valueOf(LocalDate.ofEpochDay(closed[0])));
+				stillThere = stmt.executeQuery().next();
+			}finally{
+				stmt.close();
+			}
+			if (stillThere) {
+				Files.delete(tmp.toPath());
+			}else {
+				publish(tmp, segment);
+				kept++;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Method to archive every closed ticket closed before a cutoff, one
+	 * transaction per batch.
+	 *
+	 * @param connection a connection of its own; auto-commit is turned off
+	 *        while the job runs
+	 * @param cutoff yyyy-mm-dd; tickets closed before it are archived
+	 * @param batchSize tickets per segment
+	 * @return the number of tickets archived
+	 */
+	public long archive(Connection connection, String cutoff, int batchSize) throws SQLException, IOException {
+		recover(connection);
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		long archived = 0;
+		try {
+			while (true) {
+				int rows = archiveBatch(connection, java.sql.Date.valueOf(cutoff), batchSize);
+				archived += rows;
+				if (rows < batchSize) break;
+			}
+		}finally{
+			connection.setAutoCommit(autoCommit);
+		}
+		return archived;
+	}
+
+	private int archiveBatch(Connection connection, java.sql.Date cutoff, int batchSize) throws SQLException, IOException {
+		Object[] columns = new Object[COLUMNS.length];
+		int n = 0;
+		PreparedStatement select = connection.prepareStatement(SELECT_BATCH);
+		try {
+			select.setDate(1, cutoff);
+			select.setInt(2, batchSize);
+			ResultSet rs = select.executeQuery();
+			for (int c = 0; c < COLUMNS.length; c++) columns[c] = TEXT[c] ? new String[batchSize] : new int[batchSize];
+			while (rs.next()) {
+				for (int c = 0; c < COLUMNS.length; c++) {
+					if (TEXT[c]) {
+						((String[]) columns[c])[n] = rs.getString(c + 1);
+					}else if (COLUMNS[c].equals("closed") || COLUMNS[c].equals("requested")) {
+						((int[]) columns[c])[n] = (int) rs.getDate(c + 1).toLocalDate().toEpochDay();
+					}else {
+						((int[]) columns[c])[n] = rs.getInt(c + 1);
+					}
+				}
+				n++;
+			}
+		}finally{
+			select.close();
+		}
+		if (n == 0) {
+			connection.commit();
+			return 0;
+		}
+		for (int c = 0; c < COLUMNS.length; c++) {
+			columns[c] = TEXT[c] ? Arrays.copyOf((String[]) columns[c], n) : Arrays.copyOf((int[]) columns[c], n);
+		}
+		File tmp = new File(_dir, "segment_" + nextSequence() + ".col.tmp");
+		Segment segment = write(tmp, columns, n);
+		try {
+			delete(connection, DELETE_CLOSED, (int[]) columns[0], (int[]) columns[3]);
+			delete(connection, DELETE_REQUESTS, (int[]) columns[1], (int[]) columns[8]);
+		}catch(SQLException e){
+			connection.rollback();
+			Files.delete(tmp.toPath());
+			throw e;
+		}
+		// a commit that fails may still have gone through on the server, so
+		// the .tmp file is left for recover() to settle
+		connection.commit();
+		publish(tmp, segment);
+		return n;
+	}
+
+	private static void delete(Connection connection, String sql, int[] keys, int[] days) throws SQLException {
+		Integer[] boxed = new Integer[keys.length];
+		java.sql.Date[] dates = new java.sql.Date[days.length];
+		for (int i = 0; i < keys.length; i++) {
+			boxed[i] = keys[i];
+			dates[i] = java.sql.Date.valueOf(LocalDate.ofEpochDay(days[i]));
+		}
+		PreparedStatement stmt = connection.prepareStatement(sql);
+		try {
+			Array keyArray = connection.createArrayOf("integer", boxed);
+			Array dateArray = connection.createArrayOf("date", dates);
+			stmt.setArray(1, keyArray);
+			stmt.setArray(2, dateArray);
+			stmt.executeUpdate();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to read some columns of a segment.
+	 *
+	 * @param names columns from COLUMNS
+	 * @return int[] per numeric column (days since 1970 for dates) and
+	 *         String[] per text column, by name
+	 */
+	public static Map<String, Object> read(File file, String... names) throws IOException {
+		List<String> wanted = Arrays.asList(names);
+		Map<String, Object> columns = new HashMap<String, Object>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int rows = readHeader(in);
+			for (int c = 0; c < COLUMNS.length; c++) {
+				int length = in.readInt();
+				if (!wanted.contains(COLUMNS[c])) {
+					in.skipBytes(length);
+					continue;
+				}
+				byte[] block = new byte[length];
+				in.readFully(block);
+				DataInputStream column = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(block))));
+				if (TEXT[c]) {
+					String[] dictionary = new String[column.readInt()];
+					for (int i = 0; i < dictionary.length; i++) dictionary[i] = column.readUTF();
+					String[] values = new String[rows];
+					for (int i = 0; i < rows; i++) {
+						int code = column.readInt();
+						values[i] = code < 0 ? null : dictionary[code];
+					}
+					columns.put(COLUMNS[c], values);
+				}else {
+					int[] values = new int[rows];
+					for (int i = 0; i < rows; i++) values[i] = column.readInt();
+					columns.put(COLUMNS[c], values);
+				}
+			}
+		}finally{
+			in.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Method to list the segments holding tickets closed in a range.
+	 *
+	 * @param from first closing day, yyyy-mm-dd, or null for no bound
+	 * @param to last closing day, yyyy-mm-dd, or null for no bound
+	 */
+	public synchronized List<File> overlapping(String from, String to) {
+		List<File> files = new ArrayList<File>();
+		for (Segment segment : _segments) {
+			if (from != null && segment.last.compareTo(from) < 0) continue;
+			if (to != null && segment.first.compareTo(to) > 0) continue;
+			files.add(segment.file);
+		}
+		return files;
+	}
+
+	/**
+	 * Method to list the archived bills below an amount for tickets closed
+	 * in a range, as report 6 does for the live tickets.
+	 *
+	 * @param from first closing day, yyyy-mm-dd, or null for no bound
+	 * @param to last closing day, yyyy-mm-dd, or null for no bound
+	 * @return customer id and bill per ticket
+	 */
+	public List<int[]> billsBelow(String from, String to, int below) throws IOException {
+		List<int[]> bills = new ArrayList<int[]>();
+		for (File file : overlapping(from, to)) {
+			Map<String, Object> columns = read(file, "closed", "bill", "customer_id");
+			int[] bill = (int[]) columns.get("bill");
+			int[] customer = (int[]) columns.get("customer_id");
+			for (int i = 0; i < bill.length; i++) {
+				if (bill[i] < below && inRange(columns, i, from, to)) bills.add(new int[] { customer[i], bill[i] });
+			}
+		}
+		return bills;
+	}
+
+	/**
+	 * Method to sum the archived bills per customer for tickets closed in a
+	 * range, as report 10 does for the live tickets.
+	 */
+	public Map<Integer, Long> totalBills(String from, String to) throws IOException {
+		Map<Integer, Long> totals = new HashMap<Integer, Long>();
+		for (File file : overlapping(from, to)) {
+			Map<String, Object> columns = read(file, "closed", "bill", "customer_id");
+			int[] bill = (int[]) columns.get("bill");
+			int[] customer = (int[]) columns.get("customer_id");
+			for (int i = 0; i < bill.length; i++) {
+				if (inRange(columns, i, from, to)) totals.merge(customer[i], (long) bill[i], Long::sum);
+			}
+		}
+		return totals;
+	}
+
+	//the same bounds readClosedDateRange puts on the live tickets
+	private static boolean inRange(Map<String, Object> columns, int row, String from, String to) {
+		int closed = ((int[]) columns.get("closed"))[row];
+		if (from != null && closed < LocalDate.parse(from).toEpochDay()) return false;
+		if (to != null && closed > LocalDate.parse(to).toEpochDay()) return false;
+		return true;
+	}
+
+	private static Segment write(File tmp, Object[] columns, int rows) throws IOException {
+		int[] closed = (int[]) columns[3];
+		int first = Integer.MAX_VALUE;
+		int last = Integer.MIN_VALUE;
+		for (int day : closed) {
+			first = Math.min(first, day);
+			last = Math.max(last, day);
+		}
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(rows);
+			out.writeInt(first);
+			out.writeInt(last);
+			for (int c = 0; c < COLUMNS.length; c++) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream column = new DataOutputStream(new GZIPOutputStream(bytes));
+				if (TEXT[c]) {
+					String[] values = (String[]) columns[c];
+					Map<String, Integer> codes = new HashMap<String, Integer>();
+					List<String> dictionary = new ArrayList<String>();
+					int[] encoded = new int[rows];
+					for (int i = 0; i < rows; i++) {
+						if (values[i] == null) {
+							encoded[i] = -1;
+							continue;
+						}
+						Integer code = codes.get(values[i]);
+						if (code == null) {
+							code = dictionary.size();
+							codes.put(values[i], code);
+							dictionary.add(values[i]);
+						}
+						encoded[i] = code;
+					}
+					column.writeInt(dictionary.size());
+					for (String value : dictionary) column.writeUTF(value);
+					for (int code : encoded) column.writeInt(code);
+				}else {
+					for (int value : (int[]) columns[c]) column.writeInt(value);
+				}
+				column.close();
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			out.flush();
+			file.getFD().sync();
+		}finally{
+			out.close();
+		}
+		return new Segment(tmp, rows, LocalDate.ofEpochDay(first).toString(), LocalDate.ofEpochDay(last).toString());
+	}
+
+	private static int readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) throw new IOException("not an archive segment");
+		int rows = in.readInt();
+		in.readInt();
+		in.readInt();
+		return rows;
+	}
+
+	private static Segment readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) throw new IOException("not an archive segment: " + file);
+			int rows = in.readInt();
+			String first = LocalDate.ofEpochDay(in.readInt()).toString();
+			String last = LocalDate.ofEpochDay(in.readInt()).toString();
+			return new Segment(file, rows, first, last);
+		}finally{
+			in.close();
+		}
+	}
+
+	//renames a committed batch into place and adds it to the index
+	private synchronized void publish(File tmp, Segment segment) throws IOException {
+		String name = tmp.getName().substring(0, tmp.getName().length() - ".tmp".length());
+		File file = new File(_dir, name);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		_segments.add(new Segment(file, segment.rows, segment.first, segment.last));
+		FileWriter out = new FileWriter(_index, true);
+		try {
+			out.write(name + " " + segment.rows + " " + segment.first + " " + segment.last + "\n");
+		}finally{
+			out.close();
+		}
+	}
+
+	private synchronized void writeIndex() throws IOException {
+		File tmp = new File(_dir, "index.tmp");
+		FileWriter out = new FileWriter(tmp);
+		try {
+			for (Segment segment : _segments) {
+				out.write(segment.file.getName() + " " + segment.rows + " " + segment.first + " " + segment.last + "\n");
+			}
+		}finally{
+			out.close();
+		}
+		Files.move(tmp.toPath(), _index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private List<File> segmentFiles(String suffix) {
+		File[] files = _dir.listFiles((d, name) -> name.startsWith("segment_") && name.endsWith(suffix));
+		List<File> sorted = new ArrayList<File>(files == null ? new ArrayList<File>() : Arrays.asList(files));
+		sorted.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+		return sorted;
+	}
+
+	private static long sequence(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring("segment_".length(), name.indexOf('.')));
+	}
+
+	private long nextSequence() {
+		long next = 1;
+		for (File file : segmentFiles(".col")) next = Math.max(next, sequence(file) + 1);
+		for (File file : segmentFiles(".col.tmp")) next = Math.max(next, sequence(file) + 1);
+		return next;
+	}
+}
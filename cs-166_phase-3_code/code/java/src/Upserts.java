@@ -0,0 +1,198 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * This class writes customers, cars and mechanics with INSERT ... ON
+ * CONFLICT, one statement per batch. The batch is sent as one array per
+ * column and expanded with unnest on the server, so a batch of any size is
+ * a single round trip with no SELECT beforehand. Each method reports, per
+ * input row, whether it was created, updated or left as it was.
+ *
+ * In insert-if-absent mode existing rows are never touched. In upsert mode
+ * an existing row is only rewritten when one of its columns differs, so
+ * re-sending an unchanged feed creates no dead rows.
+ *
+ */
+public class Upserts{
+	public static final int CREATED = 0;
+	public static final int UPDATED = 1;
+	public static final int UNCHANGED = 2;
+
+	public static class Customer {
+		final int id;
+		final String fname;
+		final String lname;
+		final String phone;
+		final String address;
+
+		public Customer(int id, String fname, String lname, String phone, String address) {
+			this.id = id;
+			this.fname = fname;
+			this.lname = lname;
+			this.phone = phone;
+			this.address = address;
+		}
+	}
+
+	public static class Mechanic {
+		final int id;
+		final String fname;
+		final String lname;
+		final int experience;
+
+		public Mechanic(int id, String fname, String lname, int experience) {
+			this.id = id;
+			this.fname = fname;
+			this.lname = lname;
+			this.experience = experience;
+		}
+	}
+
+	public static class Car {
+		final String vin;
+		final String make;
+		final String model;
+		final int year;
+
+		public Car(String vin, String make, String model, int year) {
+			this.vin = vin;
+			this.make = make;
+			this.model = model;
+			this.year = year;
+		}
+	}
+
+	private static final String CUSTOMER_INSERT = "INSERT INTO Customer (id, fname, lname, phone, address) SELECT * FROM unnest(?::int[], ?::text[], ?::text[], ?::text[], ?::text[]) ON CONFLICT (id) ";
+	private static final String CUSTOMER_UPDATE = "DO UPDATE SET fname = EXCLUDED.fname, lname = EXCLUDED.lname, phone = EXCLUDED.phone, address = EXCLUDED.address WHERE (Customer.fname, Customer.lname, Customer.phone, Customer.address) IS DISTINCT FROM (EXCLUDED.fname, EXCLUDED.lname, EXCLUDED.phone, EXCLUDED.address) ";
+	private static final String MECHANIC_INSERT = "INSERT INTO Mechanic (id, fname, lname, experience) SELECT * FROM unnest(?::int[], ?::text[], ?::text[], ?::int[]) ON CONFLICT (id) ";
+	private static final String MECHANIC_UPDATE = "DO UPDATE SET fname = EXCLUDED.fname, lname = EXCLUDED.lname, experience = EXCLUDED.experience WHERE (Mechanic.fname, Mechanic.lname, Mechanic.experience) IS DISTINCT FROM (EXCLUDED.fname, EXCLUDED.lname, EXCLUDED.experience) ";
+	private static final String CAR_INSERT = "INSERT INTO Car (vin, make, model, year) SELECT * FROM unnest(?::text[], ?::text[], ?::text[], ?::int[]) ON CONFLICT (vin) ";
+	private static final String CAR_UPDATE = "DO UPDATE SET make = EXCLUDED.make, model = EXCLUDED.model, year = EXCLUDED.year WHERE (Car.make, Car.model, Car.year) IS DISTINCT FROM (EXCLUDED.make, EXCLUDED.model, EXCLUDED.year) ";
+	//xmax is zero only on a row version this statement inserted
+	private static final String RETURNING = "RETURNING %s, (xmax = 0) AS created";
+
+	/**
+	 * Method to write a batch of customers.
+	 *
+	 * @param connection the primary connection
+	 * @param rows the customers; when an id repeats the last one wins
+	 * @param update true to upsert, false to insert only the absent ones
+	 * @return CREATED, UPDATED or UNCHANGED for each row, in input order
+	 * @throws java.sql.SQLException when the statement failed
+	 */
+	public static int[] customers(Connection connection, List<Customer> rows, boolean update) throws SQLException {
+		Map<Object, Integer> last = lastIndexByKey(rows.size(), i -> rows.get(i).id);
+		Object[][] columns = new Object[5][last.size()];
+		int n = 0;
+		for (int i : last.values()) {
+			Customer row = rows.get(i);
+			columns[0][n] = row.id;
+			columns[1][n] = row.fname;
+			columns[2][n] = row.lname;
+			columns[3][n] = row.phone;
+			columns[4][n] = row.address;
+			n++;
+		}
+		String sql = CUSTOMER_INSERT + (update ? CUSTOMER_UPDATE : "DO NOTHING ") + String.format(RETURNING, "id");
+		Map<Object, Integer> outcome = run(connection, sql, columns, new String[] { "int4", "text", "text", "text", "text" });
+		return outcomes(rows.size(), i -> rows.get(i).id, outcome);
+	}
+
+	/**
+	 * Method to write a batch of mechanics.
+	 *
+	 * @see #customers(Connection, List, boolean)
+	 */
+	public static int[] mechanics(Connection connection, List<Mechanic> rows, boolean update) throws SQLException {
+		Map<Object, Integer> last = lastIndexByKey(rows.size(), i -> rows.get(i).id);
+		Object[][] columns = new Object[4][last.size()];
+		int n = 0;
+		for (int i : last.values()) {
+			Mechanic row = rows.get(i);
+			columns[0][n] = row.id;
+			columns[1][n] = row.fname;
+			columns[2][n] = row.lname;
+			columns[3][n] = row.experience;
+			n++;
+		}
+		String sql = MECHANIC_INSERT + (update ? MECHANIC_UPDATE : "DO NOTHING ") + String.format(RETURNING, "id");
+		Map<Object, Integer> outcome = run(connection, sql, columns, new String[] { "int4", "text", "text", "int4" });
+		return outcomes(rows.size(), i -> rows.get(i).id, outcome);
+	}
+
+	/**
+	 * Method to write a batch of cars, keyed by vin.
+	 *
+	 * @see #customers(Connection, List, boolean)
+	 */
+	public static int[] cars(Connection connection, List<Car> rows, boolean update) throws SQLException {
+		Map<Object, Integer> last = lastIndexByKey(rows.size(), i -> rows.get(i).vin);
+		Object[][] columns = new Object[4][last.size()];
+		int n = 0;
+		for (int i : last.values()) {
+			Car row = rows.get(i);
+			columns[0][n] = row.vin;
+			columns[1][n] = row.make;
+			columns[2][n] = row.model;
+			columns[3][n] = row.year;
+			n++;
+		}
+		String sql = CAR_INSERT + (update ? CAR_UPDATE : "DO NOTHING ") + String.format(RETURNING, "vin");
+		Map<Object, Integer> outcome = run(connection, sql, columns, new String[] { "text", "text", "text", "int4" });
+		return outcomes(rows.size(), i -> rows.get(i).vin, outcome);
+	}
+
+	//the key of the row at an index of the input batch
+	private interface KeyOf {
+		Object key(int index);
+	}
+
+	/*
+	 * ON CONFLICT DO UPDATE refuses to touch the same row twice in one
+	 * statement, so only the last occurrence of each key is sent.
+	 */
+	private static Map<Object, Integer> lastIndexByKey(int size, KeyOf keyOf) {
+		Map<Object, Integer> last = new LinkedHashMap<Object, Integer>();
+		for (int i = 0; i < size; i++) {
+			Object key = keyOf.key(i);
+			last.remove(key);
+			last.put(key, i);
+		}
+		return last;
+	}
+
+	//runs the statement and maps each returned key to CREATED or UPDATED
+	private static Map<Object, Integer> run(Connection connection, String sql, Object[][] columns, String[] types) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(sql);
+		try {
+			for (int c = 0; c < columns.length; c++) {
+				Array array = connection.createArrayOf(types[c], columns[c]);
+				stmt.setArray(c + 1, array);
+			}
+			ResultSet rs = stmt.executeQuery();
+			Map<Object, Integer> outcome = new LinkedHashMap<Object, Integer>();
+			while (rs.next()) {
+				outcome.put(rs.getObject(1), rs.getBoolean(2) ? CREATED : UPDATED);
+			}
+			return outcome;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	//keys the statement did not return were left as they were
+	private static int[] outcomes(int size, KeyOf keyOf, Map<Object, Integer> outcome) {
+		int[] result = new int[size];
+		for (int i = 0; i < size; i++) {
+			Integer o = outcome.get(keyOf.key(i));
+			result[i] = o == null ? UNCHANGED : o;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,188 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class dispatches open tickets to mechanics. Open_Ticket holds every
+ * service request that has not been closed yet; a claim takes the oldest
+ * unclaimed one with FOR UPDATE SKIP LOCKED, so mechanics claiming at the
+ * same time each get a different ticket without waiting on each other's
+ * row locks. A ticket leaves the queue when CloseServiceRequest closes it.
+ *
+ */
+public class WorkQueue{
+	static final String CLAIM_NEXT = "UPDATE Open_Ticket SET claimed_by = ?, claimed_at = now() "
+		+ "WHERE rid = (SELECT rid FROM Open_Ticket WHERE claimed_by IS NULL ORDER BY date, rid LIMIT 1 FOR UPDATE SKIP LOCKED) "
+		+ "RETURNING rid, customer_id, car_vin, date";
+	static final String RELEASE = "UPDATE Open_Ticket SET claimed_by = NULL, claimed_at = NULL WHERE rid = ? AND claimed_by = ?";
+	static final String CLAIMED_BY = "SELECT rid, customer_id, car_vin, date FROM Open_Ticket WHERE claimed_by = ? ORDER BY claimed_at";
+	static final String IS_OPEN = "SELECT 1 FROM Open_Ticket WHERE rid = ?";
+
+	public static class Claim {
+		final int rid;
+		final int customerId;
+		final String vin;
+		final String date;
+
+		Claim(ResultSet rs) throws SQLException {
+			rid = rs.getInt(1);
+			customerId = rs.getInt(2);
+			vin = rs.getString(3);
+			date = rs.getString(4);
+		}
+
+		public String toString() {
+			return "ticket " + rid + " opened " + date + " for car " + vin + " of customer " + customerId;
+		}
+	}
+
+	/**
+	 * Method to claim the oldest unclaimed ticket.
+	 *
+	 * @param connection a connection in auto-commit mode, so the claim is
+	 *        committed as soon as it is made
+	 * @param mid the mechanic claiming it
+	 * @return the claimed ticket, or null when every open ticket is claimed
+	 * @throws java.sql.SQLException when the claim failed
+	 */
+	public static Claim claimNext(Connection connection, int mid) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(CLAIM_NEXT);
+		try {
+			stmt.setInt(1, mid);
+			ResultSet rs = stmt.executeQuery();
+			return rs.next() ? new Claim(rs) : null;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to put a claimed ticket back in the queue.
+	 *
+	 * @return false when the ticket is not claimed by this mechanic
+	 */
+	public static boolean release(Connection connection, int rid, int mid) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(RELEASE);
+		try {
+			stmt.setInt(1, rid);
+			stmt.setInt(2, mid);
+			return stmt.executeUpdate() > 0;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Method to list the tickets a mechanic holds, oldest claim first.
+	 */
+	public static List<Claim> claimedBy(Connection connection, int mid) throws SQLException {
+		PreparedStatement stmt = connection.prepareStatement(CLAIMED_BY);
+		try {
+			stmt.setInt(1, mid);
+			ResultSet rs = stmt.executeQuery();
+			List<Claim> claims = new ArrayList<Claim>();
+			while (rs.next()) claims.add(new Claim(rs));
+			return claims;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Measures claim latency with 1, 2, 4, ... mechanics claiming at once.
+	 * Every claim made here is released again before the next round, so the
+	 * queue is left as it was found.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: java [-classpath <classpath>] WorkQueue <dbname> <port> <user> [max mechanics] [claims per mechanic]");
+			return;
+		}
+		final String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		final String user = args[2];
+		final String passwd = "#BlackpinkLisa1";
+		int maxMechanics = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+		final int claims = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+		Class.forName("org.postgresql.Driver");
+
+		Connection admin = DriverManager.getConnection(url, user, passwd);
+		Statement stmt = admin.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT count(*), count(*) FILTER (WHERE claimed_by IS NULL) FROM Open_Ticket");
+		rs.next();
+		System.out.println("open tickets " + rs.getLong(1) + ", unclaimed " + rs.getLong(2));
+		rs = stmt.executeQuery("SELECT id FROM Mechanic ORDER BY id LIMIT " + maxMechanics);
+		final List<Integer> mids = new ArrayList<Integer>();
+		while (rs.next()) mids.add(rs.getInt(1));
+		System.out.println("mechanics\tclaims\tmedian us\tp99 us\tclaims/s");
+		for (int n = 1; n <= mids.size(); n *= 2) {
+			final long[][] latencies = new long[n][claims];
+			final int[] made = new int[n];
+			final long[] finished = new long[n];
+			final List<List<Integer>> held = new ArrayList<List<Integer>>();
+			final CountDownLatch ready = new CountDownLatch(n);
+			final CountDownLatch go = new CountDownLatch(1);
+			final AtomicBoolean failed = new AtomicBoolean(false);
+			Thread[] threads = new Thread[n];
+			for (int t = 0; t < n; t++) {
+				final int worker = t;
+				final List<Integer> mine = new ArrayList<Integer>();
+				held.add(mine);
+				threads[t] = new Thread(() -> {
+					try {
+						Connection connection = DriverManager.getConnection(url, user, passwd);
+						try {
+							ready.countDown();
+							go.await();
+							for (int i = 0; i < claims; i++) {
+								long start = System.nanoTime();
+								Claim claim = claimNext(connection, mids.get(worker));
+								latencies[worker][i] = System.nanoTime() - start;
+								if (claim == null) break;
+								mine.add(claim.rid);
+								made[worker]++;
+							}
+							finished[worker] = System.nanoTime();
+							for (int rid : mine) release(connection, rid, mids.get(worker));
+						}finally{
+							connection.close();
+						}
+					}catch(Exception e){
+						failed.set(true);
+						System.err.println(e.getMessage());
+					}
+				});
+				threads[t].start();
+			}
+			ready.await();
+			long start = System.nanoTime();
+			go.countDown();
+			for (Thread thread : threads) thread.join();
+			if (failed.get()) return;
+			long elapsed = 1;
+			for (long end : finished) elapsed = Math.max(elapsed, end - start);
+			int total = 0;
+			for (int m : made) total += m;
+			long[] all = new long[total];
+			int k = 0;
+			for (int t = 0; t < n; t++) {
+				for (int i = 0; i < made[t]; i++) all[k++] = latencies[t][i];
+			}
+			Arrays.sort(all);
+			if (total == 0) {
+				System.out.println(n + "\t0\t-\t-\t-");
+				continue;
+			}
+			System.out.println(n + "\t" + total + "\t" + all[total / 2] / 1000 + "\t" + all[Math.min(total - 1, total * 99 / 100)] / 1000
+				+ "\t" + String.format("%.0f", total * 1e9 / elapsed));
+		}
+		admin.close();
+	}
+}